@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree.benchmark;
+
+import cn.okayj.util.lineartree.DataNode;
+import cn.okayj.util.lineartree.NodeFlatIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 索引读取:按位置读取,查找位置,按视窗读取,随机和顺序两种访问方式.
+ * 读取不修改节点树,整个测试共用一棵树
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss512m")//链状树的深度可达10^6
+public class IndexReadBenchmark {
+    private static final int RANDOM_COUNT = 1 << 12;
+    private static final int WINDOW = 32;//一屏的行数
+
+    @Param({TreeShapes.CHAIN, TreeShapes.FAN, TreeShapes.BALANCED})
+    public String shape;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"materialized", "implicit"})
+    public String mode;
+
+    private NodeFlatIndex mIndex;
+    private NodeFlatIndex.VisibleFlatIndex mVisibleIndex;
+    private DataNode[] mNodes;
+    private int[] mPositions;
+    private int mRandomCursor;
+    private int mSequentialCursor;
+    private final DataNode[] mWindow = new DataNode[WINDOW];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DataNode root = TreeShapes.build(shape, size);
+        mIndex = root.getFlatIndex(TreeShapes.indexMode(mode));
+        mVisibleIndex = mIndex.getVisibleIndex();
+        mNodes = TreeShapes.collect(mIndex);
+        mPositions = TreeShapes.randomPositions(RANDOM_COUNT, size);
+        mRandomCursor = 0;
+        mSequentialCursor = 0;
+    }
+
+    private int nextRandom() {
+        int position = mPositions[mRandomCursor];
+        mRandomCursor = (mRandomCursor + 1) & (RANDOM_COUNT - 1);
+        return position;
+    }
+
+    private int nextSequential(int step) {
+        int position = mSequentialCursor;
+        mSequentialCursor += step;
+        if (mSequentialCursor + step > size) {
+            mSequentialCursor = 0;
+        }
+        return position;
+    }
+
+    @Benchmark
+    public DataNode getRandom() {
+        return mIndex.get(nextRandom());
+    }
+
+    @Benchmark
+    public DataNode getSequential() {
+        return mIndex.get(nextSequential(1));
+    }
+
+    @Benchmark
+    public int indexOfRandom() {
+        return mIndex.indexOf(mNodes[nextRandom()]);
+    }
+
+    @Benchmark
+    public int indexOfSequential() {
+        return mIndex.indexOf(mNodes[nextSequential(1)]);
+    }
+
+    /**
+     * 顺序滚动,每次读取一屏
+     */
+    @Benchmark
+    public DataNode[] getRangeSequential() {
+        mIndex.getRange(nextSequential(WINDOW), WINDOW, mWindow, 0);
+        return mWindow;
+    }
+
+    /**
+     * 随机跳转,每次读取一屏
+     */
+    @Benchmark
+    public DataNode[] getRangeRandom() {
+        mIndex.getRange(Math.min(nextRandom(), size - WINDOW), WINDOW, mWindow, 0);
+        return mWindow;
+    }
+
+    @Benchmark
+    public DataNode visibleGetRandom() {
+        return mVisibleIndex.get(nextRandom());
+    }
+}
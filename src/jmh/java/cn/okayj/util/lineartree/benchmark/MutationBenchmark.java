@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree.benchmark;
+
+import cn.okayj.util.lineartree.DataNode;
+import cn.okayj.util.lineartree.NodeFlatIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 修改节点树并更新索引和可见索引:添加和删除叶子节点,折叠和展开,隐藏和显示.
+ * 每次调用都成对修改(添加后删除,折叠后展开),节点树在测试中保持不变
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss512m")//链状树的深度可达10^6
+public class MutationBenchmark {
+    private static final int RANDOM_COUNT = 1 << 12;
+
+    @Param({TreeShapes.CHAIN, TreeShapes.FAN, TreeShapes.BALANCED})
+    public String shape;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"materialized", "implicit"})
+    public String mode;
+
+    private DataNode[] mNodes;
+    private DataNode[] mInnerNodes;//有子节点的节点
+    private int[] mPositions;
+    private int[] mInnerPositions;
+    private int mCursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DataNode root = TreeShapes.build(shape, size);
+        NodeFlatIndex index = root.getFlatIndex(TreeShapes.indexMode(mode));
+        index.getVisibleIndex();
+        mNodes = TreeShapes.collect(index);
+
+        List<DataNode> innerNodes = new ArrayList<DataNode>();
+        for (DataNode node : mNodes) {
+            if (node.getFlatSize() > 1) {
+                innerNodes.add(node);
+            }
+        }
+        mInnerNodes = innerNodes.toArray(new DataNode[innerNodes.size()]);
+
+        mPositions = TreeShapes.randomPositions(RANDOM_COUNT, mNodes.length);
+        mInnerPositions = TreeShapes.randomPositions(RANDOM_COUNT, mInnerNodes.length);
+        mCursor = 0;
+    }
+
+    private int nextCursor() {
+        int cursor = mCursor;
+        mCursor = (mCursor + 1) & (RANDOM_COUNT - 1);
+        return cursor;
+    }
+
+    /**
+     * 在随机节点的子节点末尾添加叶子节点再删除
+     */
+    @Benchmark
+    public DataNode addRemoveLastChild() {
+        DataNode leaf = new DataNode();
+        mNodes[mPositions[nextCursor()]].addChildNode(leaf);
+        leaf.removeFromParent();
+        return leaf;
+    }
+
+    /**
+     * 在随机节点的子节点开头添加叶子节点再删除,之后的兄弟节点位置都改变
+     */
+    @Benchmark
+    public DataNode addRemoveFirstChild() {
+        DataNode leaf = new DataNode();
+        mNodes[mPositions[nextCursor()]].addChildNode(0, leaf);
+        leaf.removeFromParent();
+        return leaf;
+    }
+
+    @Benchmark
+    public DataNode foldUnfold() {
+        DataNode node = mInnerNodes[mInnerPositions[nextCursor()]];
+        node.setIsFolded(true);
+        node.setIsFolded(false);
+        return node;
+    }
+
+    @Benchmark
+    public DataNode hideShow() {
+        DataNode node = mNodes[mPositions[nextCursor()]];
+        node.setVisibility(false);
+        node.setVisibility(true);
+        return node;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree.benchmark;
+
+import cn.okayj.util.lineartree.DataNode;
+import cn.okayj.util.lineartree.NodeFlatIndex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 基准测试用的节点树形状:
+ * chain 每层一个节点的链,深度等于节点数;
+ * fan 根节点下直接挂所有节点;
+ * balanced 每个节点最多{@link #BRANCHING}个子节点的平衡树.
+ * 都从下往上构造(子节点添加到尚未挂到树上的父节点),构造代价与深度无关
+ */
+final class TreeShapes {
+    static final String CHAIN = "chain";
+    static final String FAN = "fan";
+    static final String BALANCED = "balanced";
+
+    static final int BRANCHING = 8;
+
+    private TreeShapes() {
+
+    }
+
+    /**
+     * 构造size个节点的树,数据源为先序编号
+     *
+     * @param shape
+     * @param size
+     * @return 根节点
+     */
+    static DataNode<Integer> build(String shape, int size) {
+        if (CHAIN.equals(shape)) {
+            DataNode<Integer> node = newNode(size - 1);
+            for (int i = size - 2; i >= 0; --i) {
+                DataNode<Integer> parent = newNode(i);
+                parent.addChildNode(node);
+                node = parent;
+            }
+            return node;
+        } else if (FAN.equals(shape)) {
+            DataNode<Integer> root = newNode(0);
+            List<DataNode> childNodes = new ArrayList<DataNode>(size - 1);
+            for (int i = 1; i < size; ++i) {
+                childNodes.add(newNode(i));
+            }
+            root.addChildNodes(childNodes);
+            return root;
+        } else if (BALANCED.equals(shape)) {
+            return buildBalanced(0, size);
+        }
+        throw new IllegalArgumentException("unknown shape: " + shape);
+    }
+
+    /**
+     * 以first为根节点编号,共count个节点的平衡树,其余节点平均分给子树
+     */
+    private static DataNode<Integer> buildBalanced(int first, int count) {
+        DataNode<Integer> node = newNode(first);
+        int remaining = count - 1;
+        if (remaining == 0) {
+            return node;
+        }
+
+        int branches = Math.min(BRANCHING, remaining);
+        List<DataNode> childNodes = new ArrayList<DataNode>(branches);
+        int next = first + 1;
+        for (int i = 0; i < branches; ++i) {
+            int childCount = remaining / branches + (i < remaining % branches ? 1 : 0);
+            childNodes.add(buildBalanced(next, childCount));
+            next += childCount;
+        }
+        node.addChildNodes(childNodes);
+        return node;
+    }
+
+    private static DataNode<Integer> newNode(int id) {
+        DataNode<Integer> node = new DataNode<Integer>();
+        node.setSource(id);
+        return node;
+    }
+
+    /**
+     * 按平坦索引的顺序收集节点,第i个节点即索引中位置i(不忽略根节点)的节点
+     *
+     * @param index
+     * @return
+     */
+    static DataNode[] collect(NodeFlatIndex index) {
+        DataNode[] nodes = new DataNode[index.size()];
+        int i = 0;
+        for (Iterator<DataNode> iterator = index.iterator(); iterator.hasNext(); ) {
+            nodes[i++] = iterator.next();
+        }
+        return nodes;
+    }
+
+    /**
+     * 固定种子的随机位置,保证每次运行访问相同的序列
+     *
+     * @param count 必须是2的幂,用掩码循环取用
+     * @param bound
+     * @return
+     */
+    static int[] randomPositions(int count, int bound) {
+        Random random = new Random(42);
+        int[] positions = new int[count];
+        for (int i = 0; i < count; ++i) {
+            positions[i] = random.nextInt(bound);
+        }
+        return positions;
+    }
+
+    static int indexMode(String mode) {
+        return "implicit".equals(mode) ? NodeFlatIndex.INDEX_MODE_IMPLICIT : NodeFlatIndex.INDEX_MODE_MATERIALIZED;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 子节点加载器,见{@link DataNode#setChildLoader(ChildLoader, int)}.
+ * 节点第一次展开或第一次访问子节点时调用,只调用一次
+ */
+public interface ChildLoader {
+    /**
+     * 创建node的子节点,用node的addHeaderNodes,addChildNodes,addFooterNodes等方法添加.
+     * 调用时node处于批量修改中,见{@link DataNode#beginBatch()},只能修改node的节点树
+     *
+     * @param node
+     */
+    void loadChildren(DataNode node);
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 某个节点的全部子节点(头部,中部,尾部依次排列)的平坦大小和可见平坦大小.
+ * 子节点按位置分成连续的块,每块不超过2 * {@link #BLOCK_SIZE}个,
+ * 块内和块之间(子节点个数,展开大小)都用树状数组(Fenwick tree)保存.
+ * 用于根据偏移量查找子节点,计算某个子节点之前的兄弟节点展开后的大小,查找前一个可见的兄弟节点,
+ * 以及计算子节点的位置(子节点记录所在的块和块内位置),均为O(log k),k为子节点个数.
+ * 子节点展开大小改变时单点更新;增删子节点时只重新构建所在的块,O(BLOCK_SIZE + log k),
+ * 块拆分或删空时重新构建块之间的树状数组,O(k / BLOCK_SIZE),分摊到每次增删为O(1).
+ * 排序和批量修改提交等其他结构改变使其失效,下次查询时重新构建,O(k).
+ * 并发模式下读者不重新构建,见{@link TreeLock}:乐观读时放弃,持有读锁时遍历子节点计算
+ */
+final class ChildSizeSums {
+    /**
+     * 重新构建时每块的子节点个数
+     */
+    static final int BLOCK_SIZE = 64;
+
+    private Block[] mBlocks = new Block[1];
+    private int mBlockCount = 0;
+    //块之间的树状数组,下标从1开始
+    private int[] mCountTree = new int[2];
+    private int[] mFlatTree = new int[2];
+    private int[] mVisibleTree = new int[2];
+    private int mCount = 0;
+    private boolean mDirty = true;
+
+    void invalidate() {
+        mDirty = true;
+    }
+
+    /**
+     * 子节点展开大小改变,由子节点所在的块直接定位,不需要先计算其位置
+     */
+    void update(DataNode child, int deltaFlatSize, int deltaVisibleFlatSize) {
+        if (mDirty) {
+            return;
+        }
+
+        Block block = child.mSumsBlock;
+        for (int i = child.mBlockSlot + 1; i <= block.count; i += i & -i) {
+            block.flatTree[i] += deltaFlatSize;
+            block.visibleTree[i] += deltaVisibleFlatSize;
+        }
+        block.flatSize += deltaFlatSize;
+        block.visibleSize += deltaVisibleFlatSize;
+        updateBlock(block.index, 0, deltaFlatSize, deltaVisibleFlatSize);
+    }
+
+    /**
+     * 子节点添加到slot处
+     */
+    void onChildAdded(DataNode parent, int slot) {
+        onChildrenAdded(parent, slot, 1);
+    }
+
+    /**
+     * 从slot处开始连续添加了count个子节点(已在父节点的子节点列表中).
+     * 添加到slot所在的块(在末尾添加时为最后一块),块过大时拆分
+     */
+    void onChildrenAdded(DataNode parent, int slot, int count) {
+        if (mDirty) {
+            return;
+        }
+
+        if (slot < 0 || slot > mCount || parent.getAllChildNodeSize() != mCount + count) {
+            mDirty = true;
+            return;
+        }
+
+        if (mBlockCount == 0) {
+            insertBlock(0, new Block());
+            rebuildBlockTrees();
+        }
+        int b = slot == mCount ? mBlockCount - 1 : search(mCountTree, mBlockCount, slot);
+        Block block = mBlocks[b];
+        int start = prefix(mCountTree, b);
+        int inner = slot - start;
+        mCount += count;
+
+        if (block.count + count > 2 * BLOCK_SIZE) {
+            splitBlock(parent, b, start, block.count + count);
+            return;
+        }
+
+        int oldFlatSize = block.flatSize;
+        int oldVisibleSize = block.visibleSize;
+        if (inner == block.count) {
+            //在块的末尾追加,块内前面的和不受影响
+            for (int i = 0; i < count; ++i) {
+                block.append(parent.getNodeAt(slot + i));
+            }
+        } else {
+            block.count += count;
+            block.build(parent, start);
+        }
+        updateBlock(b, count, block.flatSize - oldFlatSize, block.visibleSize - oldVisibleSize);
+    }
+
+    /**
+     * slot处的子节点被删除(已从父节点的子节点列表中删除)
+     */
+    void onChildRemoved(DataNode parent, int slot) {
+        if (mDirty) {
+            return;
+        }
+
+        if (slot < 0 || slot >= mCount || parent.getAllChildNodeSize() != mCount - 1) {
+            mDirty = true;
+            return;
+        }
+
+        int b = search(mCountTree, mBlockCount, slot);
+        Block block = mBlocks[b];
+        int start = prefix(mCountTree, b);
+        int inner = slot - start;
+        int flatSize = prefix(block.flatTree, inner + 1) - prefix(block.flatTree, inner);
+        int visibleSize = prefix(block.visibleTree, inner + 1) - prefix(block.visibleTree, inner);
+        mCount--;
+
+        if (block.count == 1) {
+            removeBlock(b);
+            rebuildBlockTrees();
+            return;
+        }
+
+        if (inner == block.count - 1) {
+            //删除块内最后的子节点,前面的和不受影响
+            block.count--;
+            block.flatSize -= flatSize;
+            block.visibleSize -= visibleSize;
+        } else {
+            block.count--;
+            block.build(parent, start);
+        }
+        updateBlock(b, -1, -flatSize, -visibleSize);
+        mergeBlock(parent, b);
+    }
+
+    /**
+     * 子节点在全部子节点中的位置,由其所在的块的起始位置加上块内位置得到
+     *
+     * @return 不是子节点则返回-1
+     */
+    int slotOf(DataNode parent, DataNode child) {
+        if (!ensure(parent)) {
+            int count = parent.getAllChildNodeSize();
+            for (int i = 0; i < count; ++i) {
+                if (parent.getNodeAt(i) == child) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Block block = child.mSumsBlock;
+        if (block == null || block.index >= mBlockCount || mBlocks[block.index] != block) {
+            return -1;
+        }
+        return prefix(mCountTree, block.index) + child.mBlockSlot;
+    }
+
+    /**
+     * 前slot个子节点展开后的大小
+     */
+    int flatSizeBefore(DataNode parent, int slot) {
+        if (!ensure(parent)) {
+            return scanSizeBefore(parent, slot, false);
+        }
+        return sizeBefore(slot, false);
+    }
+
+    /**
+     * 前slot个子节点可见展开后的大小
+     */
+    int visibleSizeBefore(DataNode parent, int slot) {
+        if (!ensure(parent)) {
+            return scanSizeBefore(parent, slot, true);
+        }
+        return sizeBefore(slot, true);
+    }
+
+    /**
+     * 找出展开后覆盖offset的子节点位置
+     *
+     * @param offset 相对于第一个子节点的平坦偏移量
+     * @return 子节点位置, 超出范围返回-1
+     */
+    int findSlotByFlatOffset(DataNode parent, int offset) {
+        if (!ensure(parent)) {
+            return scanSlot(parent, offset, false);
+        }
+        return findSlot(offset, false);
+    }
+
+    /**
+     * 找出可见展开后覆盖offset的子节点位置
+     *
+     * @param offset 相对于第一个可见子节点的可见偏移量
+     * @return 子节点位置, 超出范围返回-1
+     */
+    int findSlotByVisibleOffset(DataNode parent, int offset) {
+        if (!ensure(parent)) {
+            return scanSlot(parent, offset, true);
+        }
+        return findSlot(offset, true);
+    }
+
+    /**
+     * slot之前最后一个可见的子节点(可见的节点可见展开大小至少为1)
+     *
+     * @return 没有则返回-1
+     */
+    int findPreVisibleSlot(DataNode parent, int slot) {
+        if (!ensure(parent)) {
+            for (int i = slot - 1; i >= 0; --i) {
+                if (parent.getNodeAt(i).getVisibleFlatSize() > 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int visibleSizeBefore = sizeBefore(slot, true);
+        if (visibleSizeBefore == 0) {
+            return -1;
+        }
+        return findSlot(visibleSizeBefore - 1, true);
+    }
+
+    private int sizeBefore(int slot, boolean visible) {
+        int[] tree = visible ? mVisibleTree : mFlatTree;
+        if (slot <= 0) {
+            return 0;
+        } else if (slot >= mCount) {
+            return prefix(tree, mBlockCount);
+        }
+
+        int b = search(mCountTree, mBlockCount, slot);
+        Block block = mBlocks[b];
+        int inner = slot - prefix(mCountTree, b);
+        return prefix(tree, b) + prefix(visible ? block.visibleTree : block.flatTree, inner);
+    }
+
+    private int findSlot(int offset, boolean visible) {
+        int[] tree = visible ? mVisibleTree : mFlatTree;
+        int b = search(tree, mBlockCount, offset);
+        if (b < 0) {
+            return -1;
+        }
+
+        Block block = mBlocks[b];
+        int inner = search(visible ? block.visibleTree : block.flatTree, block.count, offset - prefix(tree, b));
+        return inner < 0 ? -1 : prefix(mCountTree, b) + inner;
+    }
+
+    /**
+     * 块b的子节点个数和展开大小改变,单点更新块之间的树状数组
+     */
+    private void updateBlock(int b, int deltaCount, int deltaFlatSize, int deltaVisibleSize) {
+        for (int i = b + 1; i <= mBlockCount; i += i & -i) {
+            mCountTree[i] += deltaCount;
+            mFlatTree[i] += deltaFlatSize;
+            mVisibleTree[i] += deltaVisibleSize;
+        }
+    }
+
+    /**
+     * 块b添加子节点后共有count个,从start开始,拆分成每块BLOCK_SIZE个
+     */
+    private void splitBlock(DataNode parent, int b, int start, int count) {
+        Block block = mBlocks[b];
+        block.count = BLOCK_SIZE;
+        block.build(parent, start);
+        for (int offset = BLOCK_SIZE; offset < count; offset += BLOCK_SIZE) {
+            Block next = new Block();
+            next.count = Math.min(BLOCK_SIZE, count - offset);
+            next.build(parent, start + offset);
+            insertBlock(++b, next);
+        }
+        rebuildBlockTrees();
+    }
+
+    /**
+     * 块b删除子节点后,与相邻的块合起来不超过BLOCK_SIZE个时合并,避免块越删越小
+     */
+    private void mergeBlock(DataNode parent, int b) {
+        int left = b > 0 && mBlocks[b - 1].count + mBlocks[b].count <= BLOCK_SIZE ? b - 1 : b;
+        if (left + 1 >= mBlockCount || mBlocks[left].count + mBlocks[left + 1].count > BLOCK_SIZE) {
+            return;
+        }
+
+        Block block = mBlocks[left];
+        block.count += mBlocks[left + 1].count;
+        block.build(parent, prefix(mCountTree, left));
+        removeBlock(left + 1);
+        rebuildBlockTrees();
+    }
+
+    /**
+     * 在块数组的b处插入一个块,之后需要{@link #rebuildBlockTrees()}
+     */
+    private void insertBlock(int b, Block block) {
+        ensureBlockCapacity(mBlockCount + 1);
+        System.arraycopy(mBlocks, b, mBlocks, b + 1, mBlockCount - b);
+        mBlocks[b] = block;
+        mBlockCount++;
+    }
+
+    /**
+     * 删除块数组中b处的块,之后需要{@link #rebuildBlockTrees()}
+     */
+    private void removeBlock(int b) {
+        System.arraycopy(mBlocks, b + 1, mBlocks, b, mBlockCount - b - 1);
+        mBlocks[--mBlockCount] = null;
+    }
+
+    /**
+     * 块的位置改变后重新编号,重新构建块之间的树状数组
+     */
+    private void rebuildBlockTrees() {
+        ensureTreeCapacity(mBlockCount + 1);
+        for (int i = 1; i <= mBlockCount; ++i) {
+            Block block = mBlocks[i - 1];
+            block.index = i - 1;
+            mCountTree[i] = block.count;
+            mFlatTree[i] = block.flatSize;
+            mVisibleTree[i] = block.visibleSize;
+        }
+        for (int i = 1; i <= mBlockCount; ++i) {
+            int j = i + (i & -i);
+            if (j <= mBlockCount) {
+                mCountTree[j] += mCountTree[i];
+                mFlatTree[j] += mFlatTree[i];
+                mVisibleTree[j] += mVisibleTree[i];
+            }
+        }
+    }
+
+    /**
+     * 树状数组前count项的和,也用于{@link FilteredFlatIndex}
+     */
+    static int prefix(int[] tree, int count) {
+        int sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 在有count项的树状数组中找到最小的slot, 使得前slot + 1项的和 > offset
+     *
+     * @return 超出范围返回-1
+     */
+    static int search(int[] tree, int count, int offset) {
+        if (offset < 0) {
+            return -1;
+        }
+
+        int position = 0;
+        for (int step = Integer.highestOneBit(Math.max(count, 1)); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= count && tree[next] <= offset) {
+                position = next;
+                offset -= tree[next];
+            }
+        }
+        return position < count ? position : -1;
+    }
+
+    /**
+     * 查询前保证有效
+     *
+     * @return 过期且当前线程持有读锁时返回false,不修改,由调用者遍历子节点计算
+     * @throws RuntimeException 过期且当前线程在乐观读时抛出{@link TreeLock#STALE_CACHE}
+     */
+    private boolean ensure(DataNode parent) {
+        if (!mDirty) {
+            return true;
+        }
+
+        int readMode = TreeLock.currentReadMode();
+        if (readMode == TreeLock.READ_OPTIMISTIC) {
+            throw TreeLock.STALE_CACHE;
+        } else if (readMode == TreeLock.READ_LOCKED) {
+            return false;
+        }
+        rebuild(parent);
+        return true;
+    }
+
+    private static int scanSizeBefore(DataNode parent, int slot, boolean visible) {
+        int sum = 0;
+        for (int i = 0; i < slot; ++i) {
+            DataNode node = parent.getNodeAt(i);
+            sum += visible ? node.getVisibleFlatSize() : node.getFlatSize();
+        }
+        return sum;
+    }
+
+    private static int scanSlot(DataNode parent, int offset, boolean visible) {
+        if (offset < 0) {
+            return -1;
+        }
+
+        int count = parent.getAllChildNodeSize();
+        for (int i = 0; i < count; ++i) {
+            DataNode node = parent.getNodeAt(i);
+            offset -= visible ? node.getVisibleFlatSize() : node.getFlatSize();
+            if (offset < 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 不论是否失效都重新构建,每块BLOCK_SIZE个子节点.
+     * 写者释放写锁前调用,见{@link DataNode#refreshChildCaches()}
+     */
+    void rebuild(DataNode parent) {
+        int count = parent.getAllChildNodeSize();
+        int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ensureBlockCapacity(blockCount);
+        for (int b = 0; b < blockCount; ++b) {
+            Block block = new Block();
+            block.count = Math.min(BLOCK_SIZE, count - b * BLOCK_SIZE);
+            block.build(parent, b * BLOCK_SIZE);
+            mBlocks[b] = block;
+        }
+        for (int b = blockCount; b < mBlockCount; ++b) {
+            mBlocks[b] = null;
+        }
+        mBlockCount = blockCount;
+        mCount = count;
+        rebuildBlockTrees();
+        mDirty = false;
+    }
+
+    private void ensureBlockCapacity(int capacity) {
+        if (mBlocks.length < capacity) {
+            Block[] blocks = new Block[Math.max(capacity, mBlocks.length * 2)];
+            System.arraycopy(mBlocks, 0, blocks, 0, mBlockCount);
+            mBlocks = blocks;
+        }
+    }
+
+    private void ensureTreeCapacity(int capacity) {
+        if (mCountTree.length < capacity) {
+            int newCapacity = Math.max(capacity, mCountTree.length * 2);
+            mCountTree = new int[newCapacity];
+            mFlatTree = new int[newCapacity];
+            mVisibleTree = new int[newCapacity];
+        }
+    }
+
+    /**
+     * 连续的一段子节点,块内的展开大小也用树状数组保存.
+     * 其中的子节点记录所在的块({@link DataNode#mSumsBlock})和块内位置({@link DataNode#mBlockSlot})
+     */
+    static final class Block {
+        int index;//在块数组中的位置
+        int count;
+        int flatSize;//块内子节点展开大小之和
+        int visibleSize;
+        int[] flatTree = new int[1];//下标从1开始
+        int[] visibleTree = new int[1];
+
+        /**
+         * 由父节点从start开始的count个子节点构建
+         */
+        void build(DataNode parent, int start) {
+            ensureCapacity(count + 1);
+            flatSize = 0;
+            visibleSize = 0;
+            for (int i = 1; i <= count; ++i) {
+                DataNode node = parent.getNodeAt(start + i - 1);
+                node.mSumsBlock = this;
+                node.mBlockSlot = i - 1;
+                flatTree[i] = node.getFlatSize();
+                visibleTree[i] = node.getVisibleFlatSize();
+                flatSize += flatTree[i];
+                visibleSize += visibleTree[i];
+            }
+            for (int i = 1; i <= count; ++i) {
+                int j = i + (i & -i);
+                if (j <= count) {
+                    flatTree[j] += flatTree[i];
+                    visibleTree[j] += visibleTree[i];
+                }
+            }
+        }
+
+        /**
+         * 追加到末尾: tree[n] = value + sum(n - lowbit(n), n - 1]
+         */
+        void append(DataNode node) {
+            int n = count + 1;
+            ensureCapacity(n + 1);
+            int low = n - (n & -n);
+            flatTree[n] = node.getFlatSize() + prefix(flatTree, n - 1) - prefix(flatTree, low);
+            visibleTree[n] = node.getVisibleFlatSize() + prefix(visibleTree, n - 1) - prefix(visibleTree, low);
+            flatSize += node.getFlatSize();
+            visibleSize += node.getVisibleFlatSize();
+            node.mSumsBlock = this;
+            node.mBlockSlot = count;
+            count = n;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (flatTree.length < capacity) {
+                int newCapacity = Math.min(Math.max(capacity, flatTree.length * 2), 2 * BLOCK_SIZE + 1);
+                int[] newFlatTree = new int[newCapacity];
+                int[] newVisibleTree = new int[newCapacity];
+                System.arraycopy(flatTree, 0, newFlatTree, 0, flatTree.length);
+                System.arraycopy(visibleTree, 0, newVisibleTree, 0, visibleTree.length);
+                flatTree = newFlatTree;
+                visibleTree = newVisibleTree;
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 分块存储(rope):节点按顺序保存在若干定长数组块中,块组织成按位置排序的treap,
+ * 每个块记录以其为根的子树中的节点总数.
+ * 按位置访问O(log n),在块内有空间时插入O(log n),
+ * 区间插入,删除和移动通过分裂,合并treap完成,复杂度O(log n + k).
+ */
+public class ChunkedNodeStore implements NodeStore {
+    public static final Factory FACTORY = new Factory() {
+        public NodeStore create() {
+            return new ChunkedNodeStore();
+        }
+    };
+
+    private static final int CHUNK_CAPACITY = 64;
+
+    private final Random mRandom = new Random();
+    private Chunk mRoot;
+
+    /*
+    split的结果,避免每层递归创建数组
+     */
+    private Chunk mSplitLeft;
+    private Chunk mSplitRight;
+
+    public DataNode get(int position) {
+        checkElementIndex(position);
+
+        Chunk chunk = mRoot;
+        while (true) {
+            int leftSize = sizeOf(chunk.left);
+            if (position < leftSize) {
+                chunk = chunk.left;
+            } else if (position < leftSize + chunk.length) {
+                return chunk.nodes[position - leftSize];
+            } else {
+                position -= leftSize + chunk.length;
+                chunk = chunk.right;
+            }
+        }
+    }
+
+    public int size() {
+        return sizeOf(mRoot);
+    }
+
+    public void add(int position, DataNode dataNode) {
+        checkPositionIndex(position);
+
+        if (mRoot != null && insertInChunk(mRoot, position, dataNode)) {
+            return;
+        }
+
+        //所在块已满(或者存储为空),插入一个新块
+        Chunk chunk = newChunk();
+        chunk.nodes[0] = dataNode;
+        chunk.length = 1;
+        chunk.size = 1;
+
+        split(mRoot, position);
+        Chunk right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, chunk), right);
+    }
+
+    public void addAll(int position, List<DataNode> dataNodes) {
+        checkPositionIndex(position);
+
+        int count = dataNodes.size();
+        if (count == 0) {
+            return;
+        } else if (count == 1) {
+            add(position, dataNodes.get(0));
+            return;
+        }
+
+        Chunk inserted = null;
+        for (int i = 0; i < count; i += CHUNK_CAPACITY) {
+            Chunk chunk = newChunk();
+            int length = Math.min(CHUNK_CAPACITY, count - i);
+            for (int j = 0; j < length; ++j) {
+                chunk.nodes[j] = dataNodes.get(i + j);
+            }
+            chunk.length = length;
+            chunk.size = length;
+            inserted = merge(inserted, chunk);
+        }
+
+        split(mRoot, position);
+        Chunk right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, inserted), right);
+    }
+
+    public void removeRange(int position, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (position < 0 || position + count > size()) {
+            throw new IndexOutOfBoundsException("Range: [" + position + ", " + (position + count) + "), Size: " + size());
+        }
+
+        if (isInOneChunk(position, count)) {
+            mRoot = removeInChunk(mRoot, position, count);
+            return;
+        }
+
+        split(mRoot, position);
+        Chunk left = mSplitLeft;
+        split(mSplitRight, count);
+        mRoot = merge(left, mSplitRight);
+    }
+
+    public void move(int from, int count, int to) {
+        if (from < 0 || count < 0 || from + count > size() || to < 0 || to + count > size()) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + (from + count) + ") to " + to + ", Size: " + size());
+        }
+        if (count == 0 || from == to) {
+            return;
+        }
+
+        //取出区间,合并其余部分,再插入到新位置
+        split(mRoot, from);
+        Chunk left = mSplitLeft;
+        split(mSplitRight, count);
+        Chunk moved = mSplitLeft;
+        split(merge(left, mSplitRight), to);
+        Chunk right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, moved), right);
+    }
+
+    public void clear() {
+        mRoot = null;
+    }
+
+    /**
+     * 如果position所在块还有空间,直接插入块中
+     *
+     * @return 块已满, 未插入则返回false
+     */
+    private boolean insertInChunk(Chunk chunk, int position, DataNode dataNode) {
+        int leftSize = sizeOf(chunk.left);
+        boolean inserted;
+        if (position < leftSize) {
+            inserted = insertInChunk(chunk.left, position, dataNode);
+        } else if (position <= leftSize + chunk.length) {
+            if (chunk.length == CHUNK_CAPACITY) {
+                return false;
+            }
+            int offset = position - leftSize;
+            System.arraycopy(chunk.nodes, offset, chunk.nodes, offset + 1, chunk.length - offset);
+            chunk.nodes[offset] = dataNode;
+            chunk.length++;
+            inserted = true;
+        } else {
+            inserted = chunk.right != null && insertInChunk(chunk.right, position - leftSize - chunk.length, dataNode);
+        }
+
+        if (inserted) {
+            chunk.size++;
+        }
+        return inserted;
+    }
+
+    private boolean isInOneChunk(int position, int count) {
+        Chunk chunk = mRoot;
+        while (true) {
+            int leftSize = sizeOf(chunk.left);
+            if (position < leftSize) {
+                chunk = chunk.left;
+            } else if (position < leftSize + chunk.length) {
+                return position - leftSize + count <= chunk.length;
+            } else {
+                position -= leftSize + chunk.length;
+                chunk = chunk.right;
+            }
+        }
+    }
+
+    /**
+     * 删除同一块内的一段节点,块为空时将块从树中删除
+     *
+     * @return 删除后子树的根
+     */
+    private Chunk removeInChunk(Chunk chunk, int position, int count) {
+        int leftSize = sizeOf(chunk.left);
+        if (position < leftSize) {
+            chunk.left = removeInChunk(chunk.left, position, count);
+        } else if (position < leftSize + chunk.length) {
+            int offset = position - leftSize;
+            int tail = chunk.length - offset - count;
+            System.arraycopy(chunk.nodes, offset + count, chunk.nodes, offset, tail);
+            for (int i = offset + tail; i < chunk.length; ++i) {
+                chunk.nodes[i] = null;
+            }
+            chunk.length -= count;
+            if (chunk.length == 0) {
+                return merge(chunk.left, chunk.right);
+            }
+        } else {
+            chunk.right = removeInChunk(chunk.right, position - leftSize - chunk.length, count);
+        }
+
+        update(chunk);
+        return chunk;
+    }
+
+    /**
+     * 将子树分裂为前position个节点(mSplitLeft)和其余节点(mSplitRight),
+     * position落在块内时将该块一分为二
+     */
+    private void split(Chunk chunk, int position) {
+        if (chunk == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+            return;
+        }
+
+        int leftSize = sizeOf(chunk.left);
+        if (position <= leftSize) {
+            split(chunk.left, position);
+            chunk.left = mSplitRight;
+            update(chunk);
+            mSplitRight = chunk;
+        } else if (position >= leftSize + chunk.length) {
+            split(chunk.right, position - leftSize - chunk.length);
+            chunk.right = mSplitLeft;
+            update(chunk);
+            mSplitLeft = chunk;
+        } else {
+            int offset = position - leftSize;
+            Chunk tail = new Chunk(chunk.priority);//与原块同优先级,仍满足堆序
+            tail.length = chunk.length - offset;
+            System.arraycopy(chunk.nodes, offset, tail.nodes, 0, tail.length);
+            for (int i = offset; i < chunk.length; ++i) {
+                chunk.nodes[i] = null;
+            }
+            chunk.length = offset;
+
+            tail.right = chunk.right;
+            chunk.right = null;
+            update(chunk);
+            update(tail);
+            mSplitLeft = chunk;
+            mSplitRight = tail;
+        }
+    }
+
+    private Chunk merge(Chunk left, Chunk right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+    }
+
+    private Chunk newChunk() {
+        return new Chunk(mRandom.nextInt());
+    }
+
+    private void checkElementIndex(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+        }
+    }
+
+    private void checkPositionIndex(int position) {
+        if (position < 0 || position > size()) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+        }
+    }
+
+    private static int sizeOf(Chunk chunk) {
+        return chunk == null ? 0 : chunk.size;
+    }
+
+    private static void update(Chunk chunk) {
+        chunk.size = sizeOf(chunk.left) + chunk.length + sizeOf(chunk.right);
+    }
+
+    private static final class Chunk {
+        final DataNode[] nodes = new DataNode[CHUNK_CAPACITY];
+        final int priority;
+        int length;
+        int size;//以该块为根的子树中的节点数
+        Chunk left;
+        Chunk right;
+
+        Chunk(int priority) {
+            this.priority = priority;
+        }
+    }
+}
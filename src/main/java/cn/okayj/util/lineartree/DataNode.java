@@ -17,7 +17,12 @@
 package cn.okayj.util.lineartree;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Jack on 15/11/27.
@@ -32,6 +37,14 @@ public class DataNode<S> {
     public static final int CHILD_POSITION_MIDDLE = 2;
     public static final int CHILD_POSITION_FOOTER = 3;
 
+    private static final NodeFlatIndex[] NO_INDEXES = new NodeFlatIndex[0];
+
+    //当前线程发起的未提交的批量修改个数,为0时不必向上查找批量修改的发起节点
+    private static final ThreadLocal<int[]> sOpenBatches = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
 
     protected S mSource;
 
@@ -39,7 +52,9 @@ public class DataNode<S> {
     protected boolean mIsFolded = false;
 
     private DataNode mParentNode;
+    private int mSlot = -1;//在父节点全部子节点(头部,中部,尾部)中的位置,兄弟节点增删后可能过期,见slotOf
     private NodeFlatIndex mNodeFlatIndex;
+    private NodeFlatIndex[] mPathIndexes;//本节点及先辈节点上的索引,从下到上,见pathIndexes
     protected List<DataNode> mHeaderChildNodes = new ArrayList<DataNode>();
     protected List<DataNode> mChildNodes = new ArrayList<DataNode>();
     protected List<DataNode> mFooterChildNodes = new ArrayList<DataNode>();
@@ -47,9 +62,26 @@ public class DataNode<S> {
     private int mDescendantSize = 0;
     private int mDescendantVisibleSize = 0;
 
+    private ChildSizeSums mChildSizeSums;
+    ChildSizeSums.Block mSumsBlock;//父节点的展开前缀和中本节点所在的块,见ChildSizeSums
+    int mBlockSlot;//在所在的块中的位置
+
+    private MutationBatch mBatch;//仅在批量修改的发起节点上不为空
+    private boolean mSizeDirty = false;//批量修改中,子孙节点数量尚未更新
+
+    private ChildLoader mChildLoader;//不为空表示子节点尚未加载
+    private int mDeclaredChildCount = -1;//加载前声明的子节点个数,-1为未知
+
+    private TreeLock mTreeLock;//并发模式下整棵树共用的锁,只在开启并发模式的节点上不为空
+    private TreeLock mEffectiveLock;//本节点所在树的锁,即先辈节点中最上层的mTreeLock,添加和删除时更新,见updateEffectiveLock
+
+    private Comparator<DataNode> mChildComparator;//不为空时主体子节点按此排序
+
 
     private void setParentNode(DataNode parentNode) {
+        invalidatePathIndexes();
         mParentNode = parentNode;
+        updateEffectiveLock(parentNode == null ? null : parentNode.mEffectiveLock);
     }
 
     /**
@@ -84,7 +116,12 @@ public class DataNode<S> {
      * @param headerNode
      */
     public final void addHeaderNode(DataNode headerNode) {
-        addHeaderNode(mHeaderChildNodes.size(), headerNode);
+        TreeLock lock = lockTree();
+        try {
+            addHeaderNode(mHeaderChildNodes.size(), headerNode);
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     /**
@@ -93,10 +130,15 @@ public class DataNode<S> {
      * @param headerNode
      */
     public final void addHeaderNode(int position, DataNode headerNode) {
-        headerNode.setParentNode(this);
-        mHeaderChildNodes.add(position, headerNode);
-
-        onInternalChildAdd(headerNode, CHILD_POSITION_HEADER);
+        TreeLock lock = lockTree();
+        try {
+            headerNode.setParentNode(this);
+            mHeaderChildNodes.add(position, headerNode);
+
+            onInternalChildAdd(headerNode, CHILD_POSITION_HEADER, position);
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     /**
@@ -105,19 +147,36 @@ public class DataNode<S> {
      * @param childNode
      */
     public final void addChildNode(DataNode childNode) {
-        addChildNode(mChildNodes.size(), childNode);
+        TreeLock lock = lockTree();
+        try {
+            int position = mChildComparator == null ? mChildNodes.size() : sortedPosition(childNode);
+            insertChildNode(position, childNode);
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     /**
-     * 设置主体子节点(在头部和尾部节点之间)
+     * 设置主体子节点(在头部和尾部节点之间).
+     * 主体子节点排序时(见{@link #setChildComparator(Comparator)})不能指定位置
      *
      * @param childNode
      */
     public final void addChildNode(int position, DataNode childNode) {
+        TreeLock lock = lockTree();
+        try {
+            checkUnsorted();
+            insertChildNode(position, childNode);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    private void insertChildNode(int position, DataNode childNode) {
         childNode.setParentNode(this);
         mChildNodes.add(position, childNode);
 
-        onInternalChildAdd(childNode, CHILD_POSITION_MIDDLE);
+        onInternalChildAdd(childNode, CHILD_POSITION_MIDDLE, mHeaderChildNodes.size() + position);
     }
 
     /**
@@ -126,7 +185,12 @@ public class DataNode<S> {
      * @param footerNode
      */
     public final void addFooterNode(DataNode footerNode) {
-        addFooterNode(mFooterChildNodes.size(), footerNode);
+        TreeLock lock = lockTree();
+        try {
+            addFooterNode(mFooterChildNodes.size(), footerNode);
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     /**
@@ -135,70 +199,514 @@ public class DataNode<S> {
      * @param footerNode
      */
     public final void addFooterNode(int position, DataNode footerNode) {
-        footerNode.setParentNode(this);
-        mFooterChildNodes.add(position, footerNode);
+        TreeLock lock = lockTree();
+        try {
+            footerNode.setParentNode(this);
+            mFooterChildNodes.add(position, footerNode);
+
+            onInternalChildAdd(footerNode, CHILD_POSITION_FOOTER, mHeaderChildNodes.size() + mChildNodes.size() + position);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 批量添加头部子节点
+     *
+     * @param headerNodes
+     */
+    public final void addHeaderNodes(Collection<? extends DataNode> headerNodes) {
+        TreeLock lock = lockTree();
+        try {
+            addHeaderNodes(mHeaderChildNodes.size(), headerNodes);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 批量添加头部子节点,添加到position处
+     *
+     * @param position
+     * @param headerNodes
+     */
+    public final void addHeaderNodes(int position, Collection<? extends DataNode> headerNodes) {
+        TreeLock lock = lockTree();
+        try {
+            addNodes(mHeaderChildNodes, CHILD_POSITION_HEADER, 0, position, headerNodes);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 批量添加主体子节点
+     *
+     * @param childNodes
+     */
+    public final void addChildNodes(Collection<? extends DataNode> childNodes) {
+        TreeLock lock = lockTree();
+        try {
+            if (mChildComparator == null) {
+                addNodes(mChildNodes, CHILD_POSITION_MIDDLE, mHeaderChildNodes.size(), mChildNodes.size(), childNodes);
+                return;
+            }
+
+            //排序时各节点插入的位置不连续,在一次批量修改中逐个插入
+            beginBatch();
+            try {
+                for (DataNode childNode : childNodes) {
+                    insertChildNode(sortedPosition(childNode), childNode);
+                }
+            } finally {
+                commitBatch();
+            }
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 批量添加主体子节点,添加到position处.
+     * 主体子节点排序时不能指定位置
+     *
+     * @param position
+     * @param childNodes
+     */
+    public final void addChildNodes(int position, Collection<? extends DataNode> childNodes) {
+        TreeLock lock = lockTree();
+        try {
+            checkUnsorted();
+            addNodes(mChildNodes, CHILD_POSITION_MIDDLE, mHeaderChildNodes.size(), position, childNodes);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 批量添加尾部子节点
+     *
+     * @param footerNodes
+     */
+    public final void addFooterNodes(Collection<? extends DataNode> footerNodes) {
+        TreeLock lock = lockTree();
+        try {
+            addFooterNodes(mFooterChildNodes.size(), footerNodes);
+        } finally {
+            unlockTree(lock);
+        }
+    }
 
-        onInternalChildAdd(footerNode, CHILD_POSITION_FOOTER);
+    /**
+     * 批量添加尾部子节点,添加到position处
+     *
+     * @param position
+     * @param footerNodes
+     */
+    public final void addFooterNodes(int position, Collection<? extends DataNode> footerNodes) {
+        TreeLock lock = lockTree();
+        try {
+            addNodes(mFooterChildNodes, CHILD_POSITION_FOOTER, mHeaderChildNodes.size() + mChildNodes.size(), position, footerNodes);
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     public final int removeHeaderNode(DataNode dataNode) {
-        int position = mHeaderChildNodes.indexOf(dataNode);
-        if (position >= 0) {
-            removeHeaderNode(position);
+        TreeLock lock = lockTree();
+        try {
+            int position = positionInSegment(dataNode, CHILD_POSITION_HEADER);
+            if (position >= 0) {
+                removeHeaderNode(position);
+            }
+            return position;
+        } finally {
+            unlockTree(lock);
         }
-        return position;
     }
 
     public final DataNode removeHeaderNode(int position) {
-        DataNode dataNode = mHeaderChildNodes.remove(position);
+        TreeLock lock = lockTree();
+        try {
+            DataNode dataNode = mHeaderChildNodes.get(position);
+            //先从index中删除,此时节点仍在树中,可以算出其在索引中的位置
+            if (findBatchOwner() == null) {
+                removeSubtreeFromFlatIndex(dataNode);
+            }
+            mHeaderChildNodes.remove(position);
 
-        onInternalChildRemove(dataNode,CHILD_POSITION_MIDDLE);
-        return dataNode;
+            onInternalChildRemove(dataNode, CHILD_POSITION_HEADER, position);
+            return dataNode;
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     public final int removeChildNode(DataNode dataNode) {
-        int position = mChildNodes.indexOf(dataNode);
-        if (position >= 0) {
-            removeChildNode(position);
+        TreeLock lock = lockTree();
+        try {
+            int position = positionInSegment(dataNode, CHILD_POSITION_MIDDLE);
+            if (position >= 0) {
+                removeChildNode(position);
+            }
+            return position;
+        } finally {
+            unlockTree(lock);
         }
-        return position;
     }
 
     public final DataNode removeChildNode(int position) {
-        DataNode dataNode = mChildNodes.remove(position);
+        TreeLock lock = lockTree();
+        try {
+            DataNode dataNode = mChildNodes.get(position);
+            //先从index中删除,此时节点仍在树中,可以算出其在索引中的位置
+            if (findBatchOwner() == null) {
+                removeSubtreeFromFlatIndex(dataNode);
+            }
+            mChildNodes.remove(position);
 
-        onInternalChildRemove(dataNode,CHILD_POSITION_MIDDLE);
-        return dataNode;
+            onInternalChildRemove(dataNode, CHILD_POSITION_MIDDLE, mHeaderChildNodes.size() + position);
+            return dataNode;
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     public final int removeFooterNode(DataNode dataNode) {
-        int position = mFooterChildNodes.indexOf(dataNode);
-        if (position >= 0) {
-            removeFooterNode(position);
+        TreeLock lock = lockTree();
+        try {
+            int position = positionInSegment(dataNode, CHILD_POSITION_FOOTER);
+            if (position >= 0) {
+                removeFooterNode(position);
+            }
+            return position;
+        } finally {
+            unlockTree(lock);
         }
-        return position;
     }
 
     public final DataNode removeFooterNode(int position) {
-        DataNode dataNode = mFooterChildNodes.remove(position);
-        onInternalChildRemove(dataNode,CHILD_POSITION_MIDDLE);
-        return dataNode;
+        TreeLock lock = lockTree();
+        try {
+            DataNode dataNode = mFooterChildNodes.get(position);
+            //先从index中删除,此时节点仍在树中,可以算出其在索引中的位置
+            if (findBatchOwner() == null) {
+                removeSubtreeFromFlatIndex(dataNode);
+            }
+            mFooterChildNodes.remove(position);
+
+            onInternalChildRemove(dataNode, CHILD_POSITION_FOOTER, mHeaderChildNodes.size() + mChildNodes.size() + position);
+            return dataNode;
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     /**
      * 将本节点从父节点移除
      */
     public final void removeFromParent() {
-        if (mParentNode != null) {
-            mParentNode.removeNode(this);
+        TreeLock lock = lockTree();
+        try {
+            if (mParentNode != null) {
+                mParentNode.removeNode(this);
+            }
+        } finally {
+            unlockTree(lock);
         }
     }
 
     public final void removeNode(DataNode dataNode) {
-        if (removeHeaderNode(dataNode) < 0) {
-            if (removeChildNode(dataNode) < 0) {
-                removeFooterNode(dataNode);
+        TreeLock lock = lockTree();
+        try {
+            int slot = slotOf(dataNode);
+            if (slot < 0) {
+                return;
+            }
+
+            int headerSize = mHeaderChildNodes.size();
+            int middleSize = mChildNodes.size();
+            if (slot < headerSize) {
+                removeHeaderNode(slot);
+            } else if (slot < headerSize + middleSize) {
+                removeChildNode(slot - headerSize);
+            } else {
+                removeFooterNode(slot - headerSize - middleSize);
+            }
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 将本节点树移动到主体子节点的末尾,newParent的主体子节点排序时插入到排序后的位置.
+     * 见{@link #moveTo(DataNode, int, int)}
+     *
+     * @param newParent
+     */
+    public final void moveTo(DataNode newParent) {
+        TreeLock lock = lockTree();
+        try {
+            moveNode(newParent, CHILD_POSITION_MIDDLE, -1);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 将本节点树移动到newParent某部分(头部,中部,尾部)的position处,newParent可以是原来的父节点,
+     * 用于拖放等需要保留节点(及其状态,子孙节点和索引)的场合.
+     * 只有原父节点和新父节点到最近公共先辈之间的两条路径上的节点数量需要增减,
+     * 公共先辈及以上只传递可见数量的改变,与节点树的大小无关;
+     * 公共先辈及以上的索引中节点树的区间整体移动,发出一个移动事件
+     * ({@link IndexChangeListener#onItemRangeMoved(int, int, int)}),只在一侧路径上的索引中删除或添加.
+     * 本节点没有父节点,两个父节点不在同一棵树中,或在批量修改中时,等同于删除后再添加.
+     * 主体子节点排序时(见{@link #setChildComparator(Comparator)})不能指定中部的位置
+     *
+     * @param newParent
+     * @param segment   {@link #CHILD_POSITION_HEADER}, {@link #CHILD_POSITION_MIDDLE}, {@link #CHILD_POSITION_FOOTER}
+     * @param position  在该部分中的位置,移动到同一部分时按本节点删除后计算
+     */
+    public final void moveTo(DataNode newParent, int segment, int position) {
+        TreeLock lock = lockTree();
+        try {
+            if (segment == CHILD_POSITION_MIDDLE) {
+                newParent.checkUnsorted();
+            }
+            if (position < 0) {
+                throw new IndexOutOfBoundsException("Index: " + position);
+            }
+            moveNode(newParent, segment, position);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * @param position 为-1时添加到末尾,中部排序时添加到排序后的位置
+     */
+    private void moveNode(DataNode<?> newParent, int segment, int position) {
+        for (DataNode node = newParent; node != null; node = node.mParentNode) {
+            if (node == this) {
+                throw new IllegalArgumentException("can not move a node into its own subtree");
+            }
+        }
+
+        DataNode oldParent = mParentNode;
+        List<DataNode> newSegmentNodes = newParent.segmentNodes(segment);
+        int oldSlot = oldParent == null ? -1 : oldParent.slotOf(this);
+        int oldSegment = oldParent == null ? -1 : oldParent.segmentOf(oldSlot);
+        int oldPosition = oldParent == null ? -1 : oldSlot - oldParent.segmentStart(oldSegment);
+        boolean sameSegment = oldParent == newParent && oldSegment == segment;
+
+        if (sameSegment) {
+            //按本节点删除后的列表计算位置
+            newSegmentNodes.remove(oldPosition);
+            try {
+                position = newParent.resolvePosition(segment, position, this);
+            } finally {
+                newSegmentNodes.add(oldPosition, this);
+            }
+            if (position == oldPosition) {
+                return;
+            }
+        } else {
+            position = newParent.resolvePosition(segment, position, this);
+        }
+
+        DataNode ancestor = oldParent == null ? null : commonAncestor(oldParent, newParent);
+        if (ancestor == null || findBatchOwner() != null || newParent.findBatchOwner() != null) {
+            if (oldParent != null) {
+                oldParent.removeNode(this);
+            }
+            newParent.insertNode(segment, position, this);
+            return;
+        }
+
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        int indexCount = 0;
+
+        /*
+        修改前:只在原父节点一侧的索引删除节点树,公共先辈及以上的索引记录节点树的偏移量
+         */
+        for (DataNode node = oldParent; node != ancestor; node = node.mParentNode) {
+            if (node.mNodeFlatIndex != null) {
+                node.mNodeFlatIndex.removeFlatNodes(this);
+                indexCount++;
+            }
+        }
+        List<NodeFlatIndex> commonIndexes = null;
+        List<int[]> oldOffsets = null;
+        for (DataNode node = ancestor; node != null; node = node.mParentNode) {
+            if (node.mNodeFlatIndex != null) {
+                if (commonIndexes == null) {
+                    commonIndexes = new ArrayList<NodeFlatIndex>();
+                    oldOffsets = new ArrayList<int[]>();
+                }
+                commonIndexes.add(node.mNodeFlatIndex);
+                oldOffsets.add(node.mNodeFlatIndex.prepareRelocation(this));
+            }
+        }
+
+        /*
+        移动节点
+         */
+        oldParent.segmentNodes(oldSegment).remove(oldPosition);
+        if (oldParent.mChildSizeSums != null) {
+            oldParent.mChildSizeSums.onChildRemoved(oldParent, oldSlot);
+        }
+        oldParent.markChildCachesStale(null);
+
+        int newSlot = newParent.segmentStart(segment) + position;
+        newSegmentNodes.add(position, this);
+        setParentNode(newParent);
+        mSlot = newSlot;
+        if (newParent.mChildSizeSums != null) {
+            newParent.mChildSizeSums.onChildAdded(newParent, newSlot);
+        }
+        newParent.markChildCachesStale(null);
+
+        /*
+        两条路径上的数量分别增减到公共先辈为止,公共先辈的平坦大小不变,只继续传递可见数量的改变
+         */
+        int flatSize = getFlatSize();
+        int visibleFlatSize = getVisibleFlatSize();
+        int deltaOldVisible = -visibleFlatSize;
+        if (oldParent != ancestor) {
+            deltaOldVisible = oldParent.notifyDescendantStateChangeUntil(-flatSize, -visibleFlatSize, ancestor);
+            if (ancestor.mChildSizeSums != null) {
+                ancestor.mChildSizeSums.update(branchOf(oldParent, ancestor), -flatSize, deltaOldVisible);
+            }
+        }
+        int deltaNewVisible = visibleFlatSize;
+        if (newParent != ancestor) {
+            deltaNewVisible = newParent.notifyDescendantStateChangeUntil(flatSize, visibleFlatSize, ancestor);
+            if (ancestor.mChildSizeSums != null) {
+                ancestor.mChildSizeSums.update(branchOf(newParent, ancestor), flatSize, deltaNewVisible);
+            }
+        }
+        ancestor.notifyDescendantStateChange(0, deltaOldVisible + deltaNewVisible);
+
+        /*
+        修改后:公共先辈及以上的索引移动区间,只在新父节点一侧的索引添加节点树
+         */
+        if (commonIndexes != null) {
+            for (int i = 0; i < commonIndexes.size(); ++i) {
+                int[] offsets = oldOffsets.get(i);
+                commonIndexes.get(i).relocateSubtree(this, offsets[0], offsets[1]);
+            }
+            indexCount += commonIndexes.size();
+        }
+        DataNode preSibling = newSlot > 0 ? newParent.getNodeAt(newSlot - 1) : null;
+        DataNode preVisibleSibling = null;
+        boolean preVisibleSiblingFound = false;
+        for (DataNode node = newParent; node != ancestor; node = node.mParentNode) {
+            if (node.mNodeFlatIndex != null) {
+                if (!preVisibleSiblingFound) {
+                    preVisibleSibling = getPreVisibleSibling(this);
+                    preVisibleSiblingFound = true;
+                }
+                node.mNodeFlatIndex.addSubtree(preSibling, preVisibleSibling, this);
+                indexCount++;
+            }
+        }
+        if (sample != null && indexCount > 0) {
+            sample.end(TreeMetrics.OP_MOVE, flatSize);
+        }
+
+        //回掉给子类
+        oldParent.onChildNodeRemoved(this, oldSegment);
+        newParent.onChildNodeAdded(this, segment);
+    }
+
+    /**
+     * 两个节点最近的公共先辈(包括节点本身)
+     *
+     * @return 不在同一棵树中则返回null
+     */
+    private static DataNode commonAncestor(DataNode first, DataNode second) {
+        int firstDepth = depthOf(first);
+        int secondDepth = depthOf(second);
+        for (; firstDepth > secondDepth; --firstDepth) {
+            first = first.mParentNode;
+        }
+        for (; secondDepth > firstDepth; --secondDepth) {
+            second = second.mParentNode;
+        }
+        while (first != second) {
+            first = first.mParentNode;
+            second = second.mParentNode;
+        }
+        return first;
+    }
+
+    private static int depthOf(DataNode node) {
+        int depth = 0;
+        for (node = node.mParentNode; node != null; node = node.mParentNode) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * 先辈节点ancestor的子节点中,是node或node的先辈的那一个
+     */
+    private static DataNode branchOf(DataNode node, DataNode ancestor) {
+        while (node.mParentNode != ancestor) {
+            node = node.mParentNode;
+        }
+        return node;
+    }
+
+    private List<DataNode> segmentNodes(int segment) {
+        if (segment == CHILD_POSITION_HEADER) {
+            return mHeaderChildNodes;
+        } else if (segment == CHILD_POSITION_MIDDLE) {
+            return mChildNodes;
+        } else if (segment == CHILD_POSITION_FOOTER) {
+            return mFooterChildNodes;
+        }
+        throw new IllegalArgumentException("unknown segment: " + segment);
+    }
+
+    /**
+     * 某部分第一个子节点在全部子节点中的位置
+     */
+    private int segmentStart(int segment) {
+        if (segment == CHILD_POSITION_HEADER) {
+            return 0;
+        } else if (segment == CHILD_POSITION_MIDDLE) {
+            return mHeaderChildNodes.size();
+        }
+        return mHeaderChildNodes.size() + mChildNodes.size();
+    }
+
+    /**
+     * 检查要添加到的位置,-1为末尾(中部排序时为排序后的位置)
+     */
+    private int resolvePosition(int segment, int position, DataNode dataNode) {
+        List<DataNode> segmentNodes = segmentNodes(segment);
+        if (position < 0) {
+            return segment == CHILD_POSITION_MIDDLE && mChildComparator != null ? sortedPosition(dataNode) : segmentNodes.size();
+        }
+        if (position > segmentNodes.size()) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + segmentNodes.size());
+        }
+        return position;
+    }
+
+    private void insertNode(int segment, int position, DataNode dataNode) {
+        TreeLock lock = lockTree();
+        try {
+            if (segment == CHILD_POSITION_HEADER) {
+                addHeaderNode(position, dataNode);
+            } else if (segment == CHILD_POSITION_MIDDLE) {
+                insertChildNode(position, dataNode);
+            } else {
+                addFooterNode(position, dataNode);
             }
+        } finally {
+            unlockTree(lock);
         }
     }
 
@@ -222,29 +730,200 @@ public class DataNode<S> {
 
 
     public int getHeaderNodeSize() {
+        loadChildren();
         return mHeaderChildNodes.size();
     }
 
     public DataNode getHeaderNode(int position) {
+        loadChildren();
         return mHeaderChildNodes.get(position);
     }
 
     public int getChildNodeSize() {
+        loadChildren();
         return mChildNodes.size();
     }
 
     public DataNode getChildNode(int position) {
+        loadChildren();
         return mChildNodes.get(position);
     }
 
     public int getFooterNodeSize() {
+        loadChildren();
         return mFooterChildNodes.size();
     }
 
     public DataNode getFooterNode(int position) {
+        loadChildren();
         return mFooterChildNodes.get(position);
     }
 
+    /**
+     * 构建节点树时使用,见{@link ParallelTreeBuilder}:
+     * 将已构建好的节点树直接设置为本节点的主体子节点,子孙节点数量由子节点的数量直接算出,
+     * 不通知先辈节点和索引,不回调{@link #onChildNodeAdded(DataNode, int)}.
+     * 本节点必须是没有父节点,子节点和索引的新节点
+     *
+     * @param childNodes
+     */
+    void setBuiltChildNodes(List<DataNode> childNodes) {
+        setBuiltChildNodes(Collections.<DataNode>emptyList(), childNodes, Collections.<DataNode>emptyList());
+    }
+
+    /**
+     * 同{@link #setBuiltChildNodes(List)},同时设置头部和尾部子节点
+     *
+     * @param headerNodes
+     * @param childNodes
+     * @param footerNodes
+     */
+    void setBuiltChildNodes(List<DataNode> headerNodes, List<DataNode> childNodes, List<DataNode> footerNodes) {
+        if (mParentNode != null || mNodeFlatIndex != null || getAllChildNodeSize() != 0) {
+            throw new IllegalStateException("built children can only be set on a new detached node");
+        }
+        if (mChildComparator != null) {
+            Collections.sort(childNodes, mChildComparator);
+        }
+
+        mHeaderChildNodes.addAll(headerNodes);
+        mChildNodes.addAll(childNodes);
+        mFooterChildNodes.addAll(footerNodes);
+        if (mChildSizeSums != null) {
+            mChildSizeSums.invalidate();
+        }
+
+        int descendantSize = 0;
+        int descendantVisibleSize = 0;
+        int count = getAllChildNodeSize();
+        for (int slot = 0; slot < count; ++slot) {
+            DataNode childNode = getNodeAt(slot);
+            childNode.setParentNode(this);
+            childNode.mSlot = slot;
+            descendantSize += childNode.getFlatSize();
+            descendantVisibleSize += childNode.getVisibleFlatSize();
+        }
+        mDescendantSize = descendantSize;
+        mDescendantVisibleSize = descendantVisibleSize;
+    }
+
+    /**
+     * 全部子节点(头部,中部,尾部)的个数
+     *
+     * @return
+     */
+    int getAllChildNodeSize() {
+        return mHeaderChildNodes.size() + mChildNodes.size() + mFooterChildNodes.size();
+    }
+
+    /**
+     * 按头部,中部,尾部的顺序获取第slot个子节点
+     *
+     * @param slot
+     * @return
+     */
+    DataNode getNodeAt(int slot) {
+        int headerSize = mHeaderChildNodes.size();
+        if (slot < headerSize) {
+            return mHeaderChildNodes.get(slot);
+        }
+        slot -= headerSize;
+
+        int middleSize = mChildNodes.size();
+        if (slot < middleSize) {
+            return mChildNodes.get(slot);
+        }
+        slot -= middleSize;
+
+        return mFooterChildNodes.get(slot);
+    }
+
+    /**
+     * 子节点在全部子节点(头部,中部,尾部)中的位置
+     *
+     * @param childNode
+     * @return 不是子节点则返回-1
+     */
+    int slotOf(DataNode childNode) {
+        if (childNode == null || childNode.mParentNode != this) {
+            return -1;
+        }
+
+        int slot = childNode.mSlot;
+        if (slot >= 0 && slot < getAllChildNodeSize() && getNodeAt(slot) == childNode) {
+            return slot;
+        }
+
+        //前面插入或删除了兄弟节点,由所在的块计算;读者不修改编号,见TreeLock
+        slot = getChildSizeSums().slotOf(this, childNode);
+        if (TreeLock.currentReadMode() == TreeLock.READ_NONE) {
+            childNode.mSlot = slot;
+        }
+        return slot;
+    }
+
+    /**
+     * 子节点在所属部分(头部,中部,尾部)中的位置
+     *
+     * @param childNode
+     * @param segment   {@link #CHILD_POSITION_HEADER}, {@link #CHILD_POSITION_MIDDLE}, {@link #CHILD_POSITION_FOOTER}
+     * @return 不是该部分的子节点则返回-1
+     */
+    private int positionInSegment(DataNode childNode, int segment) {
+        int slot = slotOf(childNode);
+        if (slot < 0) {
+            return -1;
+        }
+
+        int headerSize = mHeaderChildNodes.size();
+        int middleSize = mChildNodes.size();
+        int start;
+        int size;
+        if (segment == CHILD_POSITION_HEADER) {
+            start = 0;
+            size = headerSize;
+        } else if (segment == CHILD_POSITION_MIDDLE) {
+            start = headerSize;
+            size = middleSize;
+        } else {
+            start = headerSize + middleSize;
+            size = mFooterChildNodes.size();
+        }
+
+        int position = slot - start;
+        return position >= 0 && position < size ? position : -1;
+    }
+
+    /**
+     * 第slot个子节点所属的部分
+     *
+     * @param slot
+     * @return {@link #CHILD_POSITION_HEADER}, {@link #CHILD_POSITION_MIDDLE}, {@link #CHILD_POSITION_FOOTER}
+     */
+    int segmentOf(int slot) {
+        int headerSize = mHeaderChildNodes.size();
+        if (slot < headerSize) {
+            return CHILD_POSITION_HEADER;
+        }
+        return slot < headerSize + mChildNodes.size() ? CHILD_POSITION_MIDDLE : CHILD_POSITION_FOOTER;
+    }
+
+    /**
+     * 子节点展开前缀和,用于按位置查找子孙节点
+     *
+     * @return
+     */
+    ChildSizeSums getChildSizeSums() {
+        if (mChildSizeSums == null) {
+            if (TreeLock.currentReadMode() != TreeLock.READ_NONE) {
+                //读者不创建缓存,新建的前缀和是过期的,按过期处理
+                return new ChildSizeSums();
+            }
+            mChildSizeSums = new ChildSizeSums();
+        }
+        return mChildSizeSums;
+    }
+
     public final boolean isVisible() {
         return mVisibility;
     }
@@ -259,24 +938,36 @@ public class DataNode<S> {
      * @param visibility
      */
     public final void setVisibility(boolean visibility) {
-        if (mVisibility != visibility) {
-            int visibleFlatSizeBefore = getVisibleFlatSize();
+        TreeLock lock = lockTree();
+        try {
+            if (mVisibility != visibility) {
+                DataNode batchOwner = findBatchOwner();
+                if (batchOwner != null) {
+                    batchOwner.markSizeDirty(this);//先标记,以记录修改前的状态
+                    mVisibility = visibility;
+                    return;
+                }
 
-            mVisibility = visibility;
+                int visibleFlatSizeBefore = getVisibleFlatSize();
 
+                mVisibility = visibility;
 
-            if (mParentNode != null) {
-                int visibleFlatSizeAfter = getVisibleFlatSize();
-                int deltaDescendantFlatSize = 0;
-                int deltaVisibleDescendantFlatSize = 0;
-                deltaVisibleDescendantFlatSize = visibleFlatSizeAfter - visibleFlatSizeBefore;
 
-                mParentNode.notifyDescendantStateChange(deltaDescendantFlatSize, deltaVisibleDescendantFlatSize);
+                if (mParentNode != null) {
+                    int visibleFlatSizeAfter = getVisibleFlatSize();
+                    int deltaDescendantFlatSize = 0;
+                    int deltaVisibleDescendantFlatSize = 0;
+                    deltaVisibleDescendantFlatSize = visibleFlatSizeAfter - visibleFlatSizeBefore;
 
-            }
+                    mParentNode.notifyChildSizeChange(this, deltaDescendantFlatSize, deltaVisibleDescendantFlatSize);
+
+                }
 
-            DataNode preVisibleSibling = getPreVisibleSibling(this);
-            notifyVisibilityChangeToFlatIndex(preVisibleSibling, this, visibility);
+                DataNode preVisibleSibling = mParentNode == null ? null : getPreVisibleSibling(this);
+                notifyVisibilityChangeToFlatIndex(preVisibleSibling, this, visibility);
+            }
+        } finally {
+            unlockTree(lock);
         }
     }
 
@@ -286,42 +977,611 @@ public class DataNode<S> {
      * @param isFolded
      */
     public final void setIsFolded(boolean isFolded) {
-        if (mIsFolded != isFolded) {
-            int visibleFlatSizeBefore = getVisibleFlatSize();
+        TreeLock lock = lockTree();
+        try {
+            if (mIsFolded != isFolded) {
+                if (!isFolded) {
+                    //展开前加载,此时子节点不可见,只有平坦大小改变
+                    loadChildren();
+                }
 
-            mIsFolded = isFolded;
+                DataNode batchOwner = findBatchOwner();
+                if (batchOwner != null) {
+                    batchOwner.markSizeDirty(this);//先标记,以记录修改前的状态
+                    mIsFolded = isFolded;
+                    return;
+                }
 
+                int visibleFlatSizeBefore = getVisibleFlatSize();
 
-            if (mParentNode != null) {
-                int visibleFlatSizeAfter = getVisibleFlatSize();
-                int deltaDescendantFlatSize = 0;
-                int deltaVisibleDescendantFlatSize = 0;
-                deltaVisibleDescendantFlatSize = visibleFlatSizeAfter - visibleFlatSizeBefore;
+                mIsFolded = isFolded;
 
-                mParentNode.notifyDescendantStateChange(deltaDescendantFlatSize, deltaVisibleDescendantFlatSize);
-            }
 
-            notifyFoldStateChangeToFlatIndex(this, isFolded);
+                if (mParentNode != null) {
+                    int visibleFlatSizeAfter = getVisibleFlatSize();
+                    int deltaDescendantFlatSize = 0;
+                    int deltaVisibleDescendantFlatSize = 0;
+                    deltaVisibleDescendantFlatSize = visibleFlatSizeAfter - visibleFlatSizeBefore;
+
+                    mParentNode.notifyChildSizeChange(this, deltaDescendantFlatSize, deltaVisibleDescendantFlatSize);
+                }
 
+                notifyFoldStateChangeToFlatIndex(this, isFolded);
+
+            }
+        } finally {
+            unlockTree(lock);
         }
     }
 
     /**
-     * 获取平坦索引(树结构对应的列表的索引)
+     * 展开或折叠本节点和maxDepth层以内的子孙节点.
+     * 在一次批量修改中完成:先只改变各节点的状态,提交时自下而上一次算出数量,
+     * 每个受影响的索引中该节点树的区间只替换一次,O(节点数).
+     * 展开时会加载这些节点的子节点
      *
-     * @return
+     * @param isFolded
+     * @param maxDepth 0只改变本节点,1包括子节点,依此类推,{@link Integer#MAX_VALUE}为整棵节点树
      */
-    public NodeFlatIndex getFlatIndex() {
-        if (mNodeFlatIndex == null) {
-            mNodeFlatIndex = new NodeFlatIndex(this);
-        }
-
-        return mNodeFlatIndex;
+    public final void setFoldedRecursively(boolean isFolded, int maxDepth) {
+        setStateRecursively(true, isFolded, maxDepth);
     }
 
     /**
-     * @param addedNode
-     * @param position  添加的孩子节点所在位置:头部.中部.尾部
+     * 设置本节点和maxDepth层以内的子孙节点是否可见,
+     * 与{@link #setFoldedRecursively(boolean, int)}一样一次完成
+     *
+     * @param visibility
+     * @param maxDepth   0只改变本节点,1包括子节点,依此类推,{@link Integer#MAX_VALUE}为整棵节点树
+     */
+    public final void setVisibilityRecursively(boolean visibility, int maxDepth) {
+        setStateRecursively(false, visibility, maxDepth);
+    }
+
+    /**
+     * 逐层改变折叠或可见状态,不用递归,节点树很深时也不会栈溢出
+     *
+     * @param fold  true改变折叠状态,false改变可见状态
+     * @param value
+     * @param maxDepth
+     */
+    private void setStateRecursively(boolean fold, boolean value, int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth < 0: " + maxDepth);
+        }
+
+        beginBatch();
+        try {
+            DataNode batchOwner = findBatchOwner();
+            List<DataNode> level = new ArrayList<DataNode>();
+            level.add(this);
+            for (int depth = 0; level != null && !level.isEmpty(); ++depth) {
+                List<DataNode> nextLevel = depth < maxDepth ? new ArrayList<DataNode>() : null;
+                for (int i = 0; i < level.size(); ++i) {
+                    DataNode node = level.get(i);
+                    if (fold) {
+                        if (!value) {
+                            node.loadChildren();
+                        }
+                        if (node.mIsFolded != value) {
+                            batchOwner.markSizeDirty(node);//先标记,以记录修改前的状态
+                            node.mIsFolded = value;
+                        }
+                    } else if (node.mVisibility != value) {
+                        batchOwner.markSizeDirty(node);
+                        node.mVisibility = value;
+                    }
+
+                    if (nextLevel != null) {
+                        int count = node.getAllChildNodeSize();
+                        for (int slot = 0; slot < count; ++slot) {
+                            nextLevel.add(node.getNodeAt(slot));
+                        }
+                    }
+                }
+                level = nextLevel;//到达maxDepth时为null
+            }
+        } finally {
+            commitBatch();
+        }
+    }
+
+    /**
+     * 设置主体子节点的排序方式,设置后立即按其(稳定地)排序,之后添加的主体子节点插入到排序后的位置.
+     * 重新排序在一次批量修改中完成,索引中本节点的区间只替换一次.
+     * 头部和尾部子节点不参与排序
+     *
+     * @param comparator 为null则不再排序,保持当前顺序
+     */
+    public final void setChildComparator(Comparator<DataNode> comparator) {
+        TreeLock lock = lockTree();
+        try {
+            mChildComparator = comparator;
+            if (comparator == null || isSorted(comparator)) {
+                return;
+            }
+
+            beginBatch();
+            try {
+                findBatchOwner().markSizeDirty(this);//顺序改变,提交时替换索引中的区间
+                Collections.sort(mChildNodes, comparator);
+                if (mChildSizeSums != null) {
+                    mChildSizeSums.invalidate();
+                }
+                markChildCachesStale(null);
+            } finally {
+                commitBatch();
+            }
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    public final Comparator<DataNode> getChildComparator() {
+        return mChildComparator;
+    }
+
+    /**
+     * 主体子节点的数据源改变,可能影响排序后,将其移动到新的位置.
+     * 节点树在索引中的区间直接整体移动,先辈节点的数量不变,
+     * 每个索引只发出一个移动事件({@link IndexChangeListener#onItemRangeMoved(int, int, int)}),
+     * 不需要删除再添加
+     *
+     * @param childNode 主体子节点
+     */
+    public final void repositionChildNode(DataNode childNode) {
+        TreeLock lock = lockTree();
+        try {
+            if (mChildComparator == null) {
+                throw new IllegalStateException("child nodes are not sorted");
+            }
+            int position = positionInSegment(childNode, CHILD_POSITION_MIDDLE);
+            if (position < 0) {
+                throw new IllegalArgumentException("not a middle child node of this node");
+            }
+
+            //仍在前后兄弟节点之间则不需要移动
+            if ((position == 0 || mChildComparator.compare(mChildNodes.get(position - 1), childNode) <= 0)
+                    && (position == mChildNodes.size() - 1 || mChildComparator.compare(childNode, mChildNodes.get(position + 1)) <= 0)) {
+                return;
+            }
+
+            int headerSize = mHeaderChildNodes.size();
+            mChildNodes.remove(position);
+            if (mChildSizeSums != null) {
+                mChildSizeSums.onChildRemoved(this, headerSize + position);
+            }
+            int newPosition = sortedPosition(childNode);
+            mChildNodes.add(newPosition, childNode);
+            childNode.mSlot = headerSize + newPosition;
+            if (mChildSizeSums != null) {
+                mChildSizeSums.onChildAdded(this, headerSize + newPosition);
+            }
+            markChildCachesStale(null);
+
+            DataNode batchOwner = findBatchOwner();
+            if (batchOwner != null) {
+                batchOwner.markSizeDirty(this);
+                return;
+            }
+
+            notifyMoveToFlatIndex(childNode, headerSize + position);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 在主体子节点中二分查找插入位置,相等的节点插入到最后
+     */
+    private int sortedPosition(DataNode childNode) {
+        int low = 0;
+        int high = mChildNodes.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mChildComparator.compare(mChildNodes.get(middle), childNode) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean isSorted(Comparator<DataNode> comparator) {
+        for (int i = 1; i < mChildNodes.size(); ++i) {
+            if (comparator.compare(mChildNodes.get(i - 1), mChildNodes.get(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkUnsorted() {
+        if (mChildComparator != null) {
+            throw new IllegalStateException("child nodes are sorted by comparator, position can not be specified");
+        }
+    }
+
+    /**
+     * 设置子节点加载器,子节点在第一次展开({@link #setIsFolded(boolean)})
+     * 或第一次访问(getHeaderNodeSize,getChildNode等)时才创建,
+     * 加载前本节点在索引中相当于叶子节点.
+     * 通常与折叠状态一起使用,用于只展开一小部分的大型节点树.
+     * 加载前通过add方法直接添加的子节点排在加载的子节点之前
+     *
+     * @param childLoader
+     * @param declaredChildCount 已知的子节点个数,见{@link #getDeclaredChildCount()},未知则为-1
+     */
+    public final void setChildLoader(ChildLoader childLoader, int declaredChildCount) {
+        mChildLoader = childLoader;
+        mDeclaredChildCount = childLoader == null ? -1 : declaredChildCount;
+    }
+
+    /**
+     * 设置子节点加载器,子节点个数未知
+     *
+     * @param childLoader
+     */
+    public final void setChildLoader(ChildLoader childLoader) {
+        setChildLoader(childLoader, -1);
+    }
+
+    /**
+     * 子节点是否已加载,没有设置加载器的节点总是已加载的
+     *
+     * @return
+     */
+    public final boolean isChildrenLoaded() {
+        return mChildLoader == null;
+    }
+
+    /**
+     * 子节点个数,加载前返回声明的个数(未知为-1),不会触发加载.
+     * 用于在展开前判断节点是否有子节点
+     *
+     * @return
+     */
+    public final int getDeclaredChildCount() {
+        return mChildLoader == null ? getAllChildNodeSize() : mDeclaredChildCount;
+    }
+
+    /**
+     * 立即加载子节点,已加载则什么也不做.
+     * 加载在一次批量修改中完成,先辈节点的数量和索引只更新一次
+     */
+    public final void loadChildren() {
+        //已加载时不加锁,读取子节点的方法都会调用这里
+        if (mChildLoader == null) {
+            return;
+        }
+
+        TreeLock lock = lockTree();
+        try {
+            ChildLoader childLoader = mChildLoader;
+            if (childLoader == null) {
+                return;
+            }
+
+            //先清除,加载过程中访问子节点不会重复加载
+            mChildLoader = null;
+            mDeclaredChildCount = -1;
+
+            beginBatch();
+            try {
+                childLoader.loadChildren(this);
+            } finally {
+                commitBatch();
+            }
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 获取平坦索引(树结构对应的列表的索引)
+     *
+     * @return
+     */
+    public NodeFlatIndex getFlatIndex() {
+        return getFlatIndex(NodeFlatIndex.INDEX_MODE_MATERIALIZED);
+    }
+
+    /**
+     * 获取指定模式的平坦索引
+     *
+     * @param mode {@link NodeFlatIndex#INDEX_MODE_MATERIALIZED} 或 {@link NodeFlatIndex#INDEX_MODE_IMPLICIT}
+     * @return
+     */
+    public NodeFlatIndex getFlatIndex(int mode) {
+        TreeLock lock = lockTree();
+        try {
+            if (mNodeFlatIndex == null) {
+                mNodeFlatIndex = new NodeFlatIndex(this, mode);
+                invalidatePathIndexes();
+            } else if (mNodeFlatIndex.getMode() != mode) {
+                throw new IllegalStateException("NodeFlatIndex already created with mode " + mNodeFlatIndex.getMode());
+            }
+
+            return mNodeFlatIndex;
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 获取使用指定存储结构的物化索引,如{@link LinkedNodeStore#FACTORY}, {@link ChunkedNodeStore#FACTORY}.
+     * 索引已存在时直接返回已有的索引
+     *
+     * @param storeFactory
+     * @return
+     */
+    public NodeFlatIndex getFlatIndex(NodeStore.Factory storeFactory) {
+        TreeLock lock = lockTree();
+        try {
+            if (mNodeFlatIndex == null) {
+                mNodeFlatIndex = new NodeFlatIndex(this, NodeFlatIndex.INDEX_MODE_MATERIALIZED, storeFactory);
+                invalidatePathIndexes();
+            } else if (mNodeFlatIndex.getMode() != NodeFlatIndex.INDEX_MODE_MATERIALIZED) {
+                throw new IllegalStateException("NodeFlatIndex already created with mode " + mNodeFlatIndex.getMode());
+            }
+
+            return mNodeFlatIndex;
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 获取本节点树在最近的索引(本节点或先辈节点上的索引)中的视图,不创建新的索引,
+     * 见{@link NodeFlatIndex#getSubtreeView(DataNode)}
+     *
+     * @return
+     */
+    public FlatIndexView getFlatIndexView() {
+        NodeFlatIndex index;
+        TreeLock lock = lockTree();
+        try {
+            NodeFlatIndex[] indexes = pathIndexes();
+            if (indexes.length == 0) {
+                throw new IllegalStateException("no NodeFlatIndex on this node or its ancestors");
+            }
+            index = indexes[0];
+        } finally {
+            unlockTree(lock);
+        }
+        return index.getSubtreeView(this);
+    }
+
+    /**
+     * 开启并发模式,通常在根节点调用,对本节点树及其后来添加的节点生效.
+     * 并发模式下,对节点树的修改(增删节点,可见和折叠状态,批量修改)持有整棵树共用的写锁,
+     * 索引和可见索引的get,indexOf,size先不加锁地乐观读取,读取期间有修改时才退回读锁,
+     * 见{@link TreeLock}.
+     * 节点本身的访问方法(getChildNode等)不受保护.
+     * 已经在并发模式中则什么也不做
+     */
+    public final void enableConcurrentMode() {
+        if (findTreeLock() != null) {
+            return;
+        }
+
+        TreeLock lock = new TreeLock();
+        lock.lockWrite();
+        try {
+            mTreeLock = lock;
+            updateEffectiveLock(null);
+            lock.addStaleSubtree(this);
+        } finally {
+            lock.unlockWrite();
+        }
+    }
+
+    /**
+     * 并发模式下本节点所在树的锁,可以读取竞争统计
+     *
+     * @return 不在并发模式中返回null
+     */
+    public final TreeLock getTreeLock() {
+        return findTreeLock();
+    }
+
+    /**
+     * 本节点所在树的锁.开启了并发模式的节点树被添加到另一棵并发树中时,使用最上层的锁
+     *
+     * @return
+     */
+    TreeLock findTreeLock() {
+        return mEffectiveLock;
+    }
+
+    /**
+     * 父节点改变或开启并发模式后,重新计算本节点树中每个节点所用的锁.
+     * 节点所用的锁没有变化时其子节点也不变,不再向下,
+     * 所以不在并发模式中的节点树只检查本节点
+     *
+     * @param inheritedLock 父节点所用的锁
+     */
+    private void updateEffectiveLock(TreeLock inheritedLock) {
+        TreeLock lock = inheritedLock != null ? inheritedLock : mTreeLock;
+        if (lock == mEffectiveLock) {
+            return;
+        }
+
+        List<DataNode> stack = new ArrayList<DataNode>();
+        mEffectiveLock = lock;
+        stack.add(this);
+        while (!stack.isEmpty()) {
+            DataNode node = stack.remove(stack.size() - 1);
+            int count = node.getAllChildNodeSize();
+            for (int i = 0; i < count; ++i) {
+                DataNode child = node.getNodeAt(i);
+                TreeLock childLock = node.mEffectiveLock != null ? node.mEffectiveLock : child.mTreeLock;
+                if (childLock != child.mEffectiveLock) {
+                    child.mEffectiveLock = childLock;
+                    stack.add(child);
+                }
+            }
+        }
+    }
+
+    private TreeLock lockTree() {
+        TreeLock lock = findTreeLock();
+        if (lock != null) {
+            lock.lockWrite();
+        }
+        return lock;
+    }
+
+    private static void unlockTree(TreeLock lock) {
+        if (lock != null) {
+            lock.unlockWrite();
+        }
+    }
+
+    /**
+     * 并发模式下,本节点的子节点结构改变,释放写锁前重新计算缓存,
+     * 见{@link #refreshChildCaches()}
+     *
+     * @param addedSubtree 添加的节点树,其中每个节点都需要计算,没有则为null
+     */
+    private void markChildCachesStale(DataNode addedSubtree) {
+        TreeLock lock = findTreeLock();
+        if (lock != null) {
+            lock.addStaleNode(this);
+            if (addedSubtree != null) {
+                lock.addStaleSubtree(addedSubtree);
+            }
+        }
+    }
+
+    /**
+     * 重新编号子节点,计算子节点展开前缀和.
+     * 这些缓存平时在读取时延迟计算,并发模式下由写者提前算好,读者只读不写
+     */
+    void refreshChildCaches() {
+        int count = getAllChildNodeSize();
+        if (count == 0) {
+            return;
+        }
+
+        for (int i = 0; i < count; ++i) {
+            getNodeAt(i).mSlot = i;
+        }
+        getChildSizeSums().rebuild(this);
+    }
+
+    /**
+     * 对节点树中的每个节点{@link #refreshChildCaches()}
+     *
+     * @param subtree
+     */
+    static void refreshSubtreeCaches(DataNode subtree) {
+        List<DataNode> stack = new ArrayList<DataNode>();
+        stack.add(subtree);
+        while (!stack.isEmpty()) {
+            DataNode node = stack.remove(stack.size() - 1);
+            node.refreshChildCaches();
+            int count = node.getAllChildNodeSize();
+            for (int i = 0; i < count; ++i) {
+                stack.add(node.getNodeAt(i));
+            }
+        }
+    }
+
+    /**
+     * 将本节点树冻结成只用基本类型数组保存的形式,见{@link FrozenTree}.
+     * 返回的是当前状态的副本,之后对本节点树的修改不会反映到其中.
+     * 未加载的子节点(见{@link #setChildLoader(ChildLoader, int)})不会被加载
+     *
+     * @return
+     */
+    public FrozenTree<S> freeze() {
+        TreeLock lock = findTreeLock();
+        boolean readLocked = lock != null && !lock.isWriteLockedByCurrentThread();
+        int readMode = TreeLock.READ_NONE;
+        if (readLocked) {
+            lock.lockRead();
+            readMode = TreeLock.beginRead(TreeLock.READ_LOCKED);
+        }
+        try {
+            if (findBatchOwner() != null) {
+                throw new IllegalStateException("can not freeze during a batch");
+            }
+
+            return new FrozenTree<S>(this);
+        } finally {
+            if (readLocked) {
+                TreeLock.endRead(readMode);
+                lock.unlockRead();
+            }
+        }
+    }
+
+    /**
+     * 开始批量修改.
+     * 批量修改期间,对本节点树(包括本节点)的增删节点,可见和折叠状态的修改只改变树结构本身,
+     * 子孙节点数量的更新和索引的维护推迟到{@link #commitBatch()}时一次完成,
+     * 每个受影响的索引只更新一次.
+     * 批量修改期间不能修改本节点树之外的节点,也不能读取相关的索引.
+     * 可以嵌套调用,最外层提交时生效.
+     * 批量修改在发起的线程中进行和提交.
+     */
+    public final void beginBatch() {
+        //并发模式下批量修改期间一直持有写锁,在commitBatch时释放
+        lockTree();
+
+        DataNode batchOwner = findBatchOwner();
+        if (batchOwner != null) {
+            batchOwner.mBatch.mDepth++;
+            return;
+        }
+
+        mBatch = new MutationBatch(getFlatSize(), getVisibleFlatSize());
+        sOpenBatches.get()[0]++;
+    }
+
+    /**
+     * 提交批量修改,更新子孙节点数量和索引
+     */
+    public final void commitBatch() {
+        DataNode batchOwner = findBatchOwner();
+        if (batchOwner == null) {
+            throw new IllegalStateException("no batch in progress");
+        }
+
+        TreeLock lock = findTreeLock();
+        try {
+            MutationBatch batch = batchOwner.mBatch;
+            if (--batch.mDepth > 0) {
+                return;
+            }
+
+            batchOwner.mBatch = null;
+            sOpenBatches.get()[0]--;
+            batchOwner.applyBatch(batch);
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * 在批量修改中执行mutation,见{@link #beginBatch()}
+     *
+     * @param mutation
+     */
+    public final void mutate(Runnable mutation) {
+        beginBatch();
+        try {
+            mutation.run();
+        } finally {
+            commitBatch();
+        }
+    }
+
+    /**
+     * @param addedNode
+     * @param position  添加的孩子节点所在位置:头部.中部.尾部
      */
     protected void onChildNodeAdded(DataNode addedNode, int position) {
 
@@ -343,6 +1603,7 @@ public class DataNode<S> {
     void invalidateFlatIndex() {
         if (mNodeFlatIndex != null) {
             mNodeFlatIndex = null;
+            invalidatePathIndexes();
         }
     }
 
@@ -351,9 +1612,25 @@ public class DataNode<S> {
      * 直接子节点添加
      *
      * @param dataNode
-     * @param position
+     * @param position 添加的孩子节点所在位置:头部.中部.尾部
+     * @param slot     在全部子节点中的位置
      */
-    private void onInternalChildAdd(DataNode dataNode, int position) {
+    private void onInternalChildAdd(DataNode dataNode, int position, int slot) {
+        dataNode.mSlot = slot;
+        markChildCachesStale(dataNode);
+        //批量修改中也要维护子节点的位置,展开大小在提交时重新计算
+        if (mChildSizeSums != null) {
+            mChildSizeSums.onChildAdded(this, slot);
+        }
+
+        DataNode batchOwner = findBatchOwner();
+        if (batchOwner != null) {
+            //批量修改中,数量和索引在提交时统一更新
+            batchOwner.markSizeDirty(this);
+            onChildNodeAdded(dataNode, position);
+            return;
+        }
+
         /*
         更新受影响的先辈节点的状态
          */
@@ -364,17 +1641,10 @@ public class DataNode<S> {
         /*
         添加到index
          */
-        //TODO 效率优化
-        List<DataNode> nodes = new ArrayList<DataNode>();
-        nodes.addAll(mHeaderChildNodes);
-        nodes.addAll(mChildNodes);
-        nodes.addAll(mFooterChildNodes);
-        int index = nodes.indexOf(dataNode);
-
         DataNode preVisibleSibling = getPreVisibleSibling(dataNode);
         DataNode preSibling = null;
-        if (index > 0) {
-            preSibling = nodes.get(index - 1);
+        if (slot > 0) {
+            preSibling = getNodeAt(slot - 1);
         }
         addSubtreeToFlatIndex(preSibling, preVisibleSibling, dataNode);
 
@@ -382,48 +1652,115 @@ public class DataNode<S> {
         onChildNodeAdded(dataNode, position);
     }
 
-    private void onInternalChildRemove(DataNode dataNode, int position) {
-        //更新受影响的先辈节点的状态
-        int deltaDescendantSize = -dataNode.getFlatSize();
-        int deltaVisibleDescendantSize = -dataNode.getVisibleFlatSize();
-        notifyDescendantStateChange(deltaDescendantSize, deltaVisibleDescendantSize);
+    /**
+     * 将一组节点连续地添加到某部分(头部,中部,尾部)的position处.
+     * 先辈节点的数量只更新一次,节点树整体展开后一次性插入索引,
+     * {@link #onChildNodeAdded(DataNode, int)}对每个节点回调
+     *
+     * @param segmentNodes 所添加到的部分的子节点列表
+     * @param segment      添加的孩子节点所在位置:头部.中部.尾部
+     * @param segmentStart 该部分第一个子节点在全部子节点中的位置
+     * @param position     在该部分中的位置
+     * @param dataNodes
+     */
+    private void addNodes(List<DataNode> segmentNodes, int segment, int segmentStart, int position, Collection<? extends DataNode> dataNodes) {
+        if (position < 0 || position > segmentNodes.size()) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + segmentNodes.size());
+        }
+        if (dataNodes.isEmpty()) {
+            return;
+        }
+
+        List<DataNode> addedNodes = new ArrayList<DataNode>(dataNodes);
+        int slot = segmentStart + position;
+        int deltaDescendantSize = 0;
+        int deltaVisibleDescendantSize = 0;
+        for (int i = 0; i < addedNodes.size(); ++i) {
+            DataNode node = addedNodes.get(i);
+            node.setParentNode(this);
+            node.mSlot = slot + i;
+            deltaDescendantSize += node.getFlatSize();
+            deltaVisibleDescendantSize += node.getVisibleFlatSize();
+        }
+        segmentNodes.addAll(position, addedNodes);
+        TreeLock lock = findTreeLock();
+        if (lock != null) {
+            lock.addStaleNode(this);
+            for (int i = 0; i < addedNodes.size(); ++i) {
+                lock.addStaleSubtree(addedNodes.get(i));
+            }
+        }
+
+        if (mChildSizeSums != null) {
+            mChildSizeSums.onChildrenAdded(this, slot, addedNodes.size());
+        }
+
+        DataNode batchOwner = findBatchOwner();
+        if (batchOwner != null) {
+            batchOwner.markSizeDirty(this);
+        } else {
+            notifyDescendantStateChange(deltaDescendantSize, deltaVisibleDescendantSize);
+            addSubtreesToFlatIndex(addedNodes);
+        }
+
+        for (int i = 0; i < addedNodes.size(); ++i) {
+            onChildNodeAdded(addedNodes.get(i), segment);
+        }
+    }
 
+    private void onInternalChildRemove(DataNode dataNode, int position, int slot) {
+        markChildCachesStale(null);
+        if (mChildSizeSums != null) {
+            mChildSizeSums.onChildRemoved(this, slot);
+        }
 
-        //从index中删除
-        removeSubtreeFromFlatIndex(dataNode);
+        DataNode batchOwner = findBatchOwner();
+        if (batchOwner != null) {
+            //被删除的节点树离开了批量修改的范围,立即更新其数量
+            dataNode.recalculateDirtySize();
+            batchOwner.markSizeDirty(this);
+        } else {
+            //更新受影响的先辈节点的状态
+            int deltaDescendantSize = -dataNode.getFlatSize();
+            int deltaVisibleDescendantSize = -dataNode.getVisibleFlatSize();
+            notifyDescendantStateChange(deltaDescendantSize, deltaVisibleDescendantSize);
+        }
 
-        dataNode.mParentNode = null;
+        dataNode.setParentNode(null);
+        dataNode.mSlot = -1;
 
         //回掉给子类
         onChildNodeRemoved(dataNode,position);
     }
 
+    /**
+     * 前一个可见的兄弟节点,用子节点可见展开大小的树状数组查找,O(log k)
+     *
+     * @param dataNode
+     * @return
+     */
     private DataNode getPreVisibleSibling(DataNode dataNode) {
-        //TODO 效率优化
         DataNode parent = dataNode.getParentNode();
         assert parent != null;
 
-        List<DataNode> nodes = new ArrayList<DataNode>();
-        nodes.addAll(parent.mHeaderChildNodes);
-        nodes.addAll(parent.mChildNodes);
-        nodes.addAll(parent.mFooterChildNodes);
-
-        int index = nodes.indexOf(dataNode);
+        int preVisibleSlot = parent.getChildSizeSums().findPreVisibleSlot(parent, parent.slotOf(dataNode));
+        return preVisibleSlot < 0 ? null : parent.getNodeAt(preVisibleSlot);
+    }
 
-        DataNode preVisibleSibling = null;
-        for (int i = index - 1; i >= 0; i--) {
-            preVisibleSibling = nodes.get(i);
-            if (preVisibleSibling.isVisible()) {
-                break;
-            }
-            preVisibleSibling = null;
+    /**
+     * 直接子节点的展开大小改变
+     *
+     * @param childNode
+     * @param deltaFlatSize        子节点平坦大小的增减
+     * @param deltaVisibleFlatSize 子节点可见平坦大小的增减
+     */
+    private void notifyChildSizeChange(DataNode childNode, int deltaFlatSize, int deltaVisibleFlatSize) {
+        if (mChildSizeSums != null) {
+            mChildSizeSums.update(childNode, deltaFlatSize, deltaVisibleFlatSize);
         }
-
-        return preVisibleSibling;
+        notifyDescendantStateChange(deltaFlatSize, deltaVisibleFlatSize);
     }
 
-
-
     /**
      * 子孙节点改变，引起先辈节点与子孙节点有关的状态改变
      *
@@ -441,12 +1778,40 @@ public class DataNode<S> {
                 deltaVisibleDescendantSize = 0;
             }
 
-            if (deltaDescendantSize != 0 && deltaVisibleDescendantSize != 0)
-                mParentNode.notifyDescendantStateChange(deltaDescendantSize, deltaVisibleDescendantSize);
+            if (deltaDescendantSize != 0 || deltaVisibleDescendantSize != 0)
+                mParentNode.notifyChildSizeChange(this, deltaDescendantSize, deltaVisibleDescendantSize);
         }
     }
 
 
+    /**
+     * 子孙节点数量改变,沿先辈路径向上传递到ancestor为止,ancestor自身及其子节点展开前缀和不更新
+     *
+     * @param deltaDescendantSize        子孙节点数量的增减
+     * @param deltaVisibleDescendantSize 子孙节点可见数的增减
+     * @param ancestor                   先辈节点
+     * @return ancestor路径上的子节点的可见平坦大小的增减
+     */
+    private int notifyDescendantStateChangeUntil(int deltaDescendantSize, int deltaVisibleDescendantSize, DataNode ancestor) {
+        DataNode node = this;
+        while (true) {
+            node.mDescendantSize += deltaDescendantSize;
+            node.mDescendantVisibleSize += deltaVisibleDescendantSize;
+            if (deltaVisibleDescendantSize != 0 && (!node.mVisibility || node.mIsFolded)) {
+                deltaVisibleDescendantSize = 0;
+            }
+
+            DataNode parent = node.mParentNode;
+            if (parent == ancestor) {
+                return deltaVisibleDescendantSize;
+            }
+            if (parent.mChildSizeSums != null) {
+                parent.mChildSizeSums.update(node, deltaDescendantSize, deltaVisibleDescendantSize);
+            }
+            node = parent;
+        }
+    }
+
     /**
      * 节点可见状态改变，更新visibleFlatIndex
      *
@@ -455,12 +1820,13 @@ public class DataNode<S> {
      * @param currentVisibility
      */
     private void notifyVisibilityChangeToFlatIndex(DataNode preVisibleSibling, DataNode node, boolean currentVisibility) {
-        if (mNodeFlatIndex != null) {
-            mNodeFlatIndex.onNodeVisibilityChange(preVisibleSibling, node, currentVisibility);
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        NodeFlatIndex[] indexes = pathIndexes();
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i].onNodeVisibilityChange(preVisibleSibling, node, currentVisibility);
         }
-
-        if (mParentNode != null) {
-            mParentNode.notifyVisibilityChangeToFlatIndex(preVisibleSibling, node, currentVisibility);
+        if (sample != null && indexes.length > 0) {
+            sample.end(TreeMetrics.OP_VISIBILITY, node.getFlatSize());
         }
     }
 
@@ -471,31 +1837,245 @@ public class DataNode<S> {
      * @param currentFolded
      */
     private void notifyFoldStateChangeToFlatIndex(DataNode node, boolean currentFolded) {
-        if (mNodeFlatIndex != null) {
-            mNodeFlatIndex.onNodeFoldStateChange(node, currentFolded);
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        NodeFlatIndex[] indexes = pathIndexes();
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i].onNodeFoldStateChange(node, currentFolded);
+        }
+        if (sample != null && indexes.length > 0) {
+            sample.end(TreeMetrics.OP_FOLD, node.getDescendantVisibleSize());
         }
+    }
 
-        if (mParentNode != null) {
-            mParentNode.notifyFoldStateChangeToFlatIndex(node, currentFolded);
+    private void notifyMoveToFlatIndex(DataNode subtree, int fromSlot) {
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        NodeFlatIndex[] indexes = pathIndexes();
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i].moveSubtree(subtree, fromSlot);
+        }
+        if (sample != null && indexes.length > 0) {
+            sample.end(TreeMetrics.OP_MOVE, subtree.getFlatSize());
         }
     }
 
     private void addSubtreeToFlatIndex(DataNode preSibling, DataNode preVisibleSibling, DataNode subtree) {
-        if (mNodeFlatIndex != null) {
-            mNodeFlatIndex.addSubtree(preSibling, preVisibleSibling, subtree);
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        NodeFlatIndex[] indexes = pathIndexes();
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i].addSubtree(preSibling, preVisibleSibling, subtree);
         }
+        if (sample != null && indexes.length > 0) {
+            sample.end(TreeMetrics.OP_ADD, subtree.getFlatSize());
+        }
+    }
 
-        if (mParentNode != null)
-            mParentNode.addSubtreeToFlatIndex(preSibling, preVisibleSibling, subtree);
+    private void addSubtreesToFlatIndex(List<DataNode> subtrees) {
+        int flatSize = TreeMetrics.getInstalled() == null ? 0 : flatSizeOf(subtrees);
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        NodeFlatIndex[] indexes = pathIndexes();
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i].addSubtrees(subtrees);
+        }
+        if (sample != null && indexes.length > 0) {
+            sample.end(TreeMetrics.OP_ADD, flatSize);
+        }
     }
 
     private void removeSubtreeFromFlatIndex(DataNode subtree) {
-        if (mNodeFlatIndex != null) {
-            mNodeFlatIndex.removeFlatNodes(subtree);
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        NodeFlatIndex[] indexes = pathIndexes();
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i].removeFlatNodes(subtree);
+        }
+        if (sample != null && indexes.length > 0) {
+            sample.end(TreeMetrics.OP_REMOVE, subtree.getFlatSize());
+        }
+    }
+
+    private static int flatSizeOf(List<DataNode> subtrees) {
+        int flatSize = 0;
+        for (DataNode subtree : subtrees) {
+            flatSize += subtree.getFlatSize();
+        }
+        return flatSize;
+    }
+
+    /**
+     * 本节点及先辈节点上的索引,从下到上.
+     * 结果缓存在节点上,索引或父子关系不变时不再遍历先辈节点,
+     * 通常只有根节点有索引,通知的代价与节点深度无关.
+     * 只从本节点向上计算到第一个有缓存的先辈节点,路径上的节点都缓存结果,
+     * 所以有缓存的节点,其先辈节点也都有缓存
+     *
+     * @return
+     */
+    private NodeFlatIndex[] pathIndexes() {
+        if (mPathIndexes != null) {
+            return mPathIndexes;
+        }
+
+        List<DataNode> path = new ArrayList<DataNode>();
+        NodeFlatIndex[] indexes = NO_INDEXES;
+        DataNode node = this;
+        while (node != null) {
+            if (node.mPathIndexes != null) {
+                indexes = node.mPathIndexes;
+                break;
+            }
+            path.add(node);
+            node = node.mParentNode;
+        }
+        TreeMetrics.addWalkSteps(path.size());
+
+        for (int i = path.size() - 1; i >= 0; --i) {
+            node = path.get(i);
+            if (node.mNodeFlatIndex != null) {
+                NodeFlatIndex[] nodeIndexes = new NodeFlatIndex[indexes.length + 1];
+                nodeIndexes[0] = node.mNodeFlatIndex;
+                System.arraycopy(indexes, 0, nodeIndexes, 1, indexes.length);
+                indexes = nodeIndexes;
+            }
+            node.mPathIndexes = indexes;
+        }
+        return indexes;
+    }
+
+    /**
+     * 父子关系改变前,本节点的索引创建或销毁后调用,清除本节点树中的缓存,不影响其他节点.
+     * 没有缓存的节点,其子孙节点也没有缓存,不需要继续向下,
+     * 所以只访问有缓存的节点及其子节点,而缓存都是之前通知时计算的
+     */
+    private void invalidatePathIndexes() {
+        if (mPathIndexes == null) {
+            return;
+        }
+
+        List<DataNode> stack = new ArrayList<DataNode>();
+        stack.add(this);
+        while (!stack.isEmpty()) {
+            DataNode node = stack.remove(stack.size() - 1);
+            node.mPathIndexes = null;
+            int count = node.getAllChildNodeSize();
+            for (int i = 0; i < count; ++i) {
+                DataNode child = node.getNodeAt(i);
+                if (child.mPathIndexes != null) {
+                    stack.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * 正在进行的批量修改的发起节点(本节点或先辈节点).
+     * 批量修改期间不能在其他线程修改本节点树,所以当前线程没有发起批量修改时直接返回null
+     *
+     * @return 不在批量修改中则返回null
+     */
+    private DataNode findBatchOwner() {
+        if (sOpenBatches.get()[0] == 0) {
+            return null;
+        }
+
+        DataNode node = this;
+        while (node != null) {
+            if (node.mBatch != null) {
+                return node;
+            }
+            node = node.mParentNode;
+        }
+        return null;
+    }
+
+    /**
+     * 批量修改中,标记dataNode直到本节点(批量修改的发起节点)的路径上的节点数量需要重新计算,
+     * 遇到已标记的节点即停止
+     *
+     * @param dataNode
+     */
+    private void markSizeDirty(DataNode dataNode) {
+        DataNode node = dataNode;
+        while (node != null && !node.mSizeDirty) {
+            node.mSizeDirty = true;
+            if (node == this) {
+                break;
+            }
+
+            if (node.mNodeFlatIndex != null) {
+                //数量在提交前不会改变,此时记录的是修改前的大小
+                mBatch.mIndexes.put(node.mNodeFlatIndex, new int[]{node.getFlatSize(), node.getVisibleFlatSize()});
+            }
+            node = node.mParentNode;
+        }
+    }
+
+    /**
+     * 自下而上重新计算被标记节点的子孙节点数量
+     */
+    private void recalculateDirtySize() {
+        if (!mSizeDirty) {
+            return;
+        }
+
+        int descendantSize = 0;
+        int descendantVisibleSize = 0;
+        int count = getAllChildNodeSize();
+        for (int i = 0; i < count; ++i) {
+            DataNode node = getNodeAt(i);
+            node.recalculateDirtySize();
+            descendantSize += node.getFlatSize();
+            descendantVisibleSize += node.getVisibleFlatSize();
         }
 
-        if (mParentNode != null)
-            mParentNode.removeSubtreeFromFlatIndex(subtree);
+        mDescendantSize = descendantSize;
+        mDescendantVisibleSize = descendantVisibleSize;
+        if (mChildSizeSums != null) {
+            mChildSizeSums.invalidate();
+            markChildCachesStale(null);
+        }
+        mSizeDirty = false;
+    }
+
+    /**
+     * 提交批量修改:重新计算数量,将本节点的大小变化传递给先辈节点,
+     * 本节点树内的索引,以及本节点和先辈节点的索引中,被修改的节点树对应的区间整体替换
+     *
+     * @param batch
+     */
+    private void applyBatch(MutationBatch batch) {
+        if (!mSizeDirty) {
+            //没有任何修改
+            return;
+        }
+
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        recalculateDirtySize();
+
+        if (mParentNode != null) {
+            int deltaFlatSize = getFlatSize() - batch.mFlatSize;
+            int deltaVisibleFlatSize = getVisibleFlatSize() - batch.mVisibleFlatSize;
+            if (deltaFlatSize != 0 || deltaVisibleFlatSize != 0) {
+                mParentNode.notifyChildSizeChange(this, deltaFlatSize, deltaVisibleFlatSize);
+            }
+        }
+
+        int indexCount = batch.mIndexes.size();
+        for (Map.Entry<NodeFlatIndex, int[]> entry : batch.mIndexes.entrySet()) {
+            NodeFlatIndex index = entry.getKey();
+            int[] oldSizes = entry.getValue();
+            index.replaceSubtree(index.getRootNode(), oldSizes[0], oldSizes[1]);
+        }
+
+        DataNode node = this;
+        while (node != null) {
+            if (node.mNodeFlatIndex != null) {
+                node.mNodeFlatIndex.replaceSubtree(this, batch.mFlatSize, batch.mVisibleFlatSize);
+                indexCount++;
+            }
+            node = node.mParentNode;
+        }
+        if (sample != null && indexCount > 0) {
+            sample.end(TreeMetrics.OP_BATCH_COMMIT, getFlatSize());
+        }
     }
 
     public static int calculateVisibleFlatSize(boolean visibility, boolean isFolded, int descendantVisibleSize){
@@ -508,4 +2088,17 @@ public class DataNode<S> {
         }
     }
 
+    private static final class MutationBatch {
+        int mDepth = 1;
+        final int mFlatSize;//开始时发起节点的平坦大小
+        final int mVisibleFlatSize;//开始时发起节点的可见平坦大小
+        //发起节点树内受影响的索引,及其根节点修改前的平坦大小和可见平坦大小
+        final Map<NodeFlatIndex, int[]> mIndexes = new LinkedHashMap<NodeFlatIndex, int[]>();
+
+        MutationBatch(int flatSize, int visibleFlatSize) {
+            mFlatSize = flatSize;
+            mVisibleFlatSize = visibleFlatSize;
+        }
+    }
+
 }
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 过滤索引:平坦索引中符合条件的节点及其先辈节点,按平坦索引的顺序排列,
+ * 见{@link NodeFlatIndex#getFilteredIndex(NodeFilter)}.
+ * 与平坦索引一样包含不可见和折叠的节点,不受可见和折叠状态影响.
+ * 为每个包含在过滤索引中的节点记录其子树中包含的节点数,不包含的子树没有记录,
+ * 按位置查找和遍历时查一次表即可跳过.
+ * 包含的节点还在需要时为子节点包含的数量建立树状数组(同{@link ChildSizeSums}),
+ * 子节点包含的数量改变时单点更新,子节点增删或移动后重新构建.
+ * 增删节点时只计算被增删的子树并沿先辈节点更新数量;
+ * 条件变严格时只重新判断当前包含的节点,变宽松时已符合的节点不再判断.
+ * 按位置访问和查找位置时从根节点逐层查找,O(depth * log(子节点数));
+ * 与上次访问的位置接近时(如顺序滚动)从上次的节点走过去.
+ * 只能在修改节点树的线程使用,不支持并发模式的乐观读
+ */
+public final class FilteredFlatIndex {
+    private static final int MAX_FINGER_DISTANCE = 64;
+
+    private final NodeFlatIndex mFlatIndex;
+    private NodeFilter mFilter;
+    private Map<DataNode, Entry> mEntries = new IdentityHashMap<DataNode, Entry>();
+    private boolean mInvalidated = false;
+
+    /*
+    上次访问的节点及其相对根节点的偏移量,过滤结果改变时清除
+     */
+    private DataNode mFingerNode;
+    private int mFingerOffset;
+
+    FilteredFlatIndex(NodeFlatIndex flatIndex, NodeFilter filter) {
+        mFlatIndex = flatIndex;
+        mFilter = filter;
+        build(flatIndex.getRootNode());
+    }
+
+    public NodeFilter getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * 更换过滤条件.
+     * 已知新条件比原条件更严格(如搜索词变长)时传{@link NodeFlatIndex#FILTER_NARROWED},
+     * 只重新判断当前包含的节点;
+     * 更宽松时传{@link NodeFlatIndex#FILTER_WIDENED},已符合的节点不再判断;
+     * 否则传{@link NodeFlatIndex#FILTER_CHANGED},重新判断所有节点
+     *
+     * @param filter
+     * @param change
+     */
+    public void setFilter(NodeFilter filter, int change) {
+        checkValid();
+        mFilter = filter;
+        mFingerNode = null;
+
+        DataNode rootNode = mFlatIndex.getRootNode();
+        switch (change) {
+            case NodeFlatIndex.FILTER_NARROWED:
+                if (mEntries.containsKey(rootNode)) {
+                    narrow(rootNode);
+                }
+                break;
+            case NodeFlatIndex.FILTER_WIDENED:
+                widen(rootNode);
+                break;
+            case NodeFlatIndex.FILTER_CHANGED:
+                mEntries.clear();
+                build(rootNode);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown filter change: " + change);
+        }
+    }
+
+    /**
+     * 节点的数据源改变后重新判断该节点是否符合条件
+     *
+     * @param dataNode
+     */
+    public void update(DataNode dataNode) {
+        checkValid();
+        Entry entry = mEntries.get(dataNode);
+        boolean matched = entry != null && entry.match;
+        boolean match = mFilter.accept(dataNode);
+        if (matched == match) {
+            return;
+        }
+
+        mFingerNode = null;
+        int oldSize = sizeOf(entry);
+        int childSize = oldSize == 0 ? 0 : oldSize - 1;
+        int newSize = setEntry(dataNode, entry, childSize, match);
+        propagate(dataNode, newSize - oldSize);
+    }
+
+    /**
+     * 节点本身是否符合条件(而不是因为子孙节点符合条件才包含在过滤索引中),可用于高亮显示
+     *
+     * @param dataNode
+     * @return
+     */
+    public boolean isMatch(DataNode dataNode) {
+        Entry entry = mEntries.get(dataNode);
+        return entry != null && entry.match;
+    }
+
+    public DataNode get(int position) {
+        checkValid();
+        int size = size();
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size);
+        }
+
+        int offset = isRootIgnored() ? position + 1 : position;
+        DataNode node;
+        if (mFingerNode != null && Math.abs(offset - mFingerOffset) <= MAX_FINGER_DISTANCE) {
+            node = mFingerNode;
+            for (int i = mFingerOffset; i < offset; ++i) {
+                node = nextNode(node);
+            }
+            for (int i = mFingerOffset; i > offset; --i) {
+                node = previousNode(node);
+            }
+        } else {
+            node = findNode(offset);
+        }
+
+        mFingerNode = node;
+        mFingerOffset = offset;
+        return node;
+    }
+
+    /**
+     * 将[from, from + count)的节点依次写入out[offset, offset + count),
+     * 定位起点后沿树结构逐个走到下一个包含的节点
+     *
+     * @param from
+     * @param count
+     * @param out
+     * @param offset 在out中的开始位置
+     */
+    public void getRange(int from, int count, DataNode[] out, int offset) {
+        checkValid();
+        int size = size();
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + (from + count) + "), Size: " + size);
+        }
+        if (offset < 0 || offset + count > out.length) {
+            throw new ArrayIndexOutOfBoundsException("Range: [" + offset + ", " + (offset + count) + "), Length: " + out.length);
+        }
+        if (count == 0) {
+            return;
+        }
+
+        DataNode node = get(from);
+        out[offset] = node;
+        for (int i = 1; i < count; ++i) {
+            node = nextNode(node);
+            out[offset + i] = node;
+        }
+    }
+
+    /**
+     * @param dataNode
+     * @return 节点不在过滤索引中返回-1
+     */
+    public int indexOf(DataNode dataNode) {
+        checkValid();
+        if (!mEntries.containsKey(dataNode)) {
+            return -1;
+        }
+
+        //批量修改中删除的节点可能仍有记录,先确认在树中
+        DataNode rootNode = mFlatIndex.getRootNode();
+        for (DataNode node = dataNode; node != rootNode; node = node.getParentNode()) {
+            if (node.getParentNode() == null) {
+                return -1;
+            }
+        }
+
+        int offset = 0;
+        for (DataNode node = dataNode; node != rootNode; node = node.getParentNode()) {
+            DataNode parent = node.getParentNode();
+            offset += 1 + ChildSizeSums.prefix(childSums(parent, mEntries.get(parent)), parent.slotOf(node));
+        }
+        return isRootIgnored() ? offset - 1 : offset;
+    }
+
+    public int size() {
+        checkValid();
+        int size = sizeOf(mEntries.get(mFlatIndex.getRootNode()));
+        return size > 0 && mFlatIndex.isIgnoreRoot() ? size - 1 : size;
+    }
+
+    /**
+     * 停止维护过滤索引
+     */
+    public void invalidate() {
+        if (mInvalidated) {
+            return;
+        }
+        mFlatIndex.onFilteredIndexInvalidated(this);
+        mEntries.clear();
+        mFingerNode = null;
+        mInvalidated = true;
+    }
+
+    /*
+    以下由NodeFlatIndex在树结构改变时调用
+     */
+
+    /**
+     * 节点树已添加到树中
+     */
+    void onSubtreeAdded(DataNode subtree) {
+        mFingerNode = null;
+        onChildrenChanged(subtree.getParentNode());
+        propagate(subtree, build(subtree));
+    }
+
+    /**
+     * 节点树将从树中删除,调用时仍在树中
+     */
+    void onSubtreeRemoved(DataNode subtree) {
+        onChildrenChanged(subtree.getParentNode());//之后的兄弟节点位置改变
+        Entry entry = mEntries.get(subtree);
+        if (entry == null) {
+            return;
+        }
+
+        mFingerNode = null;
+        int size = entry.size;
+        removeEntries(subtree);
+        propagate(subtree, -size);
+    }
+
+    /**
+     * 节点树在兄弟节点间移动,包含的数量不变
+     */
+    void onSubtreeMoved(DataNode subtree) {
+        mFingerNode = null;
+        onChildrenChanged(subtree.getParentNode());
+    }
+
+    /**
+     * 节点树将移动到索引内的另一个父节点下,调用时仍在原位置.
+     * 保留节点树内的记录,只从原先辈节点中减去
+     */
+    void onSubtreeDetached(DataNode subtree) {
+        mFingerNode = null;
+        onChildrenChanged(subtree.getParentNode());
+        propagate(subtree, -sizeOf(mEntries.get(subtree)));
+    }
+
+    /**
+     * 节点树已移动到新的位置,加到新先辈节点中
+     */
+    void onSubtreeAttached(DataNode subtree) {
+        mFingerNode = null;
+        onChildrenChanged(subtree.getParentNode());
+        propagate(subtree, sizeOf(mEntries.get(subtree)));
+    }
+
+    /**
+     * 节点树被批量修改,重新计算
+     */
+    void onSubtreeReplaced(DataNode subtree) {
+        mFingerNode = null;
+        int oldSize = sizeOf(mEntries.get(subtree));
+        propagate(subtree, build(subtree) - oldSize);
+
+        //批量修改中删除的节点没有经过onSubtreeRemoved,记录过多时清除
+        DataNode rootNode = mFlatIndex.getRootNode();
+        if (mEntries.size() > 2 * sizeOf(mEntries.get(rootNode)) + 16) {
+            Map<DataNode, Entry> entries = new IdentityHashMap<DataNode, Entry>();
+            if (mEntries.containsKey(rootNode)) {
+                copyEntries(rootNode, entries);
+            }
+            mEntries = entries;
+        }
+    }
+
+    /**
+     * 重新判断节点树中的所有节点
+     *
+     * @return 节点树中包含的节点数
+     */
+    private int build(DataNode node) {
+        int childSize = 0;
+        int count = node.getAllChildNodeSize();
+        for (int slot = 0; slot < count; ++slot) {
+            childSize += build(node.getNodeAt(slot));
+        }
+        return setEntry(node, clearChildSums(mEntries.get(node)), childSize, mFilter.accept(node));
+    }
+
+    /**
+     * 条件变严格:只有当前包含的节点可能仍然包含
+     */
+    private int narrow(DataNode node) {
+        int childSize = 0;
+        int count = node.getAllChildNodeSize();
+        for (int slot = 0; slot < count; ++slot) {
+            DataNode child = node.getNodeAt(slot);
+            if (mEntries.containsKey(child)) {
+                childSize += narrow(child);
+            }
+        }
+
+        Entry entry = clearChildSums(mEntries.get(node));
+        return setEntry(node, entry, childSize, entry.match && mFilter.accept(node));
+    }
+
+    /**
+     * 条件变宽松:已符合的节点仍然符合
+     */
+    private int widen(DataNode node) {
+        int childSize = 0;
+        int count = node.getAllChildNodeSize();
+        for (int slot = 0; slot < count; ++slot) {
+            childSize += widen(node.getNodeAt(slot));
+        }
+
+        Entry entry = clearChildSums(mEntries.get(node));
+        return setEntry(node, entry, childSize, entry != null && entry.match || mFilter.accept(node));
+    }
+
+    /**
+     * 节点符合条件或有包含的子孙节点时记录,否则删除记录
+     *
+     * @return 节点树中包含的节点数
+     */
+    private int setEntry(DataNode node, Entry entry, int childSize, boolean match) {
+        if (childSize == 0 && !match) {
+            if (entry != null) {
+                mEntries.remove(node);
+            }
+            return 0;
+        }
+
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(node, entry);
+        }
+        entry.size = childSize + 1;
+        entry.match = match;
+        return entry.size;
+    }
+
+    /**
+     * 节点树中包含的节点数改变了delta,更新先辈节点,
+     * 先辈节点没有其他包含的子孙节点且本身不符合条件时不再包含
+     */
+    private void propagate(DataNode subtree, int delta) {
+        DataNode rootNode = mFlatIndex.getRootNode();
+        DataNode node = subtree;
+        while (delta != 0 && node != rootNode) {
+            DataNode child = node;
+            node = node.getParentNode();
+            Entry entry = mEntries.get(node);
+            if (entry != null && entry.childSums != null) {
+                int[] sums = entry.childSums;
+                for (int i = node.slotOf(child) + 1; i < sums.length; i += i & -i) {
+                    sums[i] += delta;
+                }
+            }
+            int oldSize = sizeOf(entry);
+            int childSize = (oldSize == 0 ? 0 : oldSize - 1) + delta;
+            int newSize = setEntry(node, entry, childSize, entry != null && entry.match);//不包含的节点一定不符合条件
+            delta = newSize - oldSize;
+        }
+    }
+
+    private void removeEntries(DataNode node) {
+        mEntries.remove(node);
+        int count = node.getAllChildNodeSize();
+        for (int slot = 0; slot < count; ++slot) {
+            DataNode child = node.getNodeAt(slot);
+            if (mEntries.containsKey(child)) {
+                removeEntries(child);
+            }
+        }
+    }
+
+    private void copyEntries(DataNode node, Map<DataNode, Entry> entries) {
+        entries.put(node, mEntries.get(node));
+        int count = node.getAllChildNodeSize();
+        for (int slot = 0; slot < count; ++slot) {
+            DataNode child = node.getNodeAt(slot);
+            if (mEntries.containsKey(child)) {
+                copyEntries(child, entries);
+            }
+        }
+    }
+
+    /**
+     * 子节点增删或移动后,其子节点包含数量的树状数组失效
+     */
+    private void onChildrenChanged(DataNode parent) {
+        if (parent != null) {
+            clearChildSums(mEntries.get(parent));
+        }
+    }
+
+    private static Entry clearChildSums(Entry entry) {
+        if (entry != null) {
+            entry.childSums = null;
+        }
+        return entry;
+    }
+
+    /**
+     * 包含的节点的子节点包含数量的树状数组,失效时重新构建
+     *
+     * @param parent
+     * @param entry  parent的记录,不为空
+     * @return 下标从1开始,长度为子节点个数 + 1
+     */
+    private int[] childSums(DataNode parent, Entry entry) {
+        int[] sums = entry.childSums;
+        if (sums == null) {
+            int count = parent.getAllChildNodeSize();
+            sums = new int[count + 1];
+            for (int i = 1; i <= count; ++i) {
+                sums[i] = sizeOf(mEntries.get(parent.getNodeAt(i - 1)));
+            }
+            for (int i = 1; i <= count; ++i) {
+                int j = i + (i & -i);
+                if (j <= count) {
+                    sums[j] += sums[i];
+                }
+            }
+            entry.childSums = sums;
+        }
+        return sums;
+    }
+
+    /**
+     * 前offset个包含的节点之后的那个子节点,即第offset + 1个包含的子孙节点所在的子节点
+     *
+     * @return 没有则返回-1
+     */
+    private static int searchChild(int[] sums, int offset) {
+        return ChildSizeSums.search(sums, sums.length - 1, offset);
+    }
+
+    /**
+     * 从根节点向下查找偏移量(相对根节点)对应的节点,跳过不包含的子树
+     */
+    private DataNode findNode(int offset) {
+        DataNode node = mFlatIndex.getRootNode();
+        while (offset > 0) {
+            offset--;//跳过当前节点本身
+            int[] sums = childSums(node, mEntries.get(node));
+            int slot = searchChild(sums, offset);
+            offset -= ChildSizeSums.prefix(sums, slot);
+            node = node.getNodeAt(slot);
+        }
+        return node;
+    }
+
+    /**
+     * 先序的下一个包含的节点
+     */
+    private DataNode nextNode(DataNode dataNode) {
+        DataNode child = includedChildAtOrAfter(dataNode, 0);
+        if (child != null) {
+            return child;
+        }
+
+        DataNode rootNode = mFlatIndex.getRootNode();
+        DataNode node = dataNode;
+        while (node != rootNode) {
+            DataNode parent = node.getParentNode();
+            DataNode sibling = includedChildAtOrAfter(parent, parent.slotOf(node) + 1);
+            if (sibling != null) {
+                return sibling;
+            }
+            node = parent;
+        }
+        throw new IllegalStateException("filtered index is out of date");
+    }
+
+    /**
+     * 先序的上一个包含的节点
+     */
+    private DataNode previousNode(DataNode dataNode) {
+        DataNode parent = dataNode.getParentNode();
+        int[] sums = childSums(parent, mEntries.get(parent));
+        int sizeBefore = ChildSizeSums.prefix(sums, parent.slotOf(dataNode));
+        if (sizeBefore == 0) {
+            return parent;
+        }
+
+        //前一个包含的兄弟节点树的最后一个节点
+        DataNode node = parent.getNodeAt(searchChild(sums, sizeBefore - 1));
+        DataNode last = lastIncludedChild(node);
+        while (last != null) {
+            node = last;
+            last = lastIncludedChild(node);
+        }
+        return node;
+    }
+
+    private DataNode includedChildAtOrAfter(DataNode parent, int slot) {
+        Entry entry = mEntries.get(parent);
+        if (entry == null) {
+            return null;
+        }
+
+        int[] sums = childSums(parent, entry);
+        int childSlot = searchChild(sums, ChildSizeSums.prefix(sums, slot));
+        return childSlot < 0 ? null : parent.getNodeAt(childSlot);
+    }
+
+    private DataNode lastIncludedChild(DataNode parent) {
+        Entry entry = mEntries.get(parent);
+        if (entry == null) {
+            return null;
+        }
+
+        int[] sums = childSums(parent, entry);
+        int size = ChildSizeSums.prefix(sums, sums.length - 1);
+        return size == 0 ? null : parent.getNodeAt(searchChild(sums, size - 1));
+    }
+
+    private boolean isRootIgnored() {
+        return mFlatIndex.isIgnoreRoot() && mEntries.containsKey(mFlatIndex.getRootNode());
+    }
+
+    private void checkValid() {
+        if (mInvalidated) {
+            throw new IllegalStateException("FilteredFlatIndex is invalidated");
+        }
+    }
+
+    private static int sizeOf(Entry entry) {
+        return entry == null ? 0 : entry.size;
+    }
+
+    private static final class Entry {
+        int size;//子树中包含的节点数,包括节点本身
+        boolean match;//节点本身符合条件
+        int[] childSums;//子节点包含数量的树状数组,为null时需要重新构建
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 子树视图:先辈节点的平坦索引中子树对应的一段,见{@link NodeFlatIndex#getSubtreeView(DataNode)}.
+ * 子树在先序中是连续的,视图只记录子树的根节点,读取时由其在索引中的位置和子树大小算出范围,
+ * 不复制索引,修改节点树时也不需要维护.
+ * 与在子树上调用{@link DataNode#getFlatIndex()}创建的独立索引相比,不占用额外内存,
+ * 但按位置读取多一次O(depth)的定位.
+ * 子树从索引中删除后视图为空;可见视图在子树不可见(自身或先辈节点隐藏,或先辈节点折叠)时为空.
+ * 视图没有改变监听,需要时监听所在的索引
+ */
+public final class FlatIndexView {
+    private final NodeFlatIndex mIndex;
+    private final DataNode mSubtree;
+    private final VisibleView mVisibleView = new VisibleView();
+
+    private boolean mIgnoreRoot = false;//是否忽略子树的根节点
+
+    FlatIndexView(NodeFlatIndex index, DataNode subtree) {
+        mIndex = index;
+        mSubtree = subtree;
+    }
+
+    /**
+     * 视图所在的索引
+     *
+     * @return
+     */
+    public NodeFlatIndex getFlatIndex() {
+        return mIndex;
+    }
+
+    public DataNode getSubtreeRoot() {
+        return mSubtree;
+    }
+
+    public DataNode get(int position) {
+        return mIndex.readSubtreeNode(false, mSubtree, mIgnoreRoot ? position + 1 : position);
+    }
+
+    /**
+     * @param dataNode
+     * @return 不在子树中返回-1
+     */
+    public int indexOf(DataNode dataNode) {
+        int index = mIndex.readSubtreeIndexOf(false, mSubtree, dataNode);
+        return mIgnoreRoot && index >= 0 ? index - 1 : index;
+    }
+
+    public int size() {
+        int size = mIndex.readSubtreeSize(false, mSubtree);
+        return mIgnoreRoot && size > 0 ? size - 1 : size;
+    }
+
+    /**
+     * 获取[from, from + count)的节点
+     *
+     * @param from
+     * @param count
+     * @return
+     */
+    public DataNode[] getRange(int from, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+        DataNode[] out = new DataNode[count];
+        getRange(from, count, out, 0);
+        return out;
+    }
+
+    /**
+     * 将[from, from + count)的节点依次写入out[offset, offset + count),
+     * 见{@link NodeFlatIndex#getRange(int, int, DataNode[], int)}
+     *
+     * @param from
+     * @param count
+     * @param out
+     * @param offset 在out中的开始位置
+     */
+    public void getRange(int from, int count, DataNode[] out, int offset) {
+        mIndex.readSubtreeRange(false, mSubtree, mIgnoreRoot ? from + 1 : from, count, out, offset);
+    }
+
+    /**
+     * 获取可见视图,即可见索引中子树对应的一段
+     *
+     * @return
+     */
+    public VisibleView getVisibleView() {
+        return mVisibleView;
+    }
+
+    /**
+     * 是否忽略子树的根节点,同时作用于可见视图.
+     * 根节点作为详情的标题单独显示时使用
+     *
+     * @param ignoreRoot
+     */
+    public void ignoreRoot(boolean ignoreRoot) {
+        mIgnoreRoot = ignoreRoot;
+    }
+
+    public boolean isIgnoreRoot() {
+        return mIgnoreRoot;
+    }
+
+    public class VisibleView {
+
+        private VisibleView() {
+
+        }
+
+        public DataNode get(int position) {
+            return mIndex.readSubtreeNode(true, mSubtree, mIgnoreRoot ? position + 1 : position);
+        }
+
+        /**
+         * @param dataNode
+         * @return 不在子树中或不可见返回-1
+         */
+        public int indexOf(DataNode dataNode) {
+            int index = mIndex.readSubtreeIndexOf(true, mSubtree, dataNode);
+            return mIgnoreRoot && index >= 0 ? index - 1 : index;
+        }
+
+        public int size() {
+            int size = mIndex.readSubtreeSize(true, mSubtree);
+            return mIgnoreRoot && size > 0 ? size - 1 : size;
+        }
+
+        public DataNode[] getRange(int from, int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("count < 0: " + count);
+            }
+            DataNode[] out = new DataNode[count];
+            getRange(from, count, out, 0);
+            return out;
+        }
+
+        public void getRange(int from, int count, DataNode[] out, int offset) {
+            mIndex.readSubtreeRange(true, mSubtree, mIgnoreRoot ? from + 1 : from, count, out, offset);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * DataNode节点树的冻结形式,见{@link DataNode#freeze()}.
+ * 节点按先序(即平坦索引的顺序)编号,节点编号就是它在平坦索引中的位置(不忽略根节点时),
+ * 结构只用几个基本类型数组保存:父节点,子树大小,所属部分(头部,中部,尾部),
+ * 折叠和隐藏状态用BitSet保存,数据源保存在一个Object[]中.
+ * 第一个子节点和下一个兄弟节点由先序编号和子树大小算出,不单独保存.
+ * 结构不能修改,只能修改折叠和可见状态,可见索引在下次查询时重新计算.
+ * 用于节点很多,很少修改,更在意内存占用的场景.
+ */
+public final class FrozenTree<S> {
+    private final int mSize;
+    private final Object[] mSources;
+    private final int[] mParents;
+    private final int[] mFlatSizes;//子树大小,包括节点本身
+    private final byte[] mSegments;//在父节点中所属的部分,根节点为0
+    private final BitSet mFolded;
+    private final BitSet mHidden;
+
+    private boolean mIgnoreRoot = false;//是否忽略根节点的存在
+
+    private int[] mVisibleNodes;//可见索引,按先序递增
+    private int mVisibleSize;
+    private boolean mVisibleDirty = true;
+
+    FrozenTree(DataNode rootNode) {
+        mSize = rootNode.getFlatSize();
+        mSources = new Object[mSize];
+        mParents = new int[mSize];
+        mFlatSizes = new int[mSize];
+        mSegments = new byte[mSize];
+        mFolded = new BitSet(mSize);
+        mHidden = new BitSet(mSize);
+
+        //先序遍历,子节点倒序入栈
+        List<DataNode> nodeStack = new ArrayList<DataNode>();
+        List<Integer> parentStack = new ArrayList<Integer>();
+        nodeStack.add(rootNode);
+        parentStack.add(-1);
+        int id = 0;
+        while (!nodeStack.isEmpty()) {
+            DataNode node = nodeStack.remove(nodeStack.size() - 1);
+            int parent = parentStack.remove(parentStack.size() - 1);
+
+            mSources[id] = node.getSource();
+            mParents[id] = parent;
+            mFlatSizes[id] = node.getFlatSize();
+            mFolded.set(id, node.isFold());
+            mHidden.set(id, !node.isVisible());
+
+            int headerSize = node.mHeaderChildNodes.size();
+            int middleSize = node.mChildNodes.size();
+            for (int slot = node.getAllChildNodeSize() - 1; slot >= 0; --slot) {
+                nodeStack.add(node.getNodeAt(slot));
+                parentStack.add(id);
+            }
+            //子节点的编号由前面兄弟节点的子树大小算出,在这里记录所属部分
+            for (int slot = 0, childId = id + 1; slot < node.getAllChildNodeSize(); ++slot) {
+                DataNode child = node.getNodeAt(slot);
+                if (slot < headerSize) {
+                    mSegments[childId] = DataNode.CHILD_POSITION_HEADER;
+                } else if (slot < headerSize + middleSize) {
+                    mSegments[childId] = DataNode.CHILD_POSITION_MIDDLE;
+                } else {
+                    mSegments[childId] = DataNode.CHILD_POSITION_FOOTER;
+                }
+                childId += child.getFlatSize();
+            }
+            ++id;
+        }
+    }
+
+    /**
+     * 节点总数,即平坦大小
+     *
+     * @return
+     */
+    public int getNodeCount() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    public S getSource(int node) {
+        return (S) mSources[node];
+    }
+
+    /**
+     * @param node
+     * @return 根节点返回-1
+     */
+    public int getParentNode(int node) {
+        return mParents[node];
+    }
+
+    /**
+     * @param node
+     * @return 没有子节点返回-1
+     */
+    public int getFirstChildNode(int node) {
+        return mFlatSizes[node] > 1 ? node + 1 : -1;
+    }
+
+    /**
+     * @param node
+     * @return 没有下一个兄弟节点返回-1
+     */
+    public int getNextSiblingNode(int node) {
+        int parent = mParents[node];
+        if (parent < 0) {
+            return -1;
+        }
+
+        int next = node + mFlatSizes[node];
+        return next < parent + mFlatSizes[parent] ? next : -1;
+    }
+
+    /**
+     * 节点在父节点中所属的部分
+     *
+     * @param node
+     * @return {@link DataNode#CHILD_POSITION_HEADER}, {@link DataNode#CHILD_POSITION_MIDDLE},
+     * {@link DataNode#CHILD_POSITION_FOOTER}, 根节点返回0
+     */
+    public int getSegment(int node) {
+        return mSegments[node];
+    }
+
+    /**
+     * 节点树的平坦大小
+     *
+     * @param node
+     * @return
+     */
+    public int getFlatSize(int node) {
+        return mFlatSizes[node];
+    }
+
+    public boolean isVisible(int node) {
+        return !mHidden.get(node);
+    }
+
+    public boolean isFold(int node) {
+        return mFolded.get(node);
+    }
+
+    public void setVisibility(int node, boolean visibility) {
+        if (mHidden.get(node) == visibility) {
+            mHidden.set(node, !visibility);
+            mVisibleDirty = true;
+        }
+    }
+
+    public void setIsFolded(int node, boolean isFolded) {
+        if (mFolded.get(node) != isFolded) {
+            mFolded.set(node, isFolded);
+            mVisibleDirty = true;
+        }
+    }
+
+    public void ignoreRoot(boolean ignoreRoot) {
+        mIgnoreRoot = ignoreRoot;
+    }
+
+    public boolean isIgnoreRoot() {
+        return mIgnoreRoot;
+    }
+
+    /**
+     * 平坦索引中position处的节点
+     *
+     * @param position
+     * @return
+     */
+    public int get(int position) {
+        int node = mIgnoreRoot ? position + 1 : position;
+        if (node < 0 || node >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+        }
+        return node;
+    }
+
+    public int indexOf(int node) {
+        return mIgnoreRoot ? node - 1 : node;
+    }
+
+    public int size() {
+        return mIgnoreRoot ? mSize - 1 : mSize;
+    }
+
+    /**
+     * 可见索引中position处的节点
+     *
+     * @param position
+     * @return
+     */
+    public int getVisible(int position) {
+        ensureVisibleNodes();
+        int offset = isRootIgnoredInVisibleIndex() ? position + 1 : position;
+        if (position < 0 || offset >= mVisibleSize) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + visibleSize());
+        }
+        return mVisibleNodes[offset];
+    }
+
+    /**
+     * 节点在可见索引中的位置,可见索引按先序递增,二分查找
+     *
+     * @param node
+     * @return 不可见返回-1
+     */
+    public int visibleIndexOf(int node) {
+        ensureVisibleNodes();
+        int low = 0;
+        int high = mVisibleSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = mVisibleNodes[mid];
+            if (value < node) {
+                low = mid + 1;
+            } else if (value > node) {
+                high = mid - 1;
+            } else {
+                return isRootIgnoredInVisibleIndex() ? mid - 1 : mid;
+            }
+        }
+        return -1;
+    }
+
+    public int visibleSize() {
+        ensureVisibleNodes();
+        return isRootIgnoredInVisibleIndex() ? mVisibleSize - 1 : mVisibleSize;
+    }
+
+    private boolean isRootIgnoredInVisibleIndex() {
+        return mIgnoreRoot && !mHidden.get(0);
+    }
+
+    /**
+     * 重新计算可见索引,跳过隐藏的节点树和折叠节点的子孙节点
+     */
+    private void ensureVisibleNodes() {
+        if (!mVisibleDirty) {
+            return;
+        }
+
+        if (mVisibleNodes == null) {
+            mVisibleNodes = new int[mSize];
+        }
+
+        int count = 0;
+        int node = 0;
+        while (node < mSize) {
+            if (mHidden.get(node)) {
+                node += mFlatSizes[node];
+                continue;
+            }
+
+            mVisibleNodes[count++] = node;
+            node += mFolded.get(node) ? mFlatSizes[node] : 1;
+        }
+        mVisibleSize = count;
+        mVisibleDirty = false;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 向{@link IndexChangeListener}分发索引改变事件.
+ * 事件先缓存,与随后相邻的同类事件合并,调用{@link #dispatch()}时发出.
+ */
+final class IndexChangeDispatcher {
+    private static final int TYPE_NONE = 0;
+    private static final int TYPE_INSERTED = 1;
+    private static final int TYPE_REMOVED = 2;
+    private static final int TYPE_CHANGED = 3;
+
+    private final List<IndexChangeListener> mListeners = new ArrayList<IndexChangeListener>();
+
+    private int mPendingType = TYPE_NONE;
+    private int mPendingStart;
+    private int mPendingCount;
+
+    void addListener(IndexChangeListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    void removeListener(IndexChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    boolean hasListeners() {
+        return !mListeners.isEmpty();
+    }
+
+    void inserted(int start, int count) {
+        if (count <= 0 || !hasListeners()) {
+            return;
+        }
+
+        //插入到上一段插入区间之内或紧接其后
+        if (mPendingType == TYPE_INSERTED && start >= mPendingStart && start <= mPendingStart + mPendingCount) {
+            mPendingCount += count;
+            return;
+        }
+
+        dispatch();
+        setPending(TYPE_INSERTED, start, count);
+    }
+
+    void removed(int start, int count) {
+        if (count <= 0 || !hasListeners()) {
+            return;
+        }
+
+        if (mPendingType == TYPE_REMOVED) {
+            if (start == mPendingStart) {//删除了紧接着的节点
+                mPendingCount += count;
+                return;
+            } else if (start + count == mPendingStart) {//删除了紧挨着的前面的节点
+                mPendingStart = start;
+                mPendingCount += count;
+                return;
+            }
+        }
+
+        dispatch();
+        setPending(TYPE_REMOVED, start, count);
+    }
+
+    void changed(int start, int count) {
+        if (count <= 0 || !hasListeners()) {
+            return;
+        }
+
+        if (mPendingType == TYPE_CHANGED && start <= mPendingStart + mPendingCount && start + count >= mPendingStart) {
+            int end = Math.max(mPendingStart + mPendingCount, start + count);
+            mPendingStart = Math.min(mPendingStart, start);
+            mPendingCount = end - mPendingStart;
+            return;
+        }
+
+        dispatch();
+        setPending(TYPE_CHANGED, start, count);
+    }
+
+    void moved(int from, int to, int count) {
+        if (count <= 0 || from == to || !hasListeners()) {
+            return;
+        }
+
+        dispatch();
+        for (int i = 0; i < mListeners.size(); ++i) {
+            mListeners.get(i).onItemRangeMoved(from, to, count);
+        }
+    }
+
+    /**
+     * 发出缓存的事件
+     */
+    void dispatch() {
+        int type = mPendingType;
+        mPendingType = TYPE_NONE;
+        if (type == TYPE_NONE) {
+            return;
+        }
+
+        for (int i = 0; i < mListeners.size(); ++i) {
+            IndexChangeListener listener = mListeners.get(i);
+            if (type == TYPE_INSERTED) {
+                listener.onItemRangeInserted(mPendingStart, mPendingCount);
+            } else if (type == TYPE_REMOVED) {
+                listener.onItemRangeRemoved(mPendingStart, mPendingCount);
+            } else {
+                listener.onItemRangeChanged(mPendingStart, mPendingCount);
+            }
+        }
+    }
+
+    private void setPending(int type, int start, int count) {
+        mPendingType = type;
+        mPendingStart = start;
+        mPendingCount = count;
+    }
+}
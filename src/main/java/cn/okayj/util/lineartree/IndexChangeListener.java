@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 索引(平坦索引或可见索引)内容改变的监听,位置都是相对于索引的(已考虑ignoreRoot).
+ * 插入,删除和改变事件的含义与RecyclerView.Adapter的notifyItemRange*一致.
+ * 移动事件是区间的(节点树整体移动),而RecyclerView.Adapter#notifyItemMoved只移动一项,
+ * 转发给Adapter时用{@link SingleMoveListener}拆分成逐项的移动.
+ * 一次修改产生的相邻区间会合并为一个事件.
+ */
+public interface IndexChangeListener {
+
+    /**
+     * [positionStart, positionStart + itemCount)区间插入了节点
+     */
+    void onItemRangeInserted(int positionStart, int itemCount);
+
+    /**
+     * 原来从positionStart开始的itemCount个节点被删除
+     */
+    void onItemRangeRemoved(int positionStart, int itemCount);
+
+    /**
+     * 从fromPosition开始的itemCount个节点整体移动到了toPosition(移动后的位置).
+     * itemCount为移动的节点树的大小,可以大于1
+     */
+    void onItemRangeMoved(int fromPosition, int toPosition, int itemCount);
+
+    /**
+     * [positionStart, positionStart + itemCount)区间的节点需要重新绑定(节点本身或其状态改变)
+     */
+    void onItemRangeChanged(int positionStart, int itemCount);
+}
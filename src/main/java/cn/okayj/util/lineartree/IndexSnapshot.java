@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 平坦索引和可见索引某一版本的不可变快照,见{@link NodeFlatIndex#snapshot()}.
+ * 快照与索引共享未修改的部分,索引之后的修改不会影响快照,
+ * 可以在其他线程不加锁地读取.
+ * 快照只固定了节点的排列,节点本身(数据源,状态)仍是可变的,由使用者保证其线程安全
+ */
+public final class IndexSnapshot {
+    private final long mVersion;
+    private final PersistentNodeStore mList;
+    private final PersistentNodeStore mVisibleList;
+    private final boolean mIgnoreRoot;
+    private final boolean mRootIgnoredInVisibleIndex;
+
+    IndexSnapshot(long version, PersistentNodeStore list, PersistentNodeStore visibleList,
+                  boolean ignoreRoot, boolean rootIgnoredInVisibleIndex) {
+        mVersion = version;
+        mList = list;
+        mVisibleList = visibleList;
+        mIgnoreRoot = ignoreRoot;
+        mRootIgnoredInVisibleIndex = rootIgnoredInVisibleIndex;
+    }
+
+    /**
+     * 版本号,索引每次改变都会增加
+     *
+     * @return
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public DataNode get(int position) {
+        return mList.get(mIgnoreRoot ? position + 1 : position);
+    }
+
+    public int size() {
+        return mIgnoreRoot ? mList.size() - 1 : mList.size();
+    }
+
+    /**
+     * 可见索引中position处的节点
+     *
+     * @param position
+     * @return
+     */
+    public DataNode getVisible(int position) {
+        return mVisibleList.get(mRootIgnoredInVisibleIndex ? position + 1 : position);
+    }
+
+    public int visibleSize() {
+        return mRootIgnoredInVisibleIndex ? mVisibleList.size() - 1 : mVisibleList.size();
+    }
+}
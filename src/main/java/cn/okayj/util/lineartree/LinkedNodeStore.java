@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 基于{@link LinkedList}的存储,即索引原来的实现.
+ * 按位置访问,插入和删除都需要从链表头(或尾)遍历,复杂度O(n).
+ */
+public class LinkedNodeStore implements NodeStore {
+    public static final Factory FACTORY = new Factory() {
+        public NodeStore create() {
+            return new LinkedNodeStore();
+        }
+    };
+
+    private final LinkedList<DataNode> mList = new LinkedList<DataNode>();
+
+    public DataNode get(int position) {
+        return mList.get(position);
+    }
+
+    public int size() {
+        return mList.size();
+    }
+
+    public void add(int position, DataNode dataNode) {
+        mList.add(position, dataNode);
+    }
+
+    public void addAll(int position, List<DataNode> dataNodes) {
+        mList.addAll(position, dataNodes);
+    }
+
+    public void removeRange(int position, int count) {
+        mList.subList(position, position + count).clear();
+    }
+
+    public void move(int from, int count, int to) {
+        List<DataNode> range = mList.subList(from, from + count);
+        List<DataNode> nodes = new ArrayList<DataNode>(range);
+        range.clear();
+        mList.addAll(to, nodes);
+    }
+
+    public void clear() {
+        mList.clear();
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 节点树的二进制快照,可以内存映射文件后直接查询,见{@link #write(FrozenTree, SourceCodec, OutputStream)},
+ * {@link #load(File, SourceCodec)}.
+ * 与{@link FrozenTree}一样按先序编号,节点编号就是它在平坦索引中的位置(不忽略根节点时).
+ * 文件格式(大端):
+ * <pre>
+ * 头部 16字节: int 魔数, int 版本, int 节点数n, int 保留
+ * long[n] 数据源ID
+ * int[n]  子树大小,包括节点本身
+ * int[n]  父节点,根节点为-1
+ * byte[n] 状态:低2位为所属部分(头部,中部,尾部,根节点为0),折叠位,隐藏位
+ * </pre>
+ * 查询直接读取映射的缓冲区,只有可见索引和修改过的折叠,可见状态保存在堆中;
+ * DataNode节点在{@link #toDataNode()}时才创建,折叠节点的子孙节点在展开时才创建.
+ * 用于启动时快速恢复很大的节点树
+ *
+ * @param <S> 数据源类型
+ */
+public final class MappedTree<S> {
+    /**
+     * 数据源与ID的转换,数据源本身不保存在快照中
+     *
+     * @param <S>
+     */
+    public interface SourceCodec<S> {
+        long encode(S source);
+
+        S decode(long id);
+    }
+
+    private static final int MAGIC = 0x4c545245;//"LTRE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int FLAG_SEGMENT_MASK = 0x3;
+    private static final int FLAG_FOLDED = 0x4;
+    private static final int FLAG_HIDDEN = 0x8;
+
+    private final ByteBuffer mBuffer;
+    private final SourceCodec<S> mCodec;
+    private final int mSize;
+    private final int mFlatSizesOffset;
+    private final int mParentsOffset;
+    private final int mFlagsOffset;
+
+    //与文件中的状态不同的节点
+    private final BitSet mFoldToggled = new BitSet();
+    private final BitSet mHiddenToggled = new BitSet();
+
+    private boolean mIgnoreRoot = false;//是否忽略根节点的存在
+
+    private int[] mVisibleNodes;//可见索引,按先序递增
+    private int mVisibleSize;
+    private boolean mVisibleDirty = true;
+
+    private MappedTree(ByteBuffer buffer, SourceCodec<S> codec) throws IOException {
+        mBuffer = buffer;
+        mCodec = codec;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a tree snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported snapshot version: " + buffer.getInt(4));
+        }
+
+        mSize = buffer.getInt(8);
+        if (mSize <= 0 || (long) HEADER_SIZE + 17L * mSize > buffer.limit()) {
+            throw new IOException("corrupted snapshot, node count: " + mSize);
+        }
+        mFlatSizesOffset = HEADER_SIZE + 8 * mSize;
+        mParentsOffset = mFlatSizesOffset + 4 * mSize;
+        mFlagsOffset = mParentsOffset + 4 * mSize;
+    }
+
+    /**
+     * 按快照格式写出冻结的节点树,不关闭输出流
+     *
+     * @param tree
+     * @param codec
+     * @param out
+     * @param <S>
+     * @throws IOException
+     */
+    public static <S> void write(FrozenTree<S> tree, SourceCodec<? super S> codec, OutputStream out) throws IOException {
+        int size = tree.getNodeCount();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(size);
+        data.writeInt(0);
+        for (int node = 0; node < size; ++node) {
+            data.writeLong(codec.encode(tree.getSource(node)));
+        }
+        for (int node = 0; node < size; ++node) {
+            data.writeInt(tree.getFlatSize(node));
+        }
+        for (int node = 0; node < size; ++node) {
+            data.writeInt(tree.getParentNode(node));
+        }
+        for (int node = 0; node < size; ++node) {
+            int flags = tree.getSegment(node);
+            if (tree.isFold(node)) {
+                flags |= FLAG_FOLDED;
+            }
+            if (!tree.isVisible(node)) {
+                flags |= FLAG_HIDDEN;
+            }
+            data.writeByte(flags);
+        }
+        data.flush();
+    }
+
+    /**
+     * 只读地映射快照文件,映射在对象不再被引用后释放
+     *
+     * @param file
+     * @param codec
+     * @param <S>
+     * @return
+     * @throws IOException
+     */
+    public static <S> MappedTree<S> load(File file, SourceCodec<S> codec) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("snapshot too large: " + length);
+            }
+            return new MappedTree<S>(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), codec);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 从内存中的快照加载,缓冲区的内容不能再修改
+     *
+     * @param buffer 从位置0开始是快照
+     * @param codec
+     * @param <S>
+     * @return
+     * @throws IOException
+     */
+    public static <S> MappedTree<S> load(ByteBuffer buffer, SourceCodec<S> codec) throws IOException {
+        return new MappedTree<S>(buffer.duplicate().order(ByteOrder.BIG_ENDIAN), codec);
+    }
+
+    /**
+     * 节点总数,即平坦大小
+     *
+     * @return
+     */
+    public int getNodeCount() {
+        return mSize;
+    }
+
+    public long getSourceId(int node) {
+        checkNode(node);
+        return mBuffer.getLong(HEADER_SIZE + 8 * node);
+    }
+
+    /**
+     * 用{@link SourceCodec#decode(long)}转换数据源ID,每次调用都会转换
+     *
+     * @param node
+     * @return
+     */
+    public S getSource(int node) {
+        return mCodec.decode(getSourceId(node));
+    }
+
+    /**
+     * @param node
+     * @return 根节点返回-1
+     */
+    public int getParentNode(int node) {
+        checkNode(node);
+        return mBuffer.getInt(mParentsOffset + 4 * node);
+    }
+
+    /**
+     * @param node
+     * @return 没有子节点返回-1
+     */
+    public int getFirstChildNode(int node) {
+        return getFlatSize(node) > 1 ? node + 1 : -1;
+    }
+
+    /**
+     * @param node
+     * @return 没有下一个兄弟节点返回-1
+     */
+    public int getNextSiblingNode(int node) {
+        int parent = getParentNode(node);
+        if (parent < 0) {
+            return -1;
+        }
+
+        int next = node + getFlatSize(node);
+        return next < parent + getFlatSize(parent) ? next : -1;
+    }
+
+    /**
+     * 节点在父节点中所属的部分
+     *
+     * @param node
+     * @return {@link DataNode#CHILD_POSITION_HEADER}, {@link DataNode#CHILD_POSITION_MIDDLE},
+     * {@link DataNode#CHILD_POSITION_FOOTER}, 根节点返回0
+     */
+    public int getSegment(int node) {
+        return flagsOf(node) & FLAG_SEGMENT_MASK;
+    }
+
+    /**
+     * 节点树的平坦大小
+     *
+     * @param node
+     * @return
+     */
+    public int getFlatSize(int node) {
+        checkNode(node);
+        return mBuffer.getInt(mFlatSizesOffset + 4 * node);
+    }
+
+    public boolean isVisible(int node) {
+        return ((flagsOf(node) & FLAG_HIDDEN) != 0) == mHiddenToggled.get(node);
+    }
+
+    public boolean isFold(int node) {
+        return ((flagsOf(node) & FLAG_FOLDED) != 0) != mFoldToggled.get(node);
+    }
+
+    /**
+     * 只修改内存中的状态,不写回文件
+     *
+     * @param node
+     * @param visibility
+     */
+    public void setVisibility(int node, boolean visibility) {
+        if (isVisible(node) != visibility) {
+            mHiddenToggled.flip(node);
+            mVisibleDirty = true;
+        }
+    }
+
+    /**
+     * 只修改内存中的状态,不写回文件
+     *
+     * @param node
+     * @param isFolded
+     */
+    public void setIsFolded(int node, boolean isFolded) {
+        if (isFold(node) != isFolded) {
+            mFoldToggled.flip(node);
+            mVisibleDirty = true;
+        }
+    }
+
+    public void ignoreRoot(boolean ignoreRoot) {
+        mIgnoreRoot = ignoreRoot;
+    }
+
+    public boolean isIgnoreRoot() {
+        return mIgnoreRoot;
+    }
+
+    /**
+     * 平坦索引中position处的节点
+     *
+     * @param position
+     * @return
+     */
+    public int get(int position) {
+        int node = mIgnoreRoot ? position + 1 : position;
+        if (node < 0 || node >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+        }
+        return node;
+    }
+
+    public int indexOf(int node) {
+        return mIgnoreRoot ? node - 1 : node;
+    }
+
+    public int size() {
+        return mIgnoreRoot ? mSize - 1 : mSize;
+    }
+
+    /**
+     * 可见索引中position处的节点
+     *
+     * @param position
+     * @return
+     */
+    public int getVisible(int position) {
+        ensureVisibleNodes();
+        int offset = isRootIgnoredInVisibleIndex() ? position + 1 : position;
+        if (position < 0 || offset >= mVisibleSize) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + visibleSize());
+        }
+        return mVisibleNodes[offset];
+    }
+
+    /**
+     * 节点在可见索引中的位置,可见索引按先序递增,二分查找
+     *
+     * @param node
+     * @return 不可见返回-1
+     */
+    public int visibleIndexOf(int node) {
+        ensureVisibleNodes();
+        int low = 0;
+        int high = mVisibleSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = mVisibleNodes[mid];
+            if (value < node) {
+                low = mid + 1;
+            } else if (value > node) {
+                high = mid - 1;
+            } else {
+                return isRootIgnoredInVisibleIndex() ? mid - 1 : mid;
+            }
+        }
+        return -1;
+    }
+
+    public int visibleSize() {
+        ensureVisibleNodes();
+        return isRootIgnoredInVisibleIndex() ? mVisibleSize - 1 : mVisibleSize;
+    }
+
+    /**
+     * 创建根节点的DataNode节点树,节点的状态是当前(可能修改过的)状态.
+     * 展开的节点的子节点立即创建,折叠节点的子节点在其展开时创建
+     * (见{@link DataNode#setChildLoader(ChildLoader, int)}),
+     * 加载前折叠节点在平坦索引中相当于叶子节点
+     *
+     * @return
+     */
+    public DataNode<S> toDataNode() {
+        return materialize(0);
+    }
+
+    /**
+     * 创建节点node及其展开部分的节点树,折叠的节点设置子节点加载器
+     */
+    private DataNode<S> materialize(int node) {
+        List<Frame<S>> stack = new ArrayList<Frame<S>>();
+        DataNode<S> root = null;
+        int end = node + getFlatSize(node);
+        int id = node;
+        while (true) {
+            //子树已结束的节点设置子节点,添加到父节点
+            while (!stack.isEmpty() && (id >= end || stack.get(stack.size() - 1).end <= id)) {
+                Frame<S> frame = stack.remove(stack.size() - 1);
+                frame.node.setBuiltChildNodes(frame.headerNodes, frame.childNodes, frame.footerNodes);
+                if (stack.isEmpty()) {
+                    root = frame.node;
+                } else {
+                    stack.get(stack.size() - 1).add(frame.node, getSegment(frame.id));
+                }
+            }
+            if (id >= end) {
+                break;
+            }
+
+            DataNode<S> dataNode = new DataNode<S>();
+            dataNode.setSource(getSource(id));
+            if (!isVisible(id)) {
+                dataNode.setVisibility(false);
+            }
+            int flatSize = getFlatSize(id);
+            if (isFold(id) && flatSize > 1) {
+                dataNode.setIsFolded(true);
+                dataNode.setChildLoader(new Loader(id), childCountOf(id));
+                if (stack.isEmpty()) {
+                    return dataNode;
+                }
+                stack.get(stack.size() - 1).add(dataNode, getSegment(id));
+                id += flatSize;
+            } else {
+                if (isFold(id)) {
+                    dataNode.setIsFolded(true);
+                }
+                stack.add(new Frame<S>(dataNode, id, id + flatSize));
+                id++;
+            }
+        }
+        return root;
+    }
+
+    private int childCountOf(int node) {
+        int count = 0;
+        int end = node + getFlatSize(node);
+        for (int child = node + 1; child < end; child += getFlatSize(child)) {
+            count++;
+        }
+        return count;
+    }
+
+    private int flagsOf(int node) {
+        checkNode(node);
+        return mBuffer.get(mFlagsOffset + node);
+    }
+
+    private void checkNode(int node) {
+        if (node < 0 || node >= mSize) {
+            throw new IndexOutOfBoundsException("Node: " + node + ", Count: " + mSize);
+        }
+    }
+
+    private boolean isRootIgnoredInVisibleIndex() {
+        return mIgnoreRoot && isVisible(0);
+    }
+
+    /**
+     * 重新计算可见索引,跳过隐藏的节点树和折叠节点的子孙节点
+     */
+    private void ensureVisibleNodes() {
+        if (!mVisibleDirty) {
+            return;
+        }
+
+        if (mVisibleNodes == null) {
+            mVisibleNodes = new int[Math.min(mSize, 1024)];
+        }
+
+        int count = 0;
+        int node = 0;
+        while (node < mSize) {
+            if (!isVisible(node)) {
+                node += getFlatSize(node);
+                continue;
+            }
+
+            if (count == mVisibleNodes.length) {
+                int[] visibleNodes = new int[Math.min(mSize, count * 2)];
+                System.arraycopy(mVisibleNodes, 0, visibleNodes, 0, count);
+                mVisibleNodes = visibleNodes;
+            }
+            mVisibleNodes[count++] = node;
+            node += isFold(node) ? getFlatSize(node) : 1;
+        }
+        mVisibleSize = count;
+        mVisibleDirty = false;
+    }
+
+    /**
+     * 折叠节点展开时创建其子节点
+     */
+    private final class Loader implements ChildLoader {
+        private final int mNode;
+
+        Loader(int node) {
+            mNode = node;
+        }
+
+        public void loadChildren(DataNode node) {
+            Frame<S> frame = new Frame<S>(null, mNode, mNode + getFlatSize(mNode));
+            for (int child = mNode + 1; child < frame.end; child += getFlatSize(child)) {
+                frame.add(materialize(child), getSegment(child));
+            }
+            //ChildLoader给的是原始类型,经通配类型调用以免未检查的调用
+            DataNode<?> parent = node;
+            parent.addHeaderNodes(frame.headerNodes);
+            parent.addChildNodes(frame.childNodes);
+            parent.addFooterNodes(frame.footerNodes);
+        }
+    }
+
+    /**
+     * 正在创建的节点及其已创建的子节点
+     */
+    private static final class Frame<S> {
+        final DataNode<S> node;
+        final int id;
+        final int end;//子树之后的编号
+        final List<DataNode> headerNodes = new ArrayList<DataNode>();
+        final List<DataNode> childNodes = new ArrayList<DataNode>();
+        final List<DataNode> footerNodes = new ArrayList<DataNode>();
+
+        Frame(DataNode<S> node, int id, int end) {
+            this.node = node;
+            this.id = id;
+            this.end = end;
+        }
+
+        void add(DataNode child, int segment) {
+            if (segment == DataNode.CHILD_POSITION_HEADER) {
+                headerNodes.add(child);
+            } else if (segment == DataNode.CHILD_POSITION_FOOTER) {
+                footerNodes.add(child);
+            } else {
+                childNodes.add(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,640 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 计算两个可见顺序的节点序列之间的编辑脚本(插入,删除,移动,改变),
+ * 用于整体替换节点树的内容后播放列表动画.
+ * 序列记录了每个节点的可见子树大小(见{@link Sequence}),按树结构逐层比较:
+ * 只在匹配的父节点之间比较其子节点,兄弟节点之间用Myers算法(线性空间)求最短编辑脚本,
+ * 删除或插入的节点树按其大小整体成为一个操作,不再访问其内部.
+ * 匹配的项的子树逐项相同(标识,内容和大小)时整体跳过,不再逐层比较;
+ * 逐项比较时已确认相同的前缀会记录下来,其中的子树不再重复比较,所以比较的总量是线性的.
+ * 同一层中删除又插入的同一项可以合并为移动,换了父节点的项是删除和插入.
+ * 序列是不可变的,可以在后台线程计算,结果在修改节点树的线程分发
+ */
+public final class NodeDiff {
+    /**
+     * 判断两个序列中的节点是否为同一项,在计算的线程中调用.
+     * 数据源是创建序列时记录的,节点本身可能已被修改
+     */
+    public interface Callback {
+        /**
+         * 项的标识,两个序列中标识相等(equals)的节点看作同一项
+         *
+         * @param node
+         * @param source 创建序列时节点的数据源
+         * @return 为null则不与任何节点匹配
+         */
+        Object getIdentity(DataNode node, Object source);
+
+        /**
+         * 同一项的内容是否相同,不同时发出改变事件
+         *
+         * @param oldSource
+         * @param newSource
+         * @return
+         */
+        boolean areContentsTheSame(Object oldSource, Object newSource);
+    }
+
+    /**
+     * 同一个节点对象为同一项,数据源相等(equals)为内容相同
+     */
+    public static final Callback BY_NODE = new Callback() {
+        public Object getIdentity(DataNode node, Object source) {
+            return node;
+        }
+
+        public boolean areContentsTheSame(Object oldSource, Object newSource) {
+            return oldSource == null ? newSource == null : oldSource.equals(newSource);
+        }
+    };
+
+    /**
+     * 数据源相等(equals)为同一项,用于用新的节点替换整棵树.数据源为null的节点按节点对象匹配
+     */
+    public static final Callback BY_SOURCE = new Callback() {
+        public Object getIdentity(DataNode node, Object source) {
+            return source == null ? node : source;
+        }
+
+        public boolean areContentsTheSame(Object oldSource, Object newSource) {
+            return true;
+        }
+    };
+
+    private static final int OP_INSERT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_MOVE = 3;
+    private static final int OP_CHANGE = 4;
+
+    private static final Object NO_IDENTITY = new Object();
+
+    private final Sequence mOld;
+    private final Sequence mNew;
+    private final Callback mCallback;
+    private final boolean mDetectMoves;
+    private final Object[] mOldIdentities;//延迟计算,NO_IDENTITY表示标识为null
+    private final Object[] mNewIdentities;
+
+    private int[] mForward = new int[0];
+    private int[] mBackward = new int[0];
+
+    private int[] mOps = new int[32];//每个操作4个int:类型,位置,数量,移动的目标位置
+    private int mOpCount;
+    private int mCursor;//新序列中已处理的部分之后的位置(操作都是依次应用的)
+
+    /*
+    已确认相同的区间:旧序列[mSameOldStart, mSameOldEnd)中的每一项与新序列中偏移mSameShift的项相同
+     */
+    private int mSameOldStart;
+    private int mSameOldEnd;
+    private int mSameShift;
+
+    private NodeDiff(Sequence oldSequence, Sequence newSequence, Callback callback, boolean detectMoves) {
+        mOld = oldSequence;
+        mNew = newSequence;
+        mCallback = callback;
+        mDetectMoves = detectMoves;
+        mOldIdentities = new Object[oldSequence.size()];
+        mNewIdentities = new Object[newSequence.size()];
+    }
+
+    /**
+     * 计算编辑脚本,可以在任何线程调用
+     *
+     * @param oldSequence
+     * @param newSequence
+     * @param callback
+     * @param detectMoves 是否把同一层中删除又插入的同一项合并为移动
+     * @return
+     */
+    public static Result calculate(Sequence oldSequence, Sequence newSequence, Callback callback, boolean detectMoves) {
+        NodeDiff diff = new NodeDiff(oldSequence, newSequence, callback, detectMoves);
+        diff.diffChildren(0, oldSequence.size(), 0, newSequence.size());
+        return new Result(copyOf(diff.mOps, diff.mOpCount * 4), diff.mOpCount);
+    }
+
+    /**
+     * 比较两个区间中的兄弟节点树,区间开始时位于mCursor处
+     */
+    private void diffChildren(int oldFrom, int oldTo, int newFrom, int newTo) {
+        int[] oldItems = mOld.children(oldFrom, oldTo);
+        int[] newItems = mNew.children(newFrom, newTo);
+        int[] oldMatches = new int[oldItems.length];
+        int[] newMatches = new int[newItems.length];
+        Arrays.fill(oldMatches, -1);
+        Arrays.fill(newMatches, -1);
+        align(oldItems, newItems, oldMatches, newMatches);
+
+        int[] oldPairs = null;//删除的项移动到的新位置
+        int[] newPairs = null;//插入的项从哪个旧位置移来
+        if (mDetectMoves) {
+            oldPairs = new int[oldItems.length];
+            newPairs = new int[newItems.length];
+            pairMoves(oldItems, newItems, oldMatches, newMatches, oldPairs, newPairs);
+        }
+
+        /*
+        依次处理:删除的项在mCursor处删除,插入的项在mCursor处插入.
+        要移动到后面的项先原地保留(暂存在mCursor之前),到插入位置时再移过来;
+        要从后面移来的项直接移到mCursor处.移来的项与匹配的项一样继续比较子节点
+         */
+        boolean[] consumed = oldPairs == null ? null : new boolean[oldItems.length];
+        int[] parkedPositions = null;
+        int i = 0;
+        int j = 0;
+        while (i < oldItems.length || j < newItems.length) {
+            if (i < oldItems.length && oldMatches[i] < 0) {
+                int size = mOld.mSizes[oldItems[i]];
+                if (consumed != null && consumed[i]) {
+                    //已经移到前面
+                } else if (oldPairs != null && oldPairs[i] >= 0) {
+                    if (parkedPositions == null) {
+                        parkedPositions = new int[oldItems.length];
+                    }
+                    parkedPositions[i] = mCursor;
+                    mCursor += size;
+                } else {
+                    addOp(OP_REMOVE, mCursor, size, 0);
+                }
+                i++;
+            } else if (j < newItems.length && newMatches[j] < 0) {
+                int from = newPairs == null ? -1 : newPairs[j];
+                if (from < 0) {
+                    int size = mNew.mSizes[newItems[j]];
+                    addOp(OP_INSERT, mCursor, size, 0);
+                    mCursor += size;
+                } else {
+                    int size = mOld.mSizes[oldItems[from]];
+                    if (from < i) {
+                        //暂存的项:移出后其后的暂存项前移
+                        int position = parkedPositions[from];
+                        for (int k = 0; k < i; ++k) {
+                            if (oldPairs[k] >= 0 && !consumed[k] && parkedPositions[k] > position) {
+                                parkedPositions[k] -= size;
+                            }
+                        }
+                        mCursor -= size;
+                        addOp(OP_MOVE, position, size, mCursor);
+                    } else {
+                        int position = mCursor;
+                        for (int k = i; k < from; ++k) {
+                            if (!consumed[k]) {
+                                position += mOld.mSizes[oldItems[k]];
+                            }
+                        }
+                        addOp(OP_MOVE, position, size, mCursor);
+                    }
+                    consumed[from] = true;
+                    diffItem(oldItems[from], newItems[j]);
+                }
+                j++;
+            } else {
+                diffItem(oldItems[i], newItems[j]);
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * 比较同一项,位于mCursor处
+     */
+    private void diffItem(int oldPosition, int newPosition) {
+        int size = mOld.mSizes[oldPosition];
+        if (size == mNew.mSizes[newPosition]) {
+            int shift = newPosition - oldPosition;
+            int end = oldPosition + size;
+            int position = oldPosition;
+            if (shift == mSameShift && oldPosition >= mSameOldStart && oldPosition < mSameOldEnd) {
+                position = Math.min(mSameOldEnd, end);
+            }
+            while (position < end && sameItem(position, position + shift)) {
+                position++;
+            }
+            if (position == end) {
+                //整棵子树相同
+                mCursor += size;
+                return;
+            }
+            mSameOldStart = oldPosition;
+            mSameOldEnd = position;
+            mSameShift = shift;
+        }
+
+        if (!mCallback.areContentsTheSame(mOld.mSources[oldPosition], mNew.mSources[newPosition])) {
+            addOp(OP_CHANGE, mCursor, 1, 0);
+        }
+        mCursor++;
+        diffChildren(oldPosition + 1, oldPosition + mOld.mSizes[oldPosition],
+                newPosition + 1, newPosition + mNew.mSizes[newPosition]);
+    }
+
+    /**
+     * 删除的项与插入的同一项配对,按标识散列,O(d)
+     */
+    private void pairMoves(int[] oldItems, int[] newItems, int[] oldMatches, int[] newMatches, int[] oldPairs, int[] newPairs) {
+        Arrays.fill(oldPairs, -1);
+        Arrays.fill(newPairs, -1);
+
+        Map<Object, List<Integer>> removed = null;
+        for (int i = 0; i < oldItems.length; ++i) {
+            Object identity = oldMatches[i] < 0 ? oldIdentity(oldItems[i]) : NO_IDENTITY;
+            if (identity != NO_IDENTITY) {
+                if (removed == null) {
+                    removed = new HashMap<Object, List<Integer>>();
+                }
+                List<Integer> positions = removed.get(identity);
+                if (positions == null) {
+                    positions = new ArrayList<Integer>(1);
+                    removed.put(identity, positions);
+                }
+                positions.add(i);
+            }
+        }
+        if (removed == null) {
+            return;
+        }
+
+        for (int j = 0; j < newItems.length; ++j) {
+            if (newMatches[j] >= 0) {
+                continue;
+            }
+            Object identity = newIdentity(newItems[j]);
+            List<Integer> positions = identity == NO_IDENTITY ? null : removed.get(identity);
+            if (positions != null && !positions.isEmpty()) {
+                int i = positions.remove(0);
+                oldPairs[i] = j;
+                newPairs[j] = i;
+            }
+        }
+    }
+
+    /**
+     * 用Myers算法对齐两组兄弟节点,标记匹配的项.
+     * 先去掉公共前缀和后缀,再找中间蛇(middle snake)分成两个子问题,用栈代替递归
+     */
+    private void align(int[] oldItems, int[] newItems, int[] oldMatches, int[] newMatches) {
+        int[] ranges = new int[16];
+        int top = 0;
+        ranges[top++] = 0;
+        ranges[top++] = oldItems.length;
+        ranges[top++] = 0;
+        ranges[top++] = newItems.length;
+
+        int[] snake = new int[4];
+        while (top > 0) {
+            int newEnd = ranges[--top];
+            int newStart = ranges[--top];
+            int oldEnd = ranges[--top];
+            int oldStart = ranges[--top];
+
+            while (oldStart < oldEnd && newStart < newEnd && same(oldItems, newItems, oldStart, newStart)) {
+                oldMatches[oldStart] = newStart;
+                newMatches[newStart] = oldStart;
+                oldStart++;
+                newStart++;
+            }
+            while (oldStart < oldEnd && newStart < newEnd && same(oldItems, newItems, oldEnd - 1, newEnd - 1)) {
+                oldEnd--;
+                newEnd--;
+                oldMatches[oldEnd] = newEnd;
+                newMatches[newEnd] = oldEnd;
+            }
+            if (oldStart == oldEnd || newStart == newEnd) {
+                continue;
+            }
+
+            middleSnake(oldItems, newItems, oldStart, oldEnd, newStart, newEnd, snake);
+            for (int x = snake[0], y = snake[1]; x < snake[2]; ++x, ++y) {
+                oldMatches[x] = y;
+                newMatches[y] = x;
+            }
+
+            if (top + 8 > ranges.length) {
+                ranges = copyOf(ranges, ranges.length * 2);
+            }
+            ranges[top++] = oldStart;
+            ranges[top++] = snake[0];
+            ranges[top++] = newStart;
+            ranges[top++] = snake[1];
+            ranges[top++] = snake[2];
+            ranges[top++] = oldEnd;
+            ranges[top++] = snake[3];
+            ranges[top++] = newEnd;
+        }
+    }
+
+    /**
+     * 同时从两端搜索,找到最短编辑路径中间的一段对角线
+     *
+     * @param out 对角线的起点和终点:旧起点,新起点,旧终点,新终点
+     */
+    private void middleSnake(int[] oldItems, int[] newItems, int oldStart, int oldEnd, int newStart, int newEnd, int[] out) {
+        int n = oldEnd - oldStart;
+        int m = newEnd - newStart;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        if (mForward.length < 2 * max + 3) {
+            mForward = new int[2 * max + 3];
+            mBackward = new int[2 * max + 3];
+        }
+        int[] forward = mForward;
+        int[] backward = mBackward;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        for (int d = 0; d <= max; ++d) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && same(oldItems, newItems, oldStart + x, newStart + y)) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+
+                int c = delta - k;//反向搜索中的同一条对角线
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + backward[offset + c] >= n) {
+                    out[0] = oldStart + startX;
+                    out[1] = newStart + startY;
+                    out[2] = oldStart + x;
+                    out[3] = newStart + y;
+                    return;
+                }
+            }
+
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && same(oldItems, newItems, oldEnd - 1 - x, newEnd - 1 - y)) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+
+                int c = delta - k;
+                if (!odd && c >= -d && c <= d && x + forward[offset + c] >= n) {
+                    out[0] = oldEnd - x;
+                    out[1] = newEnd - y;
+                    out[2] = oldEnd - startX;
+                    out[3] = newEnd - startY;
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("middle snake not found");
+    }
+
+    /**
+     * 两个位置的项标识,内容和子树大小都相同
+     */
+    private boolean sameItem(int oldPosition, int newPosition) {
+        if (mOld.mSizes[oldPosition] != mNew.mSizes[newPosition]) {
+            return false;
+        }
+        Object identity = oldIdentity(oldPosition);
+        return identity != NO_IDENTITY && identity.equals(newIdentity(newPosition))
+                && mCallback.areContentsTheSame(mOld.mSources[oldPosition], mNew.mSources[newPosition]);
+    }
+
+    private boolean same(int[] oldItems, int[] newItems, int oldIndex, int newIndex) {
+        Object identity = oldIdentity(oldItems[oldIndex]);
+        return identity != NO_IDENTITY && identity.equals(newIdentity(newItems[newIndex]));
+    }
+
+    private Object oldIdentity(int position) {
+        Object identity = mOldIdentities[position];
+        if (identity == null) {
+            identity = mCallback.getIdentity(mOld.mNodes[position], mOld.mSources[position]);
+            mOldIdentities[position] = identity = identity == null ? NO_IDENTITY : identity;
+        }
+        return identity;
+    }
+
+    private Object newIdentity(int position) {
+        Object identity = mNewIdentities[position];
+        if (identity == null) {
+            identity = mCallback.getIdentity(mNew.mNodes[position], mNew.mSources[position]);
+            mNewIdentities[position] = identity = identity == null ? NO_IDENTITY : identity;
+        }
+        return identity;
+    }
+
+    /**
+     * 添加操作,与前一个相邻的同类操作合并
+     */
+    private void addOp(int type, int position, int count, int to) {
+        if (type == OP_MOVE && position == to) {
+            return;
+        }
+
+        if (mOpCount > 0 && type != OP_MOVE) {
+            int last = (mOpCount - 1) * 4;
+            if (mOps[last] == type) {
+                int lastPosition = mOps[last + 1];
+                int lastCount = mOps[last + 2];
+                if (type == OP_REMOVE ? lastPosition == position : lastPosition + lastCount == position) {
+                    mOps[last + 2] = lastCount + count;
+                    return;
+                }
+            }
+        }
+
+        if (mOpCount * 4 + 4 > mOps.length) {
+            mOps = copyOf(mOps, mOps.length * 2);
+        }
+        int index = mOpCount * 4;
+        mOps[index] = type;
+        mOps[index + 1] = position;
+        mOps[index + 2] = count;
+        mOps[index + 3] = to;
+        mOpCount++;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * 不可变的可见顺序节点序列,记录了每个节点当时的数据源,及其子树在序列中的大小
+     */
+    public static final class Sequence {
+        final DataNode[] mNodes;
+        final Object[] mSources;
+        final int[] mSizes;
+
+        private Sequence(DataNode[] nodes, int[] sizes) {
+            mNodes = nodes;
+            mSizes = sizes;
+            mSources = new Object[nodes.length];
+            for (int i = 0; i < nodes.length; ++i) {
+                mSources[i] = nodes[i].getSource();
+            }
+        }
+
+        /**
+         * 复制可见索引的当前内容,需要在修改节点树的线程调用.
+         * 节点树在序列中的大小是其可见平坦大小
+         *
+         * @param visibleIndex
+         * @return
+         */
+        public static Sequence capture(NodeFlatIndex.VisibleFlatIndex visibleIndex) {
+            DataNode[] nodes = visibleIndex.getRange(0, visibleIndex.size());
+            int[] sizes = new int[nodes.length];
+            for (int i = 0; i < nodes.length; ++i) {
+                sizes[i] = nodes[i].getVisibleFlatSize();
+            }
+            return new Sequence(nodes, sizes);
+        }
+
+        /**
+         * 没有树结构的序列,每个节点单独作为一项.需要在修改节点树的线程调用
+         *
+         * @param nodes
+         * @return
+         */
+        public static Sequence of(DataNode[] nodes) {
+            int[] sizes = new int[nodes.length];
+            Arrays.fill(sizes, 1);
+            return new Sequence(nodes.clone(), sizes);
+        }
+
+        /**
+         * 需要在修改节点树的线程调用
+         *
+         * @param nodes        按先序排列的节点
+         * @param subtreeSizes 每个节点的子树在序列中的大小(包括节点本身),子树必须互相嵌套
+         * @return
+         */
+        public static Sequence of(DataNode[] nodes, int[] subtreeSizes) {
+            if (nodes.length != subtreeSizes.length) {
+                throw new IllegalArgumentException("nodes and sizes have different length");
+            }
+
+            //每棵子树必须在其父节点的子树之内
+            int[] ends = new int[16];
+            int depth = 0;
+            for (int i = 0; i < subtreeSizes.length; ++i) {
+                while (depth > 0 && ends[depth - 1] <= i) {
+                    depth--;
+                }
+                int end = i + subtreeSizes[i];
+                if (subtreeSizes[i] < 1 || end > (depth > 0 ? ends[depth - 1] : subtreeSizes.length)) {
+                    throw new IllegalArgumentException("invalid subtree size at " + i);
+                }
+                if (depth == ends.length) {
+                    ends = copyOf(ends, depth * 2);
+                }
+                ends[depth++] = end;
+            }
+            return new Sequence(nodes.clone(), subtreeSizes.clone());
+        }
+
+        public int size() {
+            return mNodes.length;
+        }
+
+        public DataNode get(int position) {
+            return mNodes[position];
+        }
+
+        /**
+         * [from, to)中最上层的节点树的位置
+         */
+        int[] children(int from, int to) {
+            int count = 0;
+            for (int position = from; position < to; position += mSizes[position]) {
+                count++;
+            }
+            int[] children = new int[count];
+            int i = 0;
+            for (int position = from; position < to; position += mSizes[position]) {
+                children[i++] = position;
+            }
+            return children;
+        }
+    }
+
+    /**
+     * 编辑脚本,操作按顺序应用到旧序列上得到新序列
+     */
+    public static final class Result {
+        private final int[] mOps;
+        private final int mOpCount;
+
+        private Result(int[] ops, int opCount) {
+            mOps = ops;
+            mOpCount = opCount;
+        }
+
+        public int getOperationCount() {
+            return mOpCount;
+        }
+
+        /**
+         * 按顺序把操作分发给监听者,转发给RecyclerView.Adapter时移动操作用{@link SingleMoveListener}拆分
+         *
+         * @param listener
+         */
+        public void dispatchTo(IndexChangeListener listener) {
+            for (int i = 0; i < mOpCount * 4; i += 4) {
+                switch (mOps[i]) {
+                    case OP_INSERT:
+                        listener.onItemRangeInserted(mOps[i + 1], mOps[i + 2]);
+                        break;
+                    case OP_REMOVE:
+                        listener.onItemRangeRemoved(mOps[i + 1], mOps[i + 2]);
+                        break;
+                    case OP_MOVE:
+                        listener.onItemRangeMoved(mOps[i + 1], mOps[i + 3], mOps[i + 2]);
+                        break;
+                    default:
+                        listener.onItemRangeChanged(mOps[i + 1], mOps[i + 2]);
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 过滤索引的条件,见{@link NodeFlatIndex#getFilteredIndex(NodeFilter)}.
+ * 结果只能取决于节点本身(通常是数据源),数据源改变后用{@link FilteredFlatIndex#update(DataNode)}重新判断
+ */
+public interface NodeFilter {
+    /**
+     * @param node
+     * @return 节点是否符合条件
+     */
+    boolean accept(DataNode node);
+}
@@ -17,29 +17,94 @@
 package cn.okayj.util.lineartree;
 
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.List;
 
 /**
  * Created by Jack on 15/11/27.
  * DataNode的平坦索引,即目录.
  * 可以把节点看成书的章节和文章(叶子节点),平坦索引相当于目录,可以按顺序访问章节和文章.
- * 可以从该索引获取可见索引.
+ * 可以从该索引获取可见索引和过滤索引.
  * 索引都是动态的,跟随树型结构改变.
  */
-public class NodeFlatIndex {
+public class NodeFlatIndex implements Iterable<DataNode> {
+    /**
+     * 索引模式:将展开后的节点保存在列表中
+     */
+    public static final int INDEX_MODE_MATERIALIZED = 1;
+    /**
+     * 索引模式:不保存展开后的节点,按位置访问时根据各子树的大小从根节点向下查找
+     */
+    public static final int INDEX_MODE_IMPLICIT = 2;
+
+    /**
+     * 过滤条件改变,见{@link FilteredFlatIndex#setFilter(NodeFilter, int)}:与原条件没有关系
+     */
+    public static final int FILTER_CHANGED = 1;
+    /**
+     * 过滤条件改变:新条件更严格,符合新条件的节点都符合原条件
+     */
+    public static final int FILTER_NARROWED = 2;
+    /**
+     * 过滤条件改变:新条件更宽松,符合原条件的节点都符合新条件
+     */
+    public static final int FILTER_WIDENED = 3;
+
+    private final int mMode;
     private boolean mInvalidated = false;
     private boolean mIgnoreRoot = false;//是否忽略根节点的存在
 
     private DataNode mRootNode;
 
-    private List<DataNode> mList = new LinkedList<DataNode>();
-    private List<DataNode> mVisibleList;
+    private final NodeStore.Factory mStoreFactory;
+    private NodeStore mList;
+    private NodeStore mVisibleList;
     private VisibleFlatIndex mVisibleFlatIndex = new VisibleFlatIndex();
+    private FilteredFlatIndex mFilteredFlatIndex;
+
+    private final IndexChangeDispatcher mFlatChanges = new IndexChangeDispatcher();
+    private final IndexChangeDispatcher mVisibleChanges = new IndexChangeDispatcher();
+
+    private long mVersion = 0;//每次改变加1
+    private volatile IndexSnapshot mPublishedSnapshot;
 
     NodeFlatIndex(DataNode rootNode) {
+        this(rootNode, INDEX_MODE_MATERIALIZED);
+    }
+
+    NodeFlatIndex(DataNode rootNode, int mode) {
+        this(rootNode, mode, mode == INDEX_MODE_MATERIALIZED ? LinkedNodeStore.FACTORY : null);
+    }
+
+    /**
+     * @param rootNode
+     * @param mode
+     * @param storeFactory 物化索引使用的存储结构,隐式索引为null
+     */
+    NodeFlatIndex(DataNode rootNode, int mode, NodeStore.Factory storeFactory) {
+        if (mode != INDEX_MODE_MATERIALIZED && mode != INDEX_MODE_IMPLICIT) {
+            throw new IllegalArgumentException("unknown index mode: " + mode);
+        }
+        if (mode == INDEX_MODE_MATERIALIZED && storeFactory == null) {
+            throw new IllegalArgumentException("materialized index requires a NodeStore.Factory");
+        }
+
+        mMode = mode;
         mRootNode = rootNode;
-        addSubtree(0, 0, rootNode, mVisibleList != null);
+        mStoreFactory = storeFactory;
+        if (mode == INDEX_MODE_MATERIALIZED) {
+            mList = storeFactory.create();
+            addSubtree(0, 0, rootNode, mVisibleList != null);
+        }
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    DataNode getRootNode() {
+        return mRootNode;
     }
 
     /**
@@ -48,17 +113,100 @@ public class NodeFlatIndex {
      * 则最好销毁索引增加性能
      */
     public void invalidate() {
-        mRootNode.invalidateFlatIndex();
-        mRootNode = null;
-        mList.clear();
-        if (mVisibleList != null) {
-            mVisibleList.clear();
-            mVisibleList = null;
+        TreeLock lock = lockTree();
+        try {
+            if (mFilteredFlatIndex != null) {
+                mFilteredFlatIndex.invalidate();
+            }
+            mRootNode.invalidateFlatIndex();
+            mRootNode = null;
+            if (mList != null) {
+                mList.clear();
+            }
+            if (mVisibleList != null) {
+                mVisibleList.clear();
+                mVisibleList = null;
+            }
+            mInvalidated = true;
+        } finally {
+            unlockTree(lock);
         }
-        mInvalidated = true;
     }
 
     public DataNode get(int position) {
+        return readNode(false, null, position);
+    }
+
+    public int indexOf(DataNode dataNode) {
+        return readInt(READ_INDEX_OF, null, dataNode);
+    }
+
+    public int size() {
+        return readInt(READ_SIZE, null, null);
+    }
+
+    /**
+     * 获取[from, from + count)的节点
+     *
+     * @param from
+     * @param count
+     * @return
+     * @see #getRange(int, int, DataNode[], int)
+     */
+    public DataNode[] getRange(int from, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+        DataNode[] out = new DataNode[count];
+        readRange(false, null, from, count, out, 0);
+        return out;
+    }
+
+    /**
+     * 将[from, from + count)的节点依次写入out[offset, offset + count),
+     * 适合按视窗读取一屏的节点.
+     * 只定位一次起点,之后沿树结构逐个走到下一个节点,O(定位 + count).
+     * 索引记住上次读取的起点(finger),起点在其附近时(如顺序滚动)直接从finger走过去,不需要重新定位,
+     * 每行均摊O(1).索引改变后finger失效
+     *
+     * @param from
+     * @param count
+     * @param out
+     * @param offset 在out中的开始位置
+     */
+    public void getRange(int from, int count, DataNode[] out, int offset) {
+        readRange(false, null, from, count, out, offset);
+    }
+
+    /**
+     * 描述position处的行:深度,所属部分,是否为最后一个子节点,各层先辈节点之后是否还有兄弟节点.
+     * 沿父节点向上计算,O(depth),重复使用out时不分配内存
+     *
+     * @param position
+     * @param out      写入结果,为null时新建
+     * @return out
+     */
+    public RowDescriptor getRowDescriptor(int position, RowDescriptor out) {
+        return readRow(false, position, null, out);
+    }
+
+    /**
+     * 描述节点所在的行,适合与{@link #getRange(int, int, DataNode[], int)}一起使用
+     *
+     * @param dataNode 索引中的节点
+     * @param out      写入结果,为null时新建
+     * @return out
+     * @see #getRowDescriptor(int, RowDescriptor)
+     */
+    public RowDescriptor getRowDescriptor(DataNode dataNode, RowDescriptor out) {
+        return readRow(false, -1, dataNode, out);
+    }
+
+    private DataNode getUnlocked(int position) {
+        if (mMode == INDEX_MODE_IMPLICIT) {
+            return findFlatNode(mIgnoreRoot ? position + 1 : position);
+        }
+
         if (mIgnoreRoot) {
             int pos = position + 1;
             return mList.get(pos);
@@ -67,8 +215,8 @@ public class NodeFlatIndex {
         }
     }
 
-    public int indexOf(DataNode dataNode) {
-        int index = mList.indexOf(dataNode);
+    private int indexOfUnlocked(DataNode dataNode) {
+        int index = flatOffsetOf(dataNode);
         if (mIgnoreRoot) {
             return index - 1;
         } else {
@@ -76,15 +224,26 @@ public class NodeFlatIndex {
         }
     }
 
-    public int size() {
+    private int sizeUnlocked() {
+        int size = mMode == INDEX_MODE_IMPLICIT ? mRootNode.getFlatSize() : mList.size();
         if (mIgnoreRoot) {
-            assert mList.size() > 0;
-            return mList.size() - 1;
+            assert size > 0;
+            return size - 1;
         } else {
-            return mList.size();
+            return size;
         }
     }
 
+    /**
+     * 按索引顺序遍历节点,直接沿树结构遍历,O(n).
+     * 返回的迭代器可以分割后并行遍历,见{@link NodeSpliterator}
+     *
+     * @return
+     */
+    public NodeSpliterator iterator() {
+        return new NodeSpliterator(mRootNode, false, mIgnoreRoot);
+    }
+
     /**
      * 获取可见索引
      *
@@ -95,18 +254,85 @@ public class NodeFlatIndex {
             throw new RuntimeException("NodeFlatIndex is invalidated !!!");
         }
 
-        if (mVisibleList == null) {
-            mVisibleList = new LinkedList<DataNode>();
-            if (mRootNode.isVisible()) {
-                addSubtreeToVisibleList(0, mRootNode, true);
+        if (mMode == INDEX_MODE_MATERIALIZED && mVisibleList == null) {
+            TreeLock lock = lockTree();
+            try {
+                mVisibleList = mStoreFactory.create();
+                if (mRootNode.isVisible()) {
+                    addSubtreeToVisibleList(0, mRootNode, true);
+                }
+            } finally {
+                unlockTree(lock);
             }
         }
 
         return mVisibleFlatIndex;
     }
 
+    /**
+     * 获取子树视图,与本索引共用数据,见{@link FlatIndexView}.
+     * 用于只显示一部分节点树(如详情)的界面,代替在子树上创建独立的索引
+     *
+     * @param subtree 本索引的节点树中的节点
+     * @return
+     */
+    public FlatIndexView getSubtreeView(DataNode subtree) {
+        if (mInvalidated) {
+            throw new RuntimeException("NodeFlatIndex is invalidated !!!");
+        }
+
+        if (readInt(READ_SUBTREE_SIZE, subtree, null) == 0) {
+            throw new IllegalArgumentException("node is not in this index");
+        }
+        return new FlatIndexView(this, subtree);
+    }
+
+    /**
+     * 获取按条件过滤的索引,已存在则更换其条件(重新判断所有节点).
+     * 过滤索引跟随树结构改变,见{@link FilteredFlatIndex}
+     *
+     * @param filter
+     * @return
+     */
+    public FilteredFlatIndex getFilteredIndex(NodeFilter filter) {
+        if (mInvalidated) {
+            throw new RuntimeException("NodeFlatIndex is invalidated !!!");
+        }
+
+        TreeLock lock = lockTree();
+        try {
+            if (mFilteredFlatIndex == null) {
+                mFilteredFlatIndex = new FilteredFlatIndex(this, filter);
+            } else {
+                mFilteredFlatIndex.setFilter(filter, FILTER_CHANGED);
+            }
+            return mFilteredFlatIndex;
+        } finally {
+            unlockTree(lock);
+        }
+    }
+
+    /**
+     * @return 没有创建过滤索引,或已销毁时返回null
+     */
+    public FilteredFlatIndex getFilteredIndex() {
+        return mFilteredFlatIndex;
+    }
+
+    void onFilteredIndexInvalidated(FilteredFlatIndex filteredFlatIndex) {
+        if (mFilteredFlatIndex == filteredFlatIndex) {
+            mFilteredFlatIndex = null;
+        }
+    }
+
     public void ignoreRoot(boolean ignoreRoot) {
-        mIgnoreRoot = ignoreRoot;
+        TreeLock lock = lockTree();
+        try {
+            mIgnoreRoot = ignoreRoot;
+            mVersion++;
+        } finally {
+            unlockTree(lock);
+        }
     }
 
     public boolean isIgnoreRoot() {
@@ -114,6 +340,69 @@ public class NodeFlatIndex {
     }
 
 
+    /**
+     * 监听索引的改变
+     *
+     * @param listener
+     */
+    public void addIndexChangeListener(IndexChangeListener listener) {
+        mFlatChanges.addListener(listener);
+    }
+
+    public void removeIndexChangeListener(IndexChangeListener listener) {
+        mFlatChanges.removeListener(listener);
+    }
+
+    /**
+     * 当前版本,索引每次改变都会增加
+     *
+     * @return
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 获取当前平坦索引和可见索引的不可变快照,O(1).
+     * 只有使用{@link PersistentNodeStore#FACTORY}创建的物化索引支持,
+     * 可见索引没有创建时会先创建.
+     * 只能在修改节点树的线程调用,快照本身可以交给其他线程读取
+     *
+     * @return
+     */
+    public IndexSnapshot snapshot() {
+        if (!(mList instanceof PersistentNodeStore)) {
+            throw new IllegalStateException("snapshot requires an index created with PersistentNodeStore.FACTORY");
+        }
+
+        getVisibleIndex();
+        return new IndexSnapshot(mVersion,
+                ((PersistentNodeStore) mList).snapshot(),
+                ((PersistentNodeStore) mVisibleList).snapshot(),
+                mIgnoreRoot,
+                isRootIgnoredInVisibleIndex());
+    }
+
+    /**
+     * 创建当前快照并原子地发布,其他线程通过{@link #getPublishedSnapshot()}读取
+     *
+     * @return 发布的快照
+     */
+    public IndexSnapshot publish() {
+        IndexSnapshot snapshot = snapshot();
+        mPublishedSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * 最近一次发布的快照,可以在任何线程调用
+     *
+     * @return 没有发布过则返回null
+     */
+    public IndexSnapshot getPublishedSnapshot() {
+        return mPublishedSnapshot;
+    }
+
     /**
      * 将子树展平并添加到索引和可见索引(如果可见索引已创建到话)
      *
@@ -122,15 +411,80 @@ public class NodeFlatIndex {
      * @param subtree
      */
     void addSubtree(DataNode preSibling, DataNode preVisibleSibling, DataNode subtree) {
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            mFilteredFlatIndex.onSubtreeAdded(subtree);
+        }
+        boolean trackVisible = isVisibleTracked() && subtree.isVisible();
+        if (!isFlatTracked() && !trackVisible) {
+            return;
+        }
+
         int basePosition = getBasePosition(preSibling, subtree);
-        int baseVisibleListPosition = 0;
-        boolean addToVisibleList = false;
-        if (mVisibleList != null && subtree.isVisible()) {
-            baseVisibleListPosition = getVisibleBasePosition(preVisibleSibling, subtree);
-            addToVisibleList = true;
+        int baseVisibleListPosition = trackVisible ? getVisibleBasePosition(preVisibleSibling, subtree) : -1;
+
+        if (mMode == INDEX_MODE_MATERIALIZED) {
+            addSubtree(basePosition, baseVisibleListPosition, subtree, mVisibleList != null && baseVisibleListPosition >= 0);
+        }
+
+        fireInserted(mFlatChanges, basePosition, subtree.getFlatSize());
+        if (baseVisibleListPosition >= 0) {
+            fireInserted(mVisibleChanges, baseVisibleListPosition, subtree.getVisibleFlatSize());
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * 将一组连续的兄弟节点树展开,一次性添加到索引和可见索引(如果可见索引已创建到话).
+     * 调用时节点已在树中,数量已更新
+     *
+     * @param subtrees
+     */
+    void addSubtrees(List<DataNode> subtrees) {
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            for (int i = 0; i < subtrees.size(); ++i) {
+                mFilteredFlatIndex.onSubtreeAdded(subtrees.get(i));
+            }
+        }
+        boolean trackVisible = isVisibleTracked();
+        if (!isFlatTracked() && !trackVisible) {
+            return;
+        }
+
+        DataNode first = subtrees.get(0);
+        int basePosition = flatOffsetOf(first);
+        assert basePosition >= 0;
+        int baseVisiblePosition = trackVisible ? visiblePositionOf(first) : -1;//不考虑第一个节点本身是否可见
+
+        int flatSize = 0;
+        int visibleFlatSize = 0;
+        for (int i = 0; i < subtrees.size(); ++i) {
+            flatSize += subtrees.get(i).getFlatSize();
+            visibleFlatSize += subtrees.get(i).getVisibleFlatSize();
+        }
+
+        if (mMode == INDEX_MODE_MATERIALIZED) {
+            List<DataNode> nodes = new ArrayList<DataNode>(flatSize);
+            for (int i = 0; i < subtrees.size(); ++i) {
+                collectNodes(subtrees.get(i), nodes, false);
+            }
+            mList.addAll(basePosition, nodes);
+
+            if (mVisibleList != null && baseVisiblePosition >= 0) {
+                List<DataNode> visibleNodes = new ArrayList<DataNode>(visibleFlatSize);
+                for (int i = 0; i < subtrees.size(); ++i) {
+                    collectNodes(subtrees.get(i), visibleNodes, true);
+                }
+                mVisibleList.addAll(baseVisiblePosition, visibleNodes);
+            }
         }
 
-        addSubtree(basePosition, baseVisibleListPosition, subtree, addToVisibleList);
+        fireInserted(mFlatChanges, basePosition, flatSize);
+        if (baseVisiblePosition >= 0) {
+            fireInserted(mVisibleChanges, baseVisiblePosition, visibleFlatSize);
+        }
+        dispatchChanges();
     }
 
     /**
@@ -139,27 +493,191 @@ public class NodeFlatIndex {
      * @param dataNode
      */
     void removeFlatNodes(DataNode dataNode) {
-        int position = mList.indexOf(dataNode);
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            mFilteredFlatIndex.onSubtreeRemoved(dataNode);
+        }
+        boolean trackVisible = isVisibleTracked() && dataNode.isVisible();
+        if (!isFlatTracked() && !trackVisible) {
+            return;
+        }
+
+        int position = flatOffsetOf(dataNode);
         assert position >= 0;
         if (position >= 0) {
-            for (int i = 0; i < dataNode.getFlatSize(); ++i) {
+            if (mMode == INDEX_MODE_MATERIALIZED) {
                 try {
-                    mList.remove(position);
+                    mList.removeRange(position, dataNode.getFlatSize());
                 } catch (IndexOutOfBoundsException throwable) {
                     throw new RuntimeException("索引状态不正确,节点树无法完全从索引删除,bug??", throwable);
                 }
             }
+            fireRemoved(mFlatChanges, position, dataNode.getFlatSize());
+        }
+
+        if (trackVisible) {
+            int visiblePosition = visibleOffsetOf(dataNode);//先辈节点不可见或折叠时不在可见列表中
+            if (visiblePosition >= 0) {
+                if (mVisibleList != null) {
+                    mVisibleList.removeRange(visiblePosition, dataNode.getVisibleFlatSize());
+                }
+                fireRemoved(mVisibleChanges, visiblePosition, dataNode.getVisibleFlatSize());
+            }
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * 节点树在父节点的子节点中移动了位置(排序),数量都没有改变,
+     * 其在索引中的区间整体移动,发出一个移动事件
+     *
+     * @param subtree
+     * @param fromSlot 移动前在父节点全部子节点中的位置
+     */
+    void moveSubtree(DataNode subtree, int fromSlot) {
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            mFilteredFlatIndex.onSubtreeMoved(subtree);
+        }
+
+        DataNode parent = subtree.getParentNode();
+        int toSlot = parent.slotOf(subtree);
+        ChildSizeSums sums = parent.getChildSizeSums();
+
+        if (isFlatTracked()) {
+            /*
+            fromSlot和toSlot中较小者之前的兄弟节点没有改变;
+            向前移动时,原来在该节点之前的兄弟节点现在位于[0, fromSlot + 1)中除该节点以外的位置
+             */
+            int offset = flatOffsetOf(subtree);
+            int base = offset - sums.flatSizeBefore(parent, toSlot);
+            int oldOffset = fromSlot < toSlot
+                    ? base + sums.flatSizeBefore(parent, fromSlot)
+                    : base + sums.flatSizeBefore(parent, fromSlot + 1) - subtree.getFlatSize();
+            if (mMode == INDEX_MODE_MATERIALIZED) {
+                mList.move(oldOffset, subtree.getFlatSize(), offset);
+            }
+            fireMoved(mFlatChanges, oldOffset, offset, subtree.getFlatSize());
+        }
+
+        if (isVisibleTracked() && subtree.isVisible()) {
+            int offset = visibleOffsetOf(subtree);
+            if (offset >= 0) {
+                int base = offset - sums.visibleSizeBefore(parent, toSlot);
+                int oldOffset = fromSlot < toSlot
+                        ? base + sums.visibleSizeBefore(parent, fromSlot)
+                        : base + sums.visibleSizeBefore(parent, fromSlot + 1) - subtree.getVisibleFlatSize();
+                if (mVisibleList != null) {
+                    mVisibleList.move(oldOffset, subtree.getVisibleFlatSize(), offset);
+                }
+                fireMoved(mVisibleChanges, oldOffset, offset, subtree.getVisibleFlatSize());
+            }
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * 节点树将移动到本索引内的另一个位置(见DataNode#moveTo),调用时仍在原位置
+     *
+     * @param subtree
+     * @return 移动前相对根节点的偏移量和可见偏移量,不需要计算改变或不可见时为-1
+     */
+    int[] prepareRelocation(DataNode subtree) {
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            mFilteredFlatIndex.onSubtreeDetached(subtree);
+        }
+
+        int offset = isFlatTracked() ? flatOffsetOf(subtree) : -1;
+        int visibleOffset = isVisibleTracked() ? visibleOffsetOf(subtree) : -1;
+        return new int[]{offset, visibleOffset};
+    }
+
+    /**
+     * 节点树已移动到新的位置(可能换了父节点),平坦区间整体移动;
+     * 可见区间在移动前后都可见时整体移动,否则删除或添加
+     *
+     * @param subtree
+     * @param oldOffset        {@link #prepareRelocation(DataNode)}返回的偏移量
+     * @param oldVisibleOffset {@link #prepareRelocation(DataNode)}返回的可见偏移量
+     */
+    void relocateSubtree(DataNode subtree, int oldOffset, int oldVisibleOffset) {
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            mFilteredFlatIndex.onSubtreeAttached(subtree);
+        }
+
+        if (oldOffset >= 0) {
+            int offset = flatOffsetOf(subtree);
+            int size = subtree.getFlatSize();
+            if (mMode == INDEX_MODE_MATERIALIZED) {
+                mList.move(oldOffset, size, offset);
+            }
+            fireRelocated(mFlatChanges, oldOffset, offset, size);
+        }
+
+        if (isVisibleTracked()) {
+            int visibleOffset = visibleOffsetOf(subtree);
+            int size = subtree.getVisibleFlatSize();
+            if (oldVisibleOffset >= 0 && visibleOffset >= 0) {
+                if (mVisibleList != null) {
+                    mVisibleList.move(oldVisibleOffset, size, visibleOffset);
+                }
+                fireRelocated(mVisibleChanges, oldVisibleOffset, visibleOffset, size);
+            } else if (oldVisibleOffset >= 0) {
+                if (mVisibleList != null) {
+                    mVisibleList.removeRange(oldVisibleOffset, size);
+                }
+                fireRemoved(mVisibleChanges, oldVisibleOffset, size);
+            } else if (visibleOffset >= 0) {
+                if (mVisibleList != null) {
+                    addSubtreeToVisibleList(visibleOffset, subtree, true);
+                }
+                fireInserted(mVisibleChanges, visibleOffset, size);
+            }
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * 节点树被批量修改后,用其当前的展开结果整体替换其在索引中原来的区间
+     *
+     * @param subtree                被修改的节点树(索引根节点或其子孙)
+     * @param oldFlatSize            修改前节点树的平坦大小
+     * @param oldVisibleFlatSize     修改前节点树的可见平坦大小
+     */
+    void replaceSubtree(DataNode subtree, int oldFlatSize, int oldVisibleFlatSize) {
+        if (mInvalidated) {
+            return;
+        }
+        mVersion++;
+        if (mFilteredFlatIndex != null) {
+            mFilteredFlatIndex.onSubtreeReplaced(subtree);
+        }
+
+        if (isFlatTracked()) {
+            int position = flatOffsetOf(subtree);
+            assert position >= 0;
+            if (mMode == INDEX_MODE_MATERIALIZED) {
+                mList.removeRange(position, oldFlatSize);
+                addSubtree(position, 0, subtree, false);
+            }
+            fireReplaced(mFlatChanges, position, oldFlatSize, subtree.getFlatSize());
         }
 
-        if (mVisibleList != null && dataNode.isVisible()) {//todo 此处判断有误，这个node可见，不代表其父节点可见，所以并不一定在可见列表中
-            int visiblePosition = mVisibleList.indexOf(dataNode);
-//            assert visiblePosition >= 0;
-            if (visiblePosition > 0) {
-                for (int i = 0; i < dataNode.getVisibleFlatSize(); ++i) {
-                    mVisibleList.remove(visiblePosition);
+        if (isVisibleTracked()) {
+            int visiblePosition = visiblePositionOf(subtree);
+            if (visiblePosition >= 0) {
+                if (mVisibleList != null) {
+                    mVisibleList.removeRange(visiblePosition, oldVisibleFlatSize);
+                    if (subtree.isVisible()) {
+                        addSubtreeToVisibleList(visiblePosition, subtree, true);
+                    }
                 }
+                fireReplaced(mVisibleChanges, visiblePosition, oldVisibleFlatSize, subtree.getVisibleFlatSize());
             }
         }
+        dispatchChanges();
     }
 
     /**
@@ -171,18 +689,27 @@ public class NodeFlatIndex {
      * @param currentVisibility
      */
     void onNodeVisibilityChange(DataNode preVisibleCousinDataNode, DataNode dataNode, boolean currentVisibility) {
-        if (mVisibleList == null) {
+        mVersion++;
+        fireNodeChanged(dataNode);
+
+        if (!isVisibleTracked()) {
+            dispatchChanges();
             return;
         }
 
         if (currentVisibility == true) {
             int basePosition = getVisibleBasePosition(preVisibleCousinDataNode, dataNode);
-            if (basePosition >= 0)
-                addSubtreeToVisibleList(basePosition, dataNode, true);
+            if (basePosition >= 0) {
+                if (mVisibleList != null) {
+                    addSubtreeToVisibleList(basePosition, dataNode, true);
+                }
+                fireInserted(mVisibleChanges, basePosition, dataNode.getVisibleFlatSize());
+            }
         } else {
             int sizeToRemove = DataNode.calculateVisibleFlatSize(!currentVisibility,dataNode.isFold(),dataNode.getDescendantVisibleSize());
             removeFlattedNodesFromVisibleList(dataNode, sizeToRemove, true);
         }
+        dispatchChanges();
     }
 
     /**
@@ -193,27 +720,32 @@ public class NodeFlatIndex {
      * @param currentFolded
      */
     void onNodeFoldStateChange(DataNode dataNode, boolean currentFolded) {
-        if (mVisibleList == null) {
-            return;
-        }
+        mVersion++;
+        fireNodeChanged(dataNode);
 
         /*
         如果该节点本身不可见,则不会引起可见节点数量的改变
          */
-        if (!dataNode.isVisible()) {
+        if (!isVisibleTracked() || !dataNode.isVisible()) {
+            dispatchChanges();
             return;
         }
 
-        int visibleFlatSizeToRemove = DataNode.calculateVisibleFlatSize(dataNode.isVisible(), !currentFolded, dataNode.getDescendantVisibleSize());
-
-        if (currentFolded) {
-            removeFlattedNodesFromVisibleList(dataNode, visibleFlatSizeToRemove,false);
-        } else {
-            int basePosition = mVisibleList.indexOf(dataNode);
-//            assert basePosition >= 0; 可能其先辈节点不可见，所以不一定在visible list 中
-            if (basePosition >= 0)
-                addSubtreeToVisibleList(++basePosition, dataNode, false);
+        int basePosition = visibleOffsetOf(dataNode);
+        //可能其先辈节点不可见，所以不一定在visible list 中
+        if (basePosition >= 0) {
+            fireChanged(mVisibleChanges, basePosition, 1);
+            if (currentFolded) {
+                int visibleFlatSizeToRemove = dataNode.getDescendantVisibleSize();//折叠前可见的子孙节点,不包括该节点本身
+                removeFlattedNodesFromVisibleList(dataNode, visibleFlatSizeToRemove, false);
+            } else {
+                if (mVisibleList != null) {
+                    addSubtreeToVisibleList(basePosition + 1, dataNode, false);
+                }
+                fireInserted(mVisibleChanges, basePosition + 1, dataNode.getDescendantVisibleSize());
+            }
         }
+        dispatchChanges();
     }
 
     /**
@@ -223,8 +755,7 @@ public class NodeFlatIndex {
      * @param includeRootNode 是否连同该根节点一期删除
      */
     private void removeFlattedNodesFromVisibleList(DataNode dataNode, int size, boolean includeRootNode) {
-        int basePosition = mVisibleList.indexOf(dataNode);
-//        assert basePosition >= 0;
+        int basePosition = visiblePositionOf(dataNode);//节点本身可能已经变为不可见,只按先辈节点的状态判断
         if(basePosition < 0)
             return;
 
@@ -232,43 +763,139 @@ public class NodeFlatIndex {
             basePosition++;
         }
 
-        for (int i = 0; i < size; ++i) {
-            mVisibleList.remove(basePosition);
+        if (mVisibleList != null) {
+            mVisibleList.removeRange(basePosition, size);
         }
+        fireRemoved(mVisibleChanges, basePosition, size);
     }
 
     /**
-     * 在添加节点到可见列表前,可用此方法得到
-     * 该节点在可见列表中应该在的位置,如果不应该在可见列表中,返回-1
-     *
-     * @param preVisibleSibling
-     * @param dataNode
-     * @return
+     * 是否需要计算平坦索引的改变:物化索引需要更新存储,或者有监听者
      */
-    private int getVisibleBasePosition(DataNode preVisibleSibling, DataNode dataNode) {
-        DataNode parentNode = dataNode.getParentNode();
-        if (parentNode == null) {//根节点
-            assert preVisibleSibling == null;
-            return 0;
-        }
-
-        int parentVisiblePosition = mVisibleList.indexOf(parentNode);
-        if (parentVisiblePosition < 0) {
-            return -1;
-        }
-
-        assert mVisibleList.indexOf(preVisibleSibling) >= 0;
-
-        return mVisibleList.indexOf(preVisibleSibling) + preVisibleSibling.getVisibleFlatSize();
-
+    private boolean isFlatTracked() {
+        return mMode == INDEX_MODE_MATERIALIZED || mFlatChanges.hasListeners();
     }
 
     /**
-     * 当节点树要添加到索引前,用此方法找到节点树在索引的基本位置(该节点树最前的位置)
-     *
-     * @param preCousinNode 该节点树的同辈节点
-     * @param dataNode      将要添加的节点树
-     * @return
+     * 是否需要计算可见索引的改变:物化的可见索引已创建,或者有监听者
+     */
+    private boolean isVisibleTracked() {
+        return mVisibleList != null || (mMode == INDEX_MODE_IMPLICIT && mVisibleChanges.hasListeners());
+    }
+
+    /**
+     * 节点自身状态(可见,折叠)改变,在平坦索引中对应的行需要更新
+     */
+    private void fireNodeChanged(DataNode dataNode) {
+        if (mFlatChanges.hasListeners()) {
+            fireChanged(mFlatChanges, flatOffsetOf(dataNode), 1);
+        }
+    }
+
+    /*
+    以下fire*方法的位置都是相对于根节点的偏移量,根节点被忽略时转换为索引中的位置.
+    根节点只会出现在偏移量0处
+     */
+
+    private void fireInserted(IndexChangeDispatcher changes, int offset, int count) {
+        if (mIgnoreRoot && offset == 0) {
+            changes.inserted(0, count - 1);
+        } else {
+            changes.inserted(mIgnoreRoot ? offset - 1 : offset, count);
+        }
+    }
+
+    private void fireRemoved(IndexChangeDispatcher changes, int offset, int count) {
+        if (mIgnoreRoot && offset == 0) {
+            changes.removed(0, count - 1);
+        } else {
+            changes.removed(mIgnoreRoot ? offset - 1 : offset, count);
+        }
+    }
+
+    private void fireChanged(IndexChangeDispatcher changes, int offset, int count) {
+        if (mIgnoreRoot && offset == 0) {
+            changes.changed(0, count - 1);
+        } else {
+            changes.changed(mIgnoreRoot ? offset - 1 : offset, count);
+        }
+    }
+
+    /**
+     * 移动的节点树不是根节点,偏移量都大于0
+     */
+    private void fireMoved(IndexChangeDispatcher changes, int fromOffset, int toOffset, int count) {
+        if (mIgnoreRoot) {
+            changes.moved(fromOffset - 1, toOffset - 1, count);
+        } else {
+            changes.moved(fromOffset, toOffset, count);
+        }
+    }
+
+    /**
+     * 换了父节点的移动:偏移量不变时节点的深度仍然改变了,发出改变事件
+     */
+    private void fireRelocated(IndexChangeDispatcher changes, int fromOffset, int toOffset, int count) {
+        if (fromOffset == toOffset) {
+            fireChanged(changes, toOffset, count);
+        } else {
+            fireMoved(changes, fromOffset, toOffset, count);
+        }
+    }
+
+    /**
+     * 区间[offset, offset + oldCount)被替换为newCount个节点:重叠部分为改变,其余为插入或删除
+     */
+    private void fireReplaced(IndexChangeDispatcher changes, int offset, int oldCount, int newCount) {
+        int common = Math.min(oldCount, newCount);
+        fireChanged(changes, offset, common);
+        if (newCount > oldCount) {
+            fireInserted(changes, offset + common, newCount - oldCount);
+        } else if (oldCount > newCount) {
+            fireRemoved(changes, offset + common, oldCount - newCount);
+        }
+    }
+
+    private void dispatchChanges() {
+        mFlatChanges.dispatch();
+        mVisibleChanges.dispatch();
+    }
+
+    /**
+     * 在添加节点到可见列表前,可用此方法得到
+     * 该节点在可见列表中应该在的位置,如果不应该在可见列表中,返回-1
+     *
+     * @param preVisibleSibling
+     * @param dataNode
+     * @return
+     */
+    private int getVisibleBasePosition(DataNode preVisibleSibling, DataNode dataNode) {
+        DataNode parentNode = dataNode.getParentNode();
+        if (parentNode == null || dataNode == mRootNode) {//根节点
+            return 0;
+        }
+
+        int parentVisiblePosition = visibleOffsetOf(parentNode);
+        if (parentVisiblePosition < 0 || parentNode.isFold()) {
+            return -1;
+        }
+
+        if (preVisibleSibling == null) {
+            return parentVisiblePosition + 1;
+        }
+
+        assert visibleOffsetOf(preVisibleSibling) >= 0;
+
+        return visibleOffsetOf(preVisibleSibling) + preVisibleSibling.getVisibleFlatSize();
+
+    }
+
+    /**
+     * 当节点树要添加到索引前,用此方法找到节点树在索引的基本位置(该节点树最前的位置)
+     *
+     * @param preCousinNode 该节点树的同辈节点
+     * @param dataNode      将要添加的节点树
+     * @return
      */
     private int getBasePosition(DataNode preCousinNode, DataNode dataNode) {
         DataNode parentNode = dataNode.getParentNode();
@@ -279,7 +906,7 @@ public class NodeFlatIndex {
                 *如果父亲节点为空,说明该节点本身是根节点,应该从列表最初开始添加
                 */
 
-                assert mList.size() == 0;
+                assert mList == null || mList.size() == 0;
                 /*if(mList.size() != 0){
                     throw new RuntimeException("添加根节点的索引大小应该为0");
                 }*/
@@ -290,7 +917,7 @@ public class NodeFlatIndex {
                  */
 
 
-                int parentPosition = mList.indexOf(dataNode.getParentNode());
+                int parentPosition = flatOffsetOf(dataNode.getParentNode());
                 assert parentPosition >= 0;
                 return parentPosition + 1;
             }
@@ -299,7 +926,7 @@ public class NodeFlatIndex {
             *添加的基础位置应该在前一个兄妹节点展开之后最后一个节点之后
              */
 
-            return mList.indexOf(preCousinNode) + preCousinNode.getFlatSize() /* - 1 + 1 */;
+            return flatOffsetOf(preCousinNode) + preCousinNode.getFlatSize() /* - 1 + 1 */;
         }
     }
 
@@ -311,140 +938,883 @@ public class NodeFlatIndex {
      * @param includeRootNode
      */
     private void addSubtreeToVisibleList(int basePosition, DataNode rootNode, boolean includeRootNode) {
+        List<DataNode> nodes = new ArrayList<DataNode>(rootNode.getDescendantVisibleSize() + 1);
         if (includeRootNode) {
-            mVisibleList.add(basePosition, rootNode);
-            basePosition++;
+            nodes.add(rootNode);
         }
 
         /*
-         *如果本节点未被添加到可见节点列表,或者本节点是折叠状态(子节点不可见),则子节点将不可见,不能添加到可见节点列表
+         *如果本节点是折叠状态(子节点不可见),则子节点将不可见,不能添加到可见节点列表
          */
-        boolean childHasChanceToAddToVisibleList;
         if (!rootNode.isFold()) {
-            childHasChanceToAddToVisibleList = true;
-        } else {
-            childHasChanceToAddToVisibleList = false;
+            for (int i = 0; i < rootNode.getAllChildNodeSize(); ++i) {
+                collectNodes(rootNode.getNodeAt(i), nodes, true);
+            }
+        }
+
+        mVisibleList.addAll(basePosition, nodes);
+    }
+
+    /**
+     * 添加节点树到索引,如果有可见索引,则同时将可见的节点添加到可见索引.
+     * 节点树先展开,再一次性插入到存储中
+     *
+     * @param basePosition        添加的最前的位置,后代节点将添加到该位置之后
+     * @param baseVisiblePosition 添加的可见索引的最前位置,后代节点将添加到该位置之后
+     * @param subtree             将要添加到节点树
+     * @param addToVisibleList    是否要添加到可见索引(方法外调用时需要判断可见列表是否最在)
+     */
+    private void addSubtree(int basePosition, int baseVisiblePosition, DataNode subtree, boolean addToVisibleList) {
+        List<DataNode> nodes = new ArrayList<DataNode>(subtree.getFlatSize());
+        collectNodes(subtree, nodes, false);
+        mList.addAll(basePosition, nodes);
+
+        if (addToVisibleList) {
+            List<DataNode> visibleNodes = new ArrayList<DataNode>(subtree.getVisibleFlatSize());
+            collectNodes(subtree, visibleNodes, true);
+            mVisibleList.addAll(baseVisiblePosition, visibleNodes);
         }
+    }
 
-        for (int i = 0; i < rootNode.getHeaderNodeSize(); ++i) {
-            DataNode node = rootNode.getHeaderNode(i);
-            boolean childAddToVisibleList = childHasChanceToAddToVisibleList && node.isVisible();
-            if (childAddToVisibleList && node.isVisible()) {
-                addSubtreeToVisibleList(basePosition, node, true);
-                basePosition += node.getVisibleFlatSize();
+    /**
+     * 按平坦索引的顺序展开节点树
+     *
+     * @param rootNode
+     * @param out
+     * @param visibleOnly 是否只展开可见的节点(跳过不可见的节点树和折叠节点的子孙)
+     */
+    private static void collectNodes(DataNode rootNode, List<DataNode> out, boolean visibleOnly) {
+        List<DataNode> stack = new ArrayList<DataNode>();
+        stack.add(rootNode);
+        while (!stack.isEmpty()) {
+            DataNode node = stack.remove(stack.size() - 1);
+            if (visibleOnly && !node.isVisible()) {
+                continue;
+            }
+
+            out.add(node);
+            if (visibleOnly && node.isFold()) {
+                continue;
+            }
+
+            for (int i = node.getAllChildNodeSize() - 1; i >= 0; --i) {
+                stack.add(node.getNodeAt(i));
             }
         }
+    }
 
-        for (int i = 0; i < rootNode.getChildNodeSize(); ++i) {
-            DataNode node = rootNode.getChildNode(i);
-            boolean childAddToVisibleList = childHasChanceToAddToVisibleList && node.isVisible();
-            if (childAddToVisibleList && node.isVisible()) {
-                addSubtreeToVisibleList(basePosition, node, true);
-                basePosition += node.getVisibleFlatSize();
+    /**
+     * 从根节点向下查找平坦偏移量(相对根节点)所对应的节点,
+     * 每一层用子节点展开大小的前缀和二分查找,不需要展开整棵树
+     *
+     * @param offset
+     * @return
+     */
+    private DataNode findFlatNode(int offset) {
+        if (offset < 0 || offset >= mRootNode.getFlatSize()) {
+            throw new IndexOutOfBoundsException("Index: " + offset + ", Size: " + mRootNode.getFlatSize());
+        }
+
+        DataNode node = mRootNode;
+        int steps = 0;
+        while (offset > 0) {
+            offset--;//跳过当前节点本身
+            ChildSizeSums sums = node.getChildSizeSums();
+            int slot = sums.findSlotByFlatOffset(node, offset);
+            assert slot >= 0;
+            offset -= sums.flatSizeBefore(node, slot);
+            node = node.getNodeAt(slot);
+            steps++;
+        }
+        TreeMetrics.addWalkSteps(steps);
+        return node;
+    }
+
+    /**
+     * 从根节点向下查找可见偏移量(相对根节点)所对应的节点
+     *
+     * @param offset
+     * @return
+     */
+    private DataNode findVisibleNode(int offset) {
+        if (offset < 0 || offset >= mRootNode.getVisibleFlatSize()) {
+            throw new IndexOutOfBoundsException("Index: " + offset + ", Size: " + mRootNode.getVisibleFlatSize());
+        }
+
+        DataNode node = mRootNode;
+        int steps = 0;
+        while (offset > 0) {
+            offset--;
+            ChildSizeSums sums = node.getChildSizeSums();
+            int slot = sums.findSlotByVisibleOffset(node, offset);
+            assert slot >= 0;
+            offset -= sums.visibleSizeBefore(node, slot);
+            node = node.getNodeAt(slot);
+            steps++;
+        }
+        TreeMetrics.addWalkSteps(steps);
+        return node;
+    }
+
+    /**
+     * 沿父节点向上计算节点相对根节点的平坦偏移量
+     *
+     * @param dataNode
+     * @return 节点不在该索引对应的树中则返回-1
+     */
+    private int flatOffsetOf(DataNode dataNode) {
+        int offset = 0;
+        int steps = 0;
+        DataNode node = dataNode;
+        while (node != mRootNode) {
+            DataNode parent = node.getParentNode();
+            if (parent == null) {
+                offset = -1;
+                break;
             }
+            offset += 1 + parent.getChildSizeSums().flatSizeBefore(parent, parent.slotOf(node));
+            node = parent;
+            steps++;
+        }
+        TreeMetrics.addWalkSteps(steps);
+        return offset;
+    }
+
+    /**
+     * 沿父节点向上计算节点相对根节点的可见偏移量
+     *
+     * @param dataNode
+     * @return 节点不可见(自身或先辈节点不可见,或先辈节点折叠)则返回-1
+     */
+    private int visibleOffsetOf(DataNode dataNode) {
+        if (dataNode == null || !dataNode.isVisible()) {
+            return -1;
         }
 
-        for (int i = 0; i < rootNode.getFooterNodeSize(); ++i) {
-            DataNode node = rootNode.getFooterNode(i);
-            boolean childAddToVisibleList = childHasChanceToAddToVisibleList && node.isVisible();
-            if (childAddToVisibleList && node.isVisible()) {
-                addSubtreeToVisibleList(basePosition, node, true);
-                basePosition += node.getVisibleFlatSize();
+        return visiblePositionOf(dataNode);
+    }
+
+    /**
+     * 不考虑节点本身的可见状态,计算节点在可见列表中的位置(节点可见时所在位置)
+     *
+     * @param dataNode
+     * @return 先辈节点不可见或折叠则返回-1
+     */
+    private int visiblePositionOf(DataNode dataNode) {
+        int offset = 0;
+        int steps = 0;
+        DataNode node = dataNode;
+        while (node != mRootNode) {
+            DataNode parent = node.getParentNode();
+            if (parent == null || !parent.isVisible() || parent.isFold()) {
+                offset = -1;
+                break;
             }
+            offset += 1 + parent.getChildSizeSums().visibleSizeBefore(parent, parent.slotOf(node));
+            node = parent;
+            steps++;
         }
+        TreeMetrics.addWalkSteps(steps);
+        return offset;
     }
 
+    /*
+    子树视图的读取,见FlatIndexView:位置相对子树的根节点,不受ignoreRoot影响.
+    子树不在索引中(已删除,或可见视图中先辈节点不可见或折叠)时视图为空
+     */
+
+    private int subtreeOffsetUnlocked(boolean visible, DataNode subtree) {
+        return visible ? visibleOffsetOf(subtree) : flatOffsetOf(subtree);
+    }
+
+    private int subtreeSizeUnlocked(boolean visible, DataNode subtree) {
+        if (subtreeOffsetUnlocked(visible, subtree) < 0) {
+            return 0;
+        }
+        return visible ? subtree.getVisibleFlatSize() : subtree.getFlatSize();
+    }
+
+    private int subtreeIndexOfUnlocked(boolean visible, DataNode subtree, DataNode dataNode) {
+        int base = subtreeOffsetUnlocked(visible, subtree);
+        if (base < 0) {
+            return -1;
+        }
+
+        int offset = subtreeOffsetUnlocked(visible, dataNode);
+        int size = visible ? subtree.getVisibleFlatSize() : subtree.getFlatSize();
+        //先序中子树是连续的一段
+        return offset >= base && offset < base + size ? offset - base : -1;
+    }
+
+    private DataNode subtreeNodeUnlocked(boolean visible, DataNode subtree, int position) {
+        int base = subtreeOffsetUnlocked(visible, subtree);
+        int size = base < 0 ? 0 : visible ? subtree.getVisibleFlatSize() : subtree.getFlatSize();
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size);
+        }
+
+        if (visible) {
+            return mVisibleList != null ? mVisibleList.get(base + position) : findVisibleNode(base + position);
+        }
+        return mList != null ? mList.get(base + position) : findFlatNode(base + position);
+    }
+
+    private void fillSubtreeRange(boolean visible, DataNode subtree, int from, int count, DataNode[] out, int offset) {
+        int size = subtreeSizeUnlocked(visible, subtree);
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + (from + count) + "), Size: " + size);
+        }
+        if (offset < 0 || offset + count > out.length) {
+            throw new ArrayIndexOutOfBoundsException("Range: [" + offset + ", " + (offset + count) + "), Length: " + out.length);
+        }
+        if (count == 0) {
+            return;
+        }
+
+        DataNode node = subtreeNodeUnlocked(visible, subtree, from);
+        out[offset] = node;
+        for (int i = 1; i < count; ++i) {
+            node = nextNode(node, visible);
+            out[offset + i] = node;
+        }
+    }
+
+    /**
+     * 读取子树视图中position处的节点
+     */
+    DataNode readSubtreeNode(boolean visible, DataNode subtree, int position) {
+        return readNode(visible, subtree, position);
+    }
+
+    int readSubtreeIndexOf(boolean visible, DataNode subtree, DataNode dataNode) {
+        return readInt(visible ? READ_SUBTREE_VISIBLE_INDEX_OF : READ_SUBTREE_INDEX_OF, subtree, dataNode);
+    }
+
+    int readSubtreeSize(boolean visible, DataNode subtree) {
+        return readInt(visible ? READ_SUBTREE_VISIBLE_SIZE : READ_SUBTREE_SIZE, subtree, null);
+    }
+
+    void readSubtreeRange(boolean visible, DataNode subtree, int from, int count, DataNode[] out, int offset) {
+        readRange(visible, subtree, from, count, out, offset);
+    }
+
+    /*
+    并发模式下的读取,见DataNode#enableConcurrentMode:
+    先乐观读,期间有写者则结果作废(包括读取中抛出的异常),退回读锁重新读取.
+    持有写锁的线程(如在监听回调中)直接读取
+     */
+
+    private static final int READ_INDEX_OF = 1;
+    private static final int READ_SIZE = 2;
+    private static final int READ_VISIBLE_INDEX_OF = 3;
+    private static final int READ_VISIBLE_SIZE = 4;
+    private static final int READ_SUBTREE_INDEX_OF = 5;
+    private static final int READ_SUBTREE_SIZE = 6;
+    private static final int READ_SUBTREE_VISIBLE_INDEX_OF = 7;
+    private static final int READ_SUBTREE_VISIBLE_SIZE = 8;
+
     /**
-     * 添加节点树到索引,如果有可见索引,则同时将可见的节点添加到可见索引
+     * @param subtree 不为空时读取该子树的视图,见{@link FlatIndexView}
+     */
+    private DataNode readNode(boolean visible, DataNode subtree, int position) {
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        DataNode dataNode = readNodeLocked(visible, subtree, position);
+        if (sample != null) {
+            sample.end(TreeMetrics.OP_READ, 1);
+        }
+        return dataNode;
+    }
+
+    private DataNode readNodeLocked(boolean visible, DataNode subtree, int position) {
+        TreeLock lock = mRootNode.findTreeLock();
+        if (lock == null || lock.isWriteLockedByCurrentThread()) {
+            return readNodeUnlocked(visible, subtree, position);
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int readMode = TreeLock.beginRead(TreeLock.READ_OPTIMISTIC);
+            try {
+                DataNode dataNode = readNodeUnlocked(visible, subtree, position);
+                if (lock.validate(stamp)) {
+                    return dataNode;
+                }
+            } catch (RuntimeException e) {
+                //遇到过期的缓存时总是退回读锁
+                if (e != TreeLock.STALE_CACHE && lock.validate(stamp)) {
+                    throw e;
+                }
+            } catch (AssertionError e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            } finally {
+                TreeLock.endRead(readMode);
+            }
+        }
+
+        lock.lockRead();
+        int readMode = TreeLock.beginRead(TreeLock.READ_LOCKED);
+        try {
+            return readNodeUnlocked(visible, subtree, position);
+        } finally {
+            TreeLock.endRead(readMode);
+            lock.unlockRead();
+        }
+    }
+
+    private DataNode readNodeUnlocked(boolean visible, DataNode subtree, int position) {
+        if (subtree != null) {
+            return subtreeNodeUnlocked(visible, subtree, position);
+        }
+        return visible ? mVisibleFlatIndex.getUnlocked(position) : getUnlocked(position);
+    }
+
+    private int readInt(int read, DataNode subtree, DataNode dataNode) {
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        int result = readIntLocked(read, subtree, dataNode);
+        if (sample != null) {
+            sample.end(TreeMetrics.OP_READ, dataNode == null ? 0 : 1);
+        }
+        return result;
+    }
+
+    private int readIntLocked(int read, DataNode subtree, DataNode dataNode) {
+        TreeLock lock = mRootNode.findTreeLock();
+        if (lock == null || lock.isWriteLockedByCurrentThread()) {
+            return readIntUnlocked(read, subtree, dataNode);
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int readMode = TreeLock.beginRead(TreeLock.READ_OPTIMISTIC);
+            try {
+                int result = readIntUnlocked(read, subtree, dataNode);
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                //遇到过期的缓存时总是退回读锁
+                if (e != TreeLock.STALE_CACHE && lock.validate(stamp)) {
+                    throw e;
+                }
+            } catch (AssertionError e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            } finally {
+                TreeLock.endRead(readMode);
+            }
+        }
+
+        lock.lockRead();
+        int readMode = TreeLock.beginRead(TreeLock.READ_LOCKED);
+        try {
+            return readIntUnlocked(read, subtree, dataNode);
+        } finally {
+            TreeLock.endRead(readMode);
+            lock.unlockRead();
+        }
+    }
+
+    private int readIntUnlocked(int read, DataNode subtree, DataNode dataNode) {
+        switch (read) {
+            case READ_INDEX_OF:
+                return indexOfUnlocked(dataNode);
+            case READ_SIZE:
+                return sizeUnlocked();
+            case READ_VISIBLE_INDEX_OF:
+                return mVisibleFlatIndex.indexOfUnlocked(dataNode);
+            case READ_VISIBLE_SIZE:
+                return mVisibleFlatIndex.sizeUnlocked();
+            case READ_SUBTREE_INDEX_OF:
+                return subtreeIndexOfUnlocked(false, subtree, dataNode);
+            case READ_SUBTREE_SIZE:
+                return subtreeSizeUnlocked(false, subtree);
+            case READ_SUBTREE_VISIBLE_INDEX_OF:
+                return subtreeIndexOfUnlocked(true, subtree, dataNode);
+            case READ_SUBTREE_VISIBLE_SIZE:
+                return subtreeSizeUnlocked(true, subtree);
+            default:
+                throw new IllegalArgumentException("unknown read: " + read);
+        }
+    }
+
+    private void readRange(boolean visible, DataNode subtree, int from, int count, DataNode[] out, int offset) {
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        readRangeLocked(visible, subtree, from, count, out, offset);
+        if (sample != null) {
+            sample.end(TreeMetrics.OP_READ, count);
+        }
+    }
+
+    private void readRangeLocked(boolean visible, DataNode subtree, int from, int count, DataNode[] out, int offset) {
+        TreeLock lock = mRootNode.findTreeLock();
+        if (lock == null || lock.isWriteLockedByCurrentThread()) {
+            setFinger(visible, fillRange(visible, subtree, from, count, out, offset));
+            return;
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int readMode = TreeLock.beginRead(TreeLock.READ_OPTIMISTIC);
+            try {
+                Finger finger = fillRange(visible, subtree, from, count, out, offset);
+                if (lock.validate(stamp)) {
+                    setFinger(visible, finger);//只保存有效读取的finger
+                    return;
+                }
+            } catch (RuntimeException e) {
+                //遇到过期的缓存时总是退回读锁
+                if (e != TreeLock.STALE_CACHE && lock.validate(stamp)) {
+                    throw e;
+                }
+            } catch (AssertionError e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            } finally {
+                TreeLock.endRead(readMode);
+            }
+        }
+
+        lock.lockRead();
+        int readMode = TreeLock.beginRead(TreeLock.READ_LOCKED);
+        try {
+            setFinger(visible, fillRange(visible, subtree, from, count, out, offset));
+        } finally {
+            TreeLock.endRead(readMode);
+            lock.unlockRead();
+        }
+    }
+
+    private RowDescriptor readRow(boolean visible, int position, DataNode dataNode, RowDescriptor out) {
+        TreeMetrics.Sample sample = TreeMetrics.begin();
+        out = readRowLocked(visible, position, dataNode, out);
+        if (sample != null) {
+            sample.end(TreeMetrics.OP_READ, 1);
+        }
+        return out;
+    }
+
+    private RowDescriptor readRowLocked(boolean visible, int position, DataNode dataNode, RowDescriptor out) {
+        if (out == null) {
+            out = new RowDescriptor();
+        }
+
+        TreeLock lock = mRootNode.findTreeLock();
+        if (lock == null || lock.isWriteLockedByCurrentThread()) {
+            describeRow(visible, position, dataNode, out);
+            return out;
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int readMode = TreeLock.beginRead(TreeLock.READ_OPTIMISTIC);
+            try {
+                describeRow(visible, position, dataNode, out);
+                if (lock.validate(stamp)) {
+                    return out;
+                }
+            } catch (RuntimeException e) {
+                //遇到过期的缓存时总是退回读锁
+                if (e != TreeLock.STALE_CACHE && lock.validate(stamp)) {
+                    throw e;
+                }
+            } catch (AssertionError e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            } finally {
+                TreeLock.endRead(readMode);
+            }
+        }
+
+        lock.lockRead();
+        int readMode = TreeLock.beginRead(TreeLock.READ_LOCKED);
+        try {
+            describeRow(visible, position, dataNode, out);
+            return out;
+        } finally {
+            TreeLock.endRead(readMode);
+            lock.unlockRead();
+        }
+    }
+
+    /**
+     * 沿父节点向上两遍:第一遍算出深度,第二遍记录每层是否有后续的兄弟节点
      *
-     * @param basePosition        添加的最前的位置,后代节点将添加到该位置之后
-     * @param baseVisiblePosition 添加的可见索引的最前位置,后代节点将添加到该位置之后
-     * @param subtree             将要添加到节点树
-     * @param addToVisibleList    是否要添加到可见索引(方法外调用时需要判断可见列表是否最在)
+     * @param dataNode 为null时按position查找
      */
-    private void addSubtree(int basePosition, int baseVisiblePosition, DataNode subtree, boolean addToVisibleList) {
-        mList.add(basePosition, subtree);
-        basePosition++;
-        if (addToVisibleList) {
-            mVisibleList.add(baseVisiblePosition, subtree);
-            baseVisiblePosition++;
+    private void describeRow(boolean visible, int position, DataNode dataNode, RowDescriptor out) {
+        DataNode node = dataNode != null ? dataNode : readNodeUnlocked(visible, null, position);
+
+        int level = 0;//相对索引根节点的层数
+        for (DataNode n = node; n != mRootNode; n = n.getParentNode()) {
+            if (n.getParentNode() == null) {
+                throw new IllegalArgumentException("node is not in this index");
+            }
+            level++;
+        }
+        int depth = mIgnoreRoot ? level - 1 : level;
+        if (depth < 0) {
+            throw new IllegalArgumentException("root node is ignored");
         }
 
-        /*
-         *如果本节点未被添加到可见节点列表,或者本节点是折叠状态(子节点不可见),则子节点将不可见,不能添加到可见节点列表
-         */
-        boolean childHasChanceToAddToVisibleList;
-        if (addToVisibleList && subtree.isVisible() && !subtree.isFold()) {
-            childHasChanceToAddToVisibleList = true;
+        DataNode parent = node.getParentNode();
+        int segment = node == mRootNode ? 0 : parent.segmentOf(parent.slotOf(node));
+        out.reset(node, depth, segment);
+
+        DataNode n = node;
+        for (int d = depth; n != mRootNode; --d) {
+            parent = n.getParentNode();
+            if (childAtOrAfter(parent, parent.slotOf(n) + 1, visible) != null) {
+                out.setNextSibling(d);
+            }
+            n = parent;
+        }
+        TreeMetrics.addWalkSteps(2 * level);
+    }
+
+    /*
+    区间读取:定位起点,再沿树结构按先序逐个走到下一个节点.
+    走到下一个节点时,向下一层或向上若干层后到下一个兄弟节点,向上的层数与之前向下的层数抵消,
+    顺序读取每个节点均摊O(1).
+    finger是上次读取的起点,不可变,并发模式下多个读者可以安全地替换
+     */
+
+    private static final int MAX_FINGER_DISTANCE = 64;//起点与finger的距离超过count + 该值时重新定位
+
+    private Finger mFlatFinger;
+    private Finger mVisibleFinger;
+
+    /**
+     * @return 区间起点的finger, count为0时返回null
+     */
+    private Finger fillRange(boolean visible, DataNode subtree, int from, int count, DataNode[] out, int offset) {
+        if (subtree != null) {
+            fillSubtreeRange(visible, subtree, from, count, out, offset);
+            return null;
+        }
+
+        int size = visible ? mVisibleFlatIndex.sizeUnlocked() : sizeUnlocked();
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + (from + count) + "), Size: " + size);
+        }
+        if (offset < 0 || offset + count > out.length) {
+            throw new ArrayIndexOutOfBoundsException("Range: [" + offset + ", " + (offset + count) + "), Length: " + out.length);
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        DataNode first = seek(visible, from, count);
+        DataNode node = first;
+        out[offset] = node;
+        for (int i = 1; i < count; ++i) {
+            node = nextNode(node, visible);
+            out[offset + i] = node;
+        }
+        return new Finger(mVersion, from, first);
+    }
+
+    private void setFinger(boolean visible, Finger finger) {
+        if (finger == null) {
+            return;
+        }
+        if (visible) {
+            mVisibleFinger = finger;
         } else {
-            childHasChanceToAddToVisibleList = false;
+            mFlatFinger = finger;
         }
+    }
 
-        for (int i = 0; i < subtree.getHeaderNodeSize(); ++i) {
-            DataNode node = subtree.getHeaderNode(i);
-            boolean childAddToVisibleList = childHasChanceToAddToVisibleList && node.isVisible();
-            addSubtree(basePosition, baseVisiblePosition, node, childAddToVisibleList);
-            basePosition += node.getFlatSize();
-            if (childAddToVisibleList) {
-                baseVisiblePosition += node.getVisibleFlatSize();
+    /**
+     * 找到position处的节点:离finger足够近时从finger走过去,否则按位置查找
+     */
+    private DataNode seek(boolean visible, int position, int count) {
+        Finger finger = visible ? mVisibleFinger : mFlatFinger;
+        if (finger != null && finger.version == mVersion) {
+            int distance = position - finger.position;
+            if (Math.abs(distance) <= count + MAX_FINGER_DISTANCE) {
+                DataNode node = finger.node;
+                for (; distance > 0; --distance) {
+                    node = nextNode(node, visible);
+                }
+                for (; distance < 0; ++distance) {
+                    node = previousNode(node, visible);
+                }
+                return node;
             }
         }
-        for (int i = 0; i < subtree.getChildNodeSize(); ++i) {
-            DataNode node = subtree.getChildNode(i);
-            boolean childAddToVisibleList = childHasChanceToAddToVisibleList && node.isVisible();
-            addSubtree(basePosition, baseVisiblePosition, node, childAddToVisibleList);
-            basePosition += node.getFlatSize();
-            if (childAddToVisibleList) {
-                baseVisiblePosition += node.getVisibleFlatSize();
+        return readNodeUnlocked(visible, null, position);
+    }
+
+    /**
+     * 先序的下一个节点
+     *
+     * @param dataNode
+     * @param visibleOnly 是否只走可见的节点
+     * @return
+     */
+    private DataNode nextNode(DataNode dataNode, boolean visibleOnly) {
+        if (!(visibleOnly && dataNode.isFold())) {
+            DataNode child = childAtOrAfter(dataNode, 0, visibleOnly);
+            if (child != null) {
+                TreeMetrics.addWalkSteps(1);
+                return child;
             }
         }
-        for (int i = 0; i < subtree.getFooterNodeSize(); ++i) {
-            DataNode node = subtree.getFooterNode(i);
-            boolean childAddToVisibleList = childHasChanceToAddToVisibleList && node.isVisible();
-            addSubtree(basePosition, baseVisiblePosition, node, childAddToVisibleList);
-            basePosition += node.getFlatSize();
-            if (childAddToVisibleList) {
-                baseVisiblePosition += node.getVisibleFlatSize();
+
+        DataNode node = dataNode;
+        int steps = 1;
+        while (node != mRootNode) {
+            DataNode parent = node.getParentNode();
+            DataNode sibling = childAtOrAfter(parent, parent.slotOf(node) + 1, visibleOnly);
+            if (sibling != null) {
+                TreeMetrics.addWalkSteps(steps);
+                return sibling;
             }
+            node = parent;
+            steps++;
         }
+        throw new ConcurrentModificationException("node tree changed during range read");
     }
 
-    public class VisibleFlatIndex {
+    /**
+     * 先序的上一个节点
+     *
+     * @param dataNode
+     * @param visibleOnly 是否只走可见的节点
+     * @return
+     */
+    private DataNode previousNode(DataNode dataNode, boolean visibleOnly) {
+        if (dataNode == mRootNode) {
+            throw new ConcurrentModificationException("node tree changed during range read");
+        }
+
+        DataNode parent = dataNode.getParentNode();
+        int slot = parent.slotOf(dataNode);
+        int preSlot = visibleOnly ? parent.getChildSizeSums().findPreVisibleSlot(parent, slot) : slot - 1;
+        if (preSlot < 0) {
+            TreeMetrics.addWalkSteps(1);
+            return parent;
+        }
+
+        //前一个兄弟节点树的最后一个节点
+        DataNode node = parent.getNodeAt(preSlot);
+        int steps = 1;
+        while (!(visibleOnly && node.isFold())) {
+            int count = node.getAllChildNodeSize();
+            if (count == 0) {
+                break;
+            }
+            DataNode last = node.getNodeAt(count - 1);
+            if (visibleOnly && !last.isVisible()) {
+                int lastSlot = node.getChildSizeSums().findPreVisibleSlot(node, count);
+                if (lastSlot < 0) {
+                    break;
+                }
+                last = node.getNodeAt(lastSlot);
+            }
+            node = last;
+            steps++;
+        }
+        TreeMetrics.addWalkSteps(steps);
+        return node;
+    }
+
+    /**
+     * parent的子节点中slot处或之后的第一个(可见)节点
+     *
+     * @return 没有则返回null
+     */
+    private static DataNode childAtOrAfter(DataNode parent, int slot, boolean visibleOnly) {
+        if (slot >= parent.getAllChildNodeSize()) {
+            return null;
+        }
+
+        DataNode child = parent.getNodeAt(slot);
+        if (!visibleOnly || child.isVisible()) {
+            return child;
+        }
+
+        //跳过不可见的子节点:可见展开大小大于0的第一个子节点
+        ChildSizeSums sums = parent.getChildSizeSums();
+        int visibleSlot = sums.findSlotByVisibleOffset(parent, sums.visibleSizeBefore(parent, slot));
+        return visibleSlot < 0 ? null : parent.getNodeAt(visibleSlot);
+    }
+
+    private static final class Finger {
+        final long version;
+        final int position;//在索引中的位置
+        final DataNode node;
+
+        Finger(long version, int position, DataNode node) {
+            this.version = version;
+            this.position = position;
+            this.node = node;
+        }
+    }
+
+    private TreeLock lockTree() {
+        TreeLock lock = mRootNode == null ? null : mRootNode.findTreeLock();
+        if (lock != null) {
+            lock.lockWrite();
+        }
+        return lock;
+    }
+
+    private static void unlockTree(TreeLock lock) {
+        if (lock != null) {
+            lock.unlockWrite();
+        }
+    }
+
+    private boolean isRootIgnoredInVisibleIndex() {
+        return mIgnoreRoot && mRootNode.isVisible();
+    }
+
+    public class VisibleFlatIndex implements Iterable<DataNode> {
 
         private VisibleFlatIndex() {
 
         }
 
         public DataNode get(int position) {
-            if (mIgnoreRoot && mVisibleList.get(0) == mRootNode) {
+            return readNode(true, null, position);
+        }
+
+        public int indexOf(DataNode dataNode) {
+            return readInt(READ_VISIBLE_INDEX_OF, null, dataNode);
+        }
+
+        public int size() {
+            return readInt(READ_VISIBLE_SIZE, null, null);
+        }
+
+        /**
+         * 获取可见索引中[from, from + count)的节点
+         *
+         * @param from
+         * @param count
+         * @return
+         * @see #getRange(int, int, DataNode[], int)
+         */
+        public DataNode[] getRange(int from, int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("count < 0: " + count);
+            }
+            DataNode[] out = new DataNode[count];
+            readRange(true, null, from, count, out, 0);
+            return out;
+        }
+
+        /**
+         * 将可见索引中[from, from + count)的节点依次写入out[offset, offset + count),
+         * 用于按视窗显示.
+         * 定位起点后沿树结构逐个走到下一个可见节点,跳过不可见的节点树和折叠节点的子孙,O(定位 + count).
+         * 与平坦索引一样记住上次读取的起点,顺序滚动时每行均摊O(1)
+         *
+         * @param from
+         * @param count
+         * @param out
+         * @param offset 在out中的开始位置
+         */
+        public void getRange(int from, int count, DataNode[] out, int offset) {
+            readRange(true, null, from, count, out, offset);
+        }
+
+        /**
+         * 描述可见索引中position处的行,是否有后续的兄弟节点只考虑可见的兄弟节点
+         *
+         * @param position
+         * @param out      写入结果,为null时新建
+         * @return out
+         * @see NodeFlatIndex#getRowDescriptor(int, RowDescriptor)
+         */
+        public RowDescriptor getRowDescriptor(int position, RowDescriptor out) {
+            return readRow(true, position, null, out);
+        }
+
+        /**
+         * 描述可见节点所在的行
+         *
+         * @param dataNode 可见索引中的节点
+         * @param out      写入结果,为null时新建
+         * @return out
+         */
+        public RowDescriptor getRowDescriptor(DataNode dataNode, RowDescriptor out) {
+            return readRow(true, -1, dataNode, out);
+        }
+
+        private DataNode getUnlocked(int position) {
+            if (mMode == INDEX_MODE_IMPLICIT) {
+                return findVisibleNode(isRootIgnoredInVisibleIndex() ? position + 1 : position);
+            }
+
+            if (isRootIgnoredInVisibleIndex()) {
                 return mVisibleList.get(position + 1);
             }
 
             return mVisibleList.get(position);
         }
 
-        public int indexOf(DataNode dataNode) {
-            int index = mVisibleList.indexOf(dataNode);
+        private int indexOfUnlocked(DataNode dataNode) {
+            int index = visibleOffsetOf(dataNode);
 
-            if (mIgnoreRoot && mVisibleList.get(0) == mRootNode) {
+            if (index >= 0 && isRootIgnoredInVisibleIndex()) {
                 return index - 1;
             } else {
                 return index;
             }
         }
 
-        public int size() {
+        private int sizeUnlocked() {
+            if (mMode == INDEX_MODE_IMPLICIT) {
+                int size = mRootNode.getVisibleFlatSize();
+                return isRootIgnoredInVisibleIndex() ? size - 1 : size;
+            }
 
-            if (mIgnoreRoot && mVisibleList.get(0) == mRootNode) {
+            if (isRootIgnoredInVisibleIndex()) {
                 return mVisibleList.size() - 1;
             } else {
                 return mVisibleList.size();
             }
         }
 
+        /**
+         * 按可见索引顺序遍历节点,跳过不可见的节点树和折叠节点的子孙节点,O(n)
+         *
+         * @return
+         */
+        public NodeSpliterator iterator() {
+            return new NodeSpliterator(mRootNode, true, mIgnoreRoot);
+        }
+
+        /**
+         * 监听可见索引的改变,如节点的折叠,显示,隐藏,添加和删除
+         *
+         * @param listener
+         */
+        public void addIndexChangeListener(IndexChangeListener listener) {
+            mVisibleChanges.addListener(listener);
+        }
+
+        public void removeIndexChangeListener(IndexChangeListener listener) {
+            mVisibleChanges.removeListener(listener);
+        }
+
         public void invalidate() {
-            mVisibleList.clear();
-            mVisibleList = null;
+            TreeLock lock = lockTree();
+            try {
+                if (mVisibleList != null) {
+                    mVisibleList.clear();
+                    mVisibleList = null;
+                }
+            } finally {
+                unlockTree(lock);
+            }
         }
     }
 
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 按平坦索引(或可见索引)的顺序遍历节点树的迭代器,见{@link NodeFlatIndex#iterator()},
+ * {@link NodeFlatIndex.VisibleFlatIndex#iterator()}.
+ * 直接沿树结构先序遍历,不按位置访问索引,遍历全部节点为O(n);
+ * 可见遍历跳过不可见的节点树和折叠节点的子孙节点.
+ * 可以像java.util.Spliterator一样分割:{@link #trySplit()}按子树的边界分出前一部分,
+ * 两部分的节点数都是精确的(SIZED, SUBSIZED),分割后可以在不同线程中遍历.
+ * 遍历期间不能修改节点树.
+ */
+public final class NodeSpliterator implements Iterator<DataNode> {
+    private final boolean mVisibleOnly;
+    private List<DataNode> mPending;//在mFrames之前依次遍历的节点
+    private int mPendingPosition;
+    private final List<Frame> mFrames;//待遍历的兄弟节点区间,栈顶(最后一个)最先遍历
+    private int mRemaining;
+
+    /**
+     * @param rootNode
+     * @param visibleOnly 是否只遍历可见的节点
+     * @param skipRoot    是否跳过根节点
+     */
+    NodeSpliterator(DataNode rootNode, boolean visibleOnly, boolean skipRoot) {
+        mVisibleOnly = visibleOnly;
+        mPending = new ArrayList<DataNode>(1);
+        mFrames = new ArrayList<Frame>();
+
+        if (visibleOnly && !rootNode.isVisible()) {
+            mRemaining = 0;
+            return;
+        }
+
+        mRemaining = sizeOf(rootNode);
+        if (skipRoot) {
+            mRemaining--;
+        } else {
+            mPending.add(rootNode);
+        }
+        pushChildren(rootNode);
+    }
+
+    private NodeSpliterator(boolean visibleOnly, List<DataNode> pending, List<Frame> frames, int remaining) {
+        mVisibleOnly = visibleOnly;
+        mPending = pending;
+        mFrames = frames;
+        mRemaining = remaining;
+    }
+
+    public boolean hasNext() {
+        return mRemaining > 0;
+    }
+
+    public DataNode next() {
+        if (mRemaining <= 0) {
+            throw new NoSuchElementException();
+        }
+
+        if (mPendingPosition < mPending.size()) {
+            mRemaining--;
+            return mPending.get(mPendingPosition++);
+        }
+
+        while (!mFrames.isEmpty()) {
+            Frame frame = mFrames.get(mFrames.size() - 1);
+            if (frame.from >= frame.to) {
+                mFrames.remove(mFrames.size() - 1);
+                continue;
+            }
+
+            DataNode node = frame.parent.getNodeAt(frame.from++);
+            if (mVisibleOnly && !node.isVisible()) {
+                continue;
+            }
+
+            pushChildren(node);
+            mRemaining--;
+            return node;
+        }
+
+        throw new ConcurrentModificationException("node tree changed during iteration");
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 剩余的节点数,是精确的
+     *
+     * @return
+     */
+    public int getExactSize() {
+        return mRemaining;
+    }
+
+    /**
+     * 分出剩余节点的前一部分,由返回的迭代器遍历,本迭代器继续遍历其余部分.
+     * 在尽量靠近根的一层按子树大小平分兄弟节点区间
+     *
+     * @return 无法分割(只剩一条没有分叉的路径)时返回null
+     */
+    public NodeSpliterator trySplit() {
+        while (true) {
+            boolean hasPending = mPendingPosition < mPending.size();
+            int top = -1;
+            for (int i = 0; i < mFrames.size(); ++i) {
+                Frame frame = mFrames.get(i);
+                int count = frame.to - frame.from;
+                if (count >= 2) {
+                    return splitAt(i, halfSlot(frame));
+                }
+                if (count == 1) {
+                    if (hasPending || hasNodesAbove(i)) {
+                        return splitAt(i, frame.from);
+                    }
+                    top = i;
+                }
+            }
+
+            if (top < 0) {
+                return null;
+            }
+
+            //只剩一棵子树:先把它的根节点移到待遍历的节点中,再尝试分割它的子节点
+            Frame frame = mFrames.get(top);
+            DataNode node = frame.parent.getNodeAt(frame.from++);
+            if (mVisibleOnly && !node.isVisible()) {
+                return null;
+            }
+            mPending = new ArrayList<DataNode>(1);
+            mPendingPosition = 0;
+            mPending.add(node);
+            pushChildren(node);
+        }
+    }
+
+    /**
+     * 在第index层的slot处分割:之前的待遍历节点,更深的层和该层[from, slot)归返回的迭代器,
+     * 该层[slot, to)和更浅的层留在本迭代器
+     */
+    private NodeSpliterator splitAt(int index, int slot) {
+        Frame frame = mFrames.get(index);
+
+        List<DataNode> prefixPending = new ArrayList<DataNode>(mPending.subList(mPendingPosition, mPending.size()));
+        int prefixSize = prefixPending.size();
+
+        List<Frame> prefixFrames = new ArrayList<Frame>(mFrames.size() - index);
+        if (slot > frame.from) {
+            prefixFrames.add(new Frame(frame.parent, frame.from, slot));
+            prefixSize += sizeOf(frame.parent, frame.from, slot);
+        }
+        for (int i = index + 1; i < mFrames.size(); ++i) {
+            Frame above = mFrames.get(i);
+            prefixFrames.add(above);
+            prefixSize += sizeOf(above.parent, above.from, above.to);
+        }
+
+        while (mFrames.size() > index + 1) {
+            mFrames.remove(mFrames.size() - 1);
+        }
+        frame.from = slot;
+        mPending = new ArrayList<DataNode>(0);
+        mPendingPosition = 0;
+        mRemaining -= prefixSize;
+
+        return new NodeSpliterator(mVisibleOnly, prefixPending, prefixFrames, prefixSize);
+    }
+
+    /**
+     * 使[from, slot)和[slot, to)的节点数尽量接近的slot,from < slot < to
+     */
+    private int halfSlot(Frame frame) {
+        int total = sizeOf(frame.parent, frame.from, frame.to);
+        int size = 0;
+        for (int slot = frame.from; slot < frame.to - 1; ++slot) {
+            size += sizeOf(frame.parent.getNodeAt(slot));
+            if (size * 2 >= total) {
+                return slot + 1;
+            }
+        }
+        return frame.to - 1;
+    }
+
+    private boolean hasNodesAbove(int index) {
+        for (int i = index + 1; i < mFrames.size(); ++i) {
+            Frame frame = mFrames.get(i);
+            if (frame.from < frame.to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void pushChildren(DataNode node) {
+        int count = node.getAllChildNodeSize();
+        if (count > 0 && !(mVisibleOnly && node.isFold())) {
+            mFrames.add(new Frame(node, 0, count));
+        }
+    }
+
+    private int sizeOf(DataNode node) {
+        return mVisibleOnly ? node.getVisibleFlatSize() : node.getFlatSize();
+    }
+
+    private int sizeOf(DataNode parent, int from, int to) {
+        int size = 0;
+        for (int slot = from; slot < to; ++slot) {
+            size += sizeOf(parent.getNodeAt(slot));
+        }
+        return size;
+    }
+
+    private static final class Frame {
+        final DataNode parent;
+        int from;
+        final int to;
+
+        Frame(DataNode parent, int from, int to) {
+            this.parent = parent;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
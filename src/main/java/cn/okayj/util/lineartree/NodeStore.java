@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.List;
+
+/**
+ * 物化索引(见{@link NodeFlatIndex#INDEX_MODE_MATERIALIZED})保存展开后节点的存储结构.
+ * 索引只按位置访问和按区间插入,删除节点,不需要在存储中查找节点.
+ */
+public interface NodeStore {
+
+    DataNode get(int position);
+
+    int size();
+
+    void add(int position, DataNode dataNode);
+
+    /**
+     * 在position处一次插入一段连续的节点
+     *
+     * @param position
+     * @param dataNodes
+     */
+    void addAll(int position, List<DataNode> dataNodes);
+
+    /**
+     * 删除[position, position + count)区间的节点
+     *
+     * @param position
+     * @param count
+     */
+    void removeRange(int position, int count);
+
+    /**
+     * 将[from, from + count)区间的节点整体移动,移动后第一个节点位于to
+     *
+     * @param from
+     * @param count
+     * @param to    移动后的位置,0 <= to <= size() - count
+     */
+    void move(int from, int count, int to);
+
+    void clear();
+
+    /**
+     * 为每个索引(及其可见索引)创建存储结构
+     */
+    interface Factory {
+        NodeStore create();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 从任意树型数据源构建DataNode节点树.
+ * 节点树在添加到其他节点之前构建,子节点直接放入父节点,子孙节点数量自下而上一次算出,
+ * 不需要每添加一个节点就更新先辈节点和索引.
+ * 构建好的节点树添加到已有的树中时,索引只更新一次.
+ * 并行构建时,先在调用线程中展开上面几层,直到节点数足够分配给各线程,
+ * 再把这些节点的子树分别交给线程池构建,最后在调用线程中把上面几层连接起来.
+ * 任务之间不互相等待,可以使用任意大小的线程池.
+ *
+ * @param <S> 数据源类型
+ */
+public class ParallelTreeBuilder<S> {
+    /**
+     * 获取数据源的子数据
+     *
+     * @param <S>
+     */
+    public interface ChildAccessor<S> {
+        /**
+         * @param source
+         * @return 没有子数据可以返回null或空列表
+         */
+        List<? extends S> getChildren(S source);
+    }
+
+    private final ChildAccessor<S> mChildAccessor;
+
+    public ParallelTreeBuilder(ChildAccessor<S> childAccessor) {
+        mChildAccessor = childAccessor;
+    }
+
+    /**
+     * 在当前线程中构建
+     *
+     * @param rootSource
+     * @return 节点树的根
+     */
+    public DataNode<S> build(S rootSource) {
+        DataNode<S> root = newNode(rootSource);
+        buildSubtree(root, rootSource);
+        return root;
+    }
+
+    /**
+     * 用线程池并行构建,任务数约为处理器个数的8倍
+     *
+     * @param rootSource
+     * @param executor
+     * @return 节点树的根
+     */
+    public DataNode<S> build(S rootSource, ExecutorService executor) {
+        return build(rootSource, executor, Runtime.getRuntime().availableProcessors() * 8);
+    }
+
+    /**
+     * 用线程池并行构建
+     *
+     * @param rootSource
+     * @param executor
+     * @param taskCount 期望的任务数,上面几层展开到节点数不少于该值为止
+     * @return 节点树的根
+     */
+    public DataNode<S> build(S rootSource, ExecutorService executor, int taskCount) {
+        DataNode<S> root = newNode(rootSource);
+
+        /*
+        在当前线程中逐层展开,每层记录节点和父节点在上一层中的位置
+         */
+        List<List<DataNode<S>>> levelNodes = new ArrayList<List<DataNode<S>>>();
+        List<int[]> levelParents = new ArrayList<int[]>();
+
+        List<DataNode<S>> nodes = new ArrayList<DataNode<S>>();
+        List<S> sources = new ArrayList<S>();
+        nodes.add(root);
+        sources.add(rootSource);
+        levelNodes.add(nodes);
+        levelParents.add(new int[]{-1});
+
+        while (nodes.size() < taskCount) {
+            List<DataNode<S>> childNodes = new ArrayList<DataNode<S>>();
+            List<S> childSources = new ArrayList<S>();
+            List<Integer> parents = new ArrayList<Integer>();
+            for (int i = 0; i < nodes.size(); ++i) {
+                List<? extends S> children = mChildAccessor.getChildren(sources.get(i));
+                if (children == null) {
+                    continue;
+                }
+                for (int j = 0; j < children.size(); ++j) {
+                    S childSource = children.get(j);
+                    childNodes.add(newNode(childSource));
+                    childSources.add(childSource);
+                    parents.add(i);
+                }
+            }
+
+            if (childNodes.isEmpty()) {
+                break;
+            }
+
+            int[] parentPositions = new int[parents.size()];
+            for (int i = 0; i < parentPositions.length; ++i) {
+                parentPositions[i] = parents.get(i);
+            }
+            nodes = childNodes;
+            sources = childSources;
+            levelNodes.add(nodes);
+            levelParents.add(parentPositions);
+        }
+
+        /*
+        最后一层节点的子树交给线程池
+         */
+        List<Future<?>> futures = new ArrayList<Future<?>>(nodes.size());
+        for (int i = 0; i < nodes.size(); ++i) {
+            final DataNode<S> node = nodes.get(i);
+            final S source = sources.get(i);
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    buildSubtree(node, source);
+                    return null;
+                }
+            }));
+        }
+        waitFor(futures);
+
+        /*
+        自下而上连接展开的几层
+         */
+        for (int level = levelNodes.size() - 1; level > 0; --level) {
+            List<DataNode<S>> children = levelNodes.get(level);
+            List<DataNode<S>> parents = levelNodes.get(level - 1);
+            int[] parentPositions = levelParents.get(level);
+
+            int start = 0;
+            while (start < children.size()) {
+                int parent = parentPositions[start];
+                int end = start + 1;
+                while (end < children.size() && parentPositions[end] == parent) {
+                    end++;
+                }
+                parents.get(parent).setBuiltChildNodes(new ArrayList<DataNode>(children.subList(start, end)));
+                start = end;
+            }
+        }
+
+        return root;
+    }
+
+    /**
+     * 创建数据源对应的节点,可以重写以创建DataNode的子类,或设置初始的可见和折叠状态.
+     * 返回的节点不能有子节点.
+     * 并行构建时会在多个线程中调用
+     *
+     * @param source
+     * @return
+     */
+    protected DataNode<S> createNode(S source) {
+        DataNode<S> node = new DataNode<S>();
+        node.setSource(source);
+        return node;
+    }
+
+    private DataNode<S> newNode(S source) {
+        DataNode<S> node = createNode(source);
+        if (node.getParentNode() != null || node.getAllChildNodeSize() != 0) {
+            throw new IllegalStateException("createNode must return a new node without parent and children");
+        }
+        return node;
+    }
+
+    /**
+     * 递归构建node的子孙节点
+     */
+    private void buildSubtree(DataNode<S> node, S source) {
+        List<? extends S> children = mChildAccessor.getChildren(source);
+        if (children == null || children.isEmpty()) {
+            return;
+        }
+
+        List<DataNode> childNodes = new ArrayList<DataNode>(children.size());
+        for (int i = 0; i < children.size(); ++i) {
+            S childSource = children.get(i);
+            DataNode<S> childNode = newNode(childSource);
+            buildSubtree(childNode, childSource);
+            childNodes.add(childNode);
+        }
+        node.setBuiltChildNodes(childNodes);
+    }
+
+    private static void waitFor(List<Future<?>> futures) {
+        try {
+            for (int i = 0; i < futures.size(); ++i) {
+                futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while building tree", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void cancel(List<Future<?>> futures) {
+        for (int i = 0; i < futures.size(); ++i) {
+            futures.get(i).cancel(true);
+        }
+    }
+}
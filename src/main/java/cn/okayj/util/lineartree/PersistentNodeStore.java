@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 持久化存储:节点保存在不可变的随机化二叉搜索树中,修改时只复制从根到修改位置的路径,
+ * 其余子树在新旧版本间共享.
+ * 按位置访问,插入,区间删除和区间移动都是O(log n)(区间插入另加O(k)),
+ * {@link #snapshot()}只复制根节点引用,为O(1).
+ * 快照不可修改,树节点的字段都是final的,可以不加锁地在其他线程读取.
+ * 合并时按子树大小的比例随机选择根节点(randomized BST),不需要为每个节点保存优先级.
+ */
+public class PersistentNodeStore implements NodeStore {
+    public static final Factory FACTORY = new Factory() {
+        public NodeStore create() {
+            return new PersistentNodeStore();
+        }
+    };
+
+    private final boolean mReadOnly;
+    private final Random mRandom;
+    private Node mRoot;
+
+    /*
+    split的结果,避免每层递归创建数组
+     */
+    private Node mSplitLeft;
+    private Node mSplitRight;
+
+    public PersistentNodeStore() {
+        this(null, false);
+    }
+
+    private PersistentNodeStore(Node root, boolean readOnly) {
+        mRoot = root;
+        mReadOnly = readOnly;
+        mRandom = readOnly ? null : new Random();
+    }
+
+    /**
+     * 当前内容的只读快照,之后对本存储的修改不会影响快照
+     *
+     * @return
+     */
+    public PersistentNodeStore snapshot() {
+        return mReadOnly ? this : new PersistentNodeStore(mRoot, true);
+    }
+
+    public boolean isReadOnly() {
+        return mReadOnly;
+    }
+
+    public DataNode get(int position) {
+        checkElementIndex(position);
+
+        Node node = mRoot;
+        while (true) {
+            int leftSize = sizeOf(node.left);
+            if (position < leftSize) {
+                node = node.left;
+            } else if (position == leftSize) {
+                return node.value;
+            } else {
+                position -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    public int size() {
+        return sizeOf(mRoot);
+    }
+
+    public void add(int position, DataNode dataNode) {
+        checkWritable();
+        checkPositionIndex(position);
+
+        split(mRoot, position);
+        Node right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, new Node(dataNode, null, null)), right);
+    }
+
+    public void addAll(int position, List<DataNode> dataNodes) {
+        checkWritable();
+        checkPositionIndex(position);
+
+        if (dataNodes.isEmpty()) {
+            return;
+        }
+
+        Node inserted = build(dataNodes, 0, dataNodes.size());
+        split(mRoot, position);
+        Node right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, inserted), right);
+    }
+
+    public void removeRange(int position, int count) {
+        checkWritable();
+        if (count <= 0) {
+            return;
+        }
+        if (position < 0 || position + count > size()) {
+            throw new IndexOutOfBoundsException("Range: [" + position + ", " + (position + count) + "), Size: " + size());
+        }
+
+        split(mRoot, position);
+        Node left = mSplitLeft;
+        split(mSplitRight, count);
+        mRoot = merge(left, mSplitRight);
+    }
+
+    public void move(int from, int count, int to) {
+        checkWritable();
+        if (from < 0 || count < 0 || from + count > size() || to < 0 || to + count > size()) {
+            throw new IndexOutOfBoundsException("Range: [" + from + ", " + (from + count) + ") to " + to + ", Size: " + size());
+        }
+        if (count == 0 || from == to) {
+            return;
+        }
+
+        //取出区间,合并其余部分,再插入到新位置
+        split(mRoot, from);
+        Node left = mSplitLeft;
+        split(mSplitRight, count);
+        Node moved = mSplitLeft;
+        split(merge(left, mSplitRight), to);
+        Node right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, moved), right);
+    }
+
+    public void clear() {
+        checkWritable();
+        mRoot = null;
+    }
+
+    /**
+     * 将一段节点构建成完全平衡的子树
+     */
+    private static Node build(List<DataNode> dataNodes, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+
+        int middle = (from + to) >>> 1;
+        return new Node(dataNodes.get(middle), build(dataNodes, from, middle), build(dataNodes, middle + 1, to));
+    }
+
+    /**
+     * 将子树分裂为前position个节点(mSplitLeft)和其余节点(mSplitRight),只复制查找路径上的节点
+     */
+    private void split(Node node, int position) {
+        if (node == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+            return;
+        }
+
+        int leftSize = sizeOf(node.left);
+        if (position <= leftSize) {
+            split(node.left, position);
+            mSplitRight = new Node(node.value, mSplitRight, node.right);
+        } else {
+            split(node.right, position - leftSize - 1);
+            mSplitLeft = new Node(node.value, node.left, mSplitLeft);
+        }
+    }
+
+    /**
+     * 合并两棵子树,以各自大小为权重随机选择新的根,保持树的期望高度为O(log n)
+     */
+    private Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+
+        if (mRandom.nextInt(left.size + right.size) < left.size) {
+            return new Node(left.value, left.left, merge(left.right, right));
+        } else {
+            return new Node(right.value, merge(left, right.left), right.right);
+        }
+    }
+
+    private void checkWritable() {
+        if (mReadOnly) {
+            throw new UnsupportedOperationException("snapshot is read only");
+        }
+    }
+
+    private void checkElementIndex(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+        }
+    }
+
+    private void checkPositionIndex(int position) {
+        if (position < 0 || position > size()) {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size());
+        }
+    }
+
+    private static int sizeOf(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node {
+        final DataNode value;
+        final Node left;
+        final Node right;
+        final int size;//以该节点为根的子树中的节点数
+
+        Node(DataNode value, Node left, Node right) {
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.size = sizeOf(left) + 1 + sizeOf(right);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 索引中一行的描述,用于绘制缩进和树的连接线,
+ * 见{@link NodeFlatIndex#getRowDescriptor(int, RowDescriptor)}.
+ * 深度从索引的根节点算起(根节点为0),根节点被忽略时其子节点为0.
+ * 每一层是否有后续的兄弟节点用位图记录:绘制第d列时,
+ * 深度为d + 1的先辈节点(或节点本身)有后续的兄弟节点则画竖线.
+ * 可见索引中只考虑可见的兄弟节点.
+ * 可以重复使用同一个对象描述不同的行,深度不超过之前的最大深度时不会分配内存
+ */
+public final class RowDescriptor {
+    private DataNode mNode;
+    private int mDepth;
+    private int mSegment;
+    private long[] mContinuations = new long[1];//第d位:深度为d的节点有后续的兄弟节点
+
+    public RowDescriptor() {
+
+    }
+
+    public DataNode getNode() {
+        return mNode;
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * 节点在父节点中所属的部分
+     *
+     * @return {@link DataNode#CHILD_POSITION_HEADER}, {@link DataNode#CHILD_POSITION_MIDDLE},
+     * {@link DataNode#CHILD_POSITION_FOOTER},根节点为0
+     */
+    public int getSegment() {
+        return mSegment;
+    }
+
+    /**
+     * 是否为父节点的最后一个(可见)子节点,根节点也返回true
+     *
+     * @return
+     */
+    public boolean isLastChild() {
+        return !hasNextSibling(mDepth);
+    }
+
+    /**
+     * 深度为depth的先辈节点(depth为{@link #getDepth()}时为节点本身)之后是否还有(可见的)兄弟节点
+     *
+     * @param depth
+     * @return
+     */
+    public boolean hasNextSibling(int depth) {
+        if (depth < 0 || depth > mDepth) {
+            throw new IndexOutOfBoundsException("Depth: " + depth + ", Row depth: " + mDepth);
+        }
+        return (mContinuations[depth >>> 6] & (1L << depth)) != 0;
+    }
+
+    /**
+     * 开始描述新的一行
+     */
+    void reset(DataNode node, int depth, int segment) {
+        mNode = node;
+        mDepth = depth;
+        mSegment = segment;
+
+        int words = (depth >>> 6) + 1;
+        if (mContinuations.length < words) {
+            mContinuations = new long[Math.max(words, mContinuations.length * 2)];
+        }
+        for (int i = 0; i < words; ++i) {
+            mContinuations[i] = 0;
+        }
+    }
+
+    void setNextSibling(int depth) {
+        mContinuations[depth >>> 6] |= 1L << depth;
+    }
+}
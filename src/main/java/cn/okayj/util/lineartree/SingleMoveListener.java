@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+/**
+ * 把区间的移动事件拆分成逐项的移动再转发,其他事件原样转发.
+ * 用于转发给只支持单项移动的监听者,如RecyclerView.Adapter#notifyItemMoved
+ */
+public class SingleMoveListener implements IndexChangeListener {
+    private final IndexChangeListener mListener;
+
+    /**
+     * @param listener 接收拆分后事件的监听者,收到的移动事件itemCount都为1
+     */
+    public SingleMoveListener(IndexChangeListener listener) {
+        mListener = listener;
+    }
+
+    public void onItemRangeInserted(int positionStart, int itemCount) {
+        mListener.onItemRangeInserted(positionStart, itemCount);
+    }
+
+    public void onItemRangeRemoved(int positionStart, int itemCount) {
+        mListener.onItemRangeRemoved(positionStart, itemCount);
+    }
+
+    /**
+     * 每次移动一项,移动后的区间与整体移动的结果一致:
+     * 向后移动时,区间的第一项依次移动到目标区间的末尾;
+     * 向前移动时,区间的各项依次移动到目标区间中对应的位置
+     */
+    public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+        for (int i = 0; i < itemCount; ++i) {
+            if (toPosition > fromPosition) {
+                mListener.onItemRangeMoved(fromPosition, toPosition + itemCount - 1, 1);
+            } else {
+                mListener.onItemRangeMoved(fromPosition + i, toPosition + i, 1);
+            }
+        }
+    }
+
+    public void onItemRangeChanged(int positionStart, int itemCount) {
+        mListener.onItemRangeChanged(positionStart, itemCount);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 并发模式下整棵节点树共用的锁,见{@link DataNode#enableConcurrentMode()}.
+ * 修改节点树时持有写锁(可重入,批量修改期间一直持有).
+ * 读索引时先做乐观读:记下序列号,不加锁读取,再检查序列号是否改变,没有改变则结果有效,
+ * 否则退回到读锁.序列号在获取和释放写锁时各加1,奇数表示有写者.
+ * 序列号的修改和检查都用原子操作,同时作为内存屏障:
+ * 写者的修改不会早于序列号变为奇数被看到,读者的读取不会晚于检查序列号发生.
+ * 释放最外层写锁前,被修改节点的子节点编号和子节点展开前缀和会重新计算,
+ * 读者不修改这些延迟计算的缓存:乐观读遇到过期的缓存(写者正在修改)时放弃,退回读锁;
+ * 持有读锁时遇到过期的缓存则不写缓存,直接遍历子节点计算.
+ * 统计乐观读失败,退回读锁,读者等待和写者竞争的次数,用于判断写者是否让读者饥饿
+ */
+public final class TreeLock {
+    /**
+     * 当前线程不在读索引
+     */
+    static final int READ_NONE = 0;
+    /**
+     * 当前线程在乐观读,不能修改缓存,遇到过期的缓存抛出{@link #STALE_CACHE}
+     */
+    static final int READ_OPTIMISTIC = 1;
+    /**
+     * 当前线程持有读锁,不能修改缓存,遇到过期的缓存时不使用缓存
+     */
+    static final int READ_LOCKED = 2;
+
+    /**
+     * 乐观读遇到过期的缓存,退回读锁重新读取
+     */
+    static final RuntimeException STALE_CACHE = new StaleCacheException();
+
+    private static final ThreadLocal<int[]> sReadMode = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final AtomicLong mSequence = new AtomicLong(2);
+
+    private final Set<DataNode> mStaleNodes = new HashSet<DataNode>();
+    private final List<DataNode> mStaleSubtrees = new ArrayList<DataNode>();
+
+    private final AtomicLong mOptimisticReadFailures = new AtomicLong();
+    private final AtomicLong mReadLockFallbacks = new AtomicLong();
+    private final AtomicLong mReadWaitNanos = new AtomicLong();
+    private final AtomicLong mContendedWrites = new AtomicLong();
+    private final AtomicLong mWriteWaitNanos = new AtomicLong();
+
+    TreeLock() {
+
+    }
+
+    /**
+     * 获取写锁,可重入
+     */
+    void lockWrite() {
+        if (!mLock.writeLock().tryLock()) {
+            mContendedWrites.incrementAndGet();
+            long start = System.nanoTime();
+            mLock.writeLock().lock();
+            mWriteWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        if (mLock.getWriteHoldCount() == 1) {
+            mSequence.incrementAndGet();
+        }
+    }
+
+    void unlockWrite() {
+        if (mLock.getWriteHoldCount() == 1) {
+            try {
+                refreshStaleNodes();
+            } finally {
+                mSequence.incrementAndGet();
+                mLock.writeLock().unlock();
+            }
+        } else {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    boolean isWriteLockedByCurrentThread() {
+        return mLock.isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * 开始乐观读
+     *
+     * @return 有写者时返回0
+     */
+    long tryOptimisticRead() {
+        long sequence = mSequence.get();
+        if ((sequence & 1) != 0) {
+            mOptimisticReadFailures.incrementAndGet();
+            return 0;
+        }
+        return sequence;
+    }
+
+    /**
+     * 乐观读之后检查期间是否有写者.
+     * 用compareAndSet而不是直接读取,保证之前的读取都已完成(相当于读屏障),
+     * 不会阻塞
+     *
+     * @param stamp {@link #tryOptimisticRead()}的返回值
+     * @return 读取的结果有效
+     */
+    boolean validate(long stamp) {
+        if (stamp != 0 && mSequence.compareAndSet(stamp, stamp)) {
+            return true;
+        }
+
+        mOptimisticReadFailures.incrementAndGet();
+        return false;
+    }
+
+    void lockRead() {
+        mReadLockFallbacks.incrementAndGet();
+        if (!mLock.readLock().tryLock()) {
+            long start = System.nanoTime();
+            mLock.readLock().lock();
+            mReadWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    void unlockRead() {
+        mLock.readLock().unlock();
+    }
+
+    /**
+     * 设置当前线程的读取方式,只在读取缓存过期时检查
+     *
+     * @param mode {@link #READ_NONE}, {@link #READ_OPTIMISTIC}, {@link #READ_LOCKED}
+     * @return 之前的读取方式,读取结束后用{@link #endRead(int)}恢复
+     */
+    static int beginRead(int mode) {
+        int[] holder = sReadMode.get();
+        int previous = holder[0];
+        holder[0] = mode;
+        return previous;
+    }
+
+    static void endRead(int previous) {
+        sReadMode.get()[0] = previous;
+    }
+
+    static int currentReadMode() {
+        return sReadMode.get()[0];
+    }
+
+    /**
+     * 节点的子节点结构改变,释放写锁前重新计算其子节点编号和前缀和
+     *
+     * @param node
+     */
+    void addStaleNode(DataNode node) {
+        mStaleNodes.add(node);
+    }
+
+    /**
+     * 节点树被添加到树中,释放写锁前重新计算其中每个节点的缓存
+     *
+     * @param subtree
+     */
+    void addStaleSubtree(DataNode subtree) {
+        mStaleSubtrees.add(subtree);
+    }
+
+    private void refreshStaleNodes() {
+        for (DataNode node : mStaleNodes) {
+            node.refreshChildCaches();
+        }
+        mStaleNodes.clear();
+
+        for (int i = 0; i < mStaleSubtrees.size(); ++i) {
+            DataNode.refreshSubtreeCaches(mStaleSubtrees.get(i));
+        }
+        mStaleSubtrees.clear();
+    }
+
+    /**
+     * 乐观读失败的次数(开始时有写者,或读取期间有写者)
+     *
+     * @return
+     */
+    public long getOptimisticReadFailureCount() {
+        return mOptimisticReadFailures.get();
+    }
+
+    /**
+     * 乐观读失败后退回读锁的次数
+     *
+     * @return
+     */
+    public long getReadLockFallbackCount() {
+        return mReadLockFallbacks.get();
+    }
+
+    /**
+     * 读者因写者等待读锁的总时间
+     *
+     * @return
+     */
+    public long getReadWaitNanos() {
+        return mReadWaitNanos.get();
+    }
+
+    /**
+     * 获取写锁时需要等待的次数
+     *
+     * @return
+     */
+    public long getContendedWriteCount() {
+        return mContendedWrites.get();
+    }
+
+    /**
+     * 写者等待写锁的总时间
+     *
+     * @return
+     */
+    public long getWriteWaitNanos() {
+        return mWriteWaitNanos.get();
+    }
+
+    public void resetCounters() {
+        mOptimisticReadFailures.set(0);
+        mReadLockFallbacks.set(0);
+        mReadWaitNanos.set(0);
+        mContendedWrites.set(0);
+        mWriteWaitNanos.set(0);
+    }
+
+    private static final class StaleCacheException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StaleCacheException() {
+            super("stale cache during optimistic read");
+        }
+
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
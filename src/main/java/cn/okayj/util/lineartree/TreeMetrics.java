@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Kaijie Huang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.okayj.util.lineartree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 节点树和索引操作的统计,用于定位卡顿来自哪一类操作.
+ * 用{@link #install(TreeMetrics)}安装后,所有节点树的索引更新和索引读取都按类型累计:
+ * 次数,涉及的节点数(增删移动的节点树大小,可见状态改变的节点数,读取的节点数),
+ * 沿树走的步数(计算偏移量时向上走到索引根节点,按位置查找时从根节点向下,区间读取时走到下一个节点,
+ * 每经过一个节点算一步,在这些循环中实际计数),耗时和单次最大耗时.
+ * 操作中嵌套的操作(如监听回调中读取索引)同时计入外层操作.
+ * 没有安装时每个操作和每次走树只多读一次静态字段.
+ * 计数是原子的,可以在多个线程中修改不同的节点树.
+ * 用{@link #snapshot()}读取,{@link #reset()}清零,{@link #publish()}读取并清零后交给{@link Sink}导出
+ */
+public final class TreeMetrics {
+    /**
+     * 添加节点树到索引
+     */
+    public static final int OP_ADD = 0;
+    /**
+     * 从索引删除节点树
+     */
+    public static final int OP_REMOVE = 1;
+    /**
+     * 节点树在索引中移动(排序,{@link DataNode#moveTo(DataNode)})
+     */
+    public static final int OP_MOVE = 2;
+    /**
+     * 节点可见状态改变
+     */
+    public static final int OP_VISIBILITY = 3;
+    /**
+     * 节点折叠状态改变
+     */
+    public static final int OP_FOLD = 4;
+    /**
+     * 提交批量修改
+     */
+    public static final int OP_BATCH_COMMIT = 5;
+    /**
+     * 读取索引(get, indexOf, size, getRange)
+     */
+    public static final int OP_READ = 6;
+
+    public static final int OP_COUNT = 7;
+
+    private static final String[] OP_NAMES = {"add", "remove", "move", "visibility", "fold", "batchCommit", "read"};
+
+    private static final int FIELD_COUNT = 0;
+    private static final int FIELD_NODES = 1;
+    private static final int FIELD_WALK_STEPS = 2;
+    private static final int FIELD_NANOS = 3;
+    private static final int FIELD_MAX_NANOS = 4;
+    private static final int FIELDS = 5;
+
+    static volatile TreeMetrics sInstalled;
+
+    //当前线程累计走的步数,只增不减,操作结束时减去开始时的值
+    private static final ThreadLocal<long[]> sWalkSteps = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * 导出统计结果,如发送到监控系统
+     */
+    public interface Sink {
+        void onMetrics(Snapshot snapshot);
+    }
+
+    private final AtomicLongArray mValues = new AtomicLongArray(OP_COUNT * FIELDS);
+    private final Sink mSink;
+
+    public TreeMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param sink {@link #publish()}时导出到sink,可以为null
+     */
+    public TreeMetrics(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * 安装全局的统计,之后所有节点树的操作都计入其中
+     *
+     * @param metrics 为null时停止统计
+     */
+    public static void install(TreeMetrics metrics) {
+        sInstalled = metrics;
+    }
+
+    /**
+     * @return 没有安装返回null
+     */
+    public static TreeMetrics getInstalled() {
+        return sInstalled;
+    }
+
+    /**
+     * 开始一次操作
+     *
+     * @return 没有安装时返回null
+     */
+    static Sample begin() {
+        TreeMetrics metrics = sInstalled;
+        return metrics == null ? null : new Sample(metrics);
+    }
+
+    /**
+     * 走树的循环结束时调用
+     *
+     * @param steps 经过的节点数
+     */
+    static void addWalkSteps(int steps) {
+        if (sInstalled != null) {
+            sWalkSteps.get()[0] += steps;
+        }
+    }
+
+    private void record(int op, long nodes, long walkSteps, long nanos) {
+        int base = op * FIELDS;
+        mValues.incrementAndGet(base + FIELD_COUNT);
+        mValues.addAndGet(base + FIELD_NODES, nodes);
+        mValues.addAndGet(base + FIELD_WALK_STEPS, walkSteps);
+        mValues.addAndGet(base + FIELD_NANOS, nanos);
+        long max = mValues.get(base + FIELD_MAX_NANOS);
+        while (nanos > max && !mValues.compareAndSet(base + FIELD_MAX_NANOS, max, nanos)) {
+            max = mValues.get(base + FIELD_MAX_NANOS);
+        }
+    }
+
+    /**
+     * 当前累计的统计,各计数之间不保证是同一时刻的
+     *
+     * @return
+     */
+    public Snapshot snapshot() {
+        long[] values = new long[mValues.length()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = mValues.get(i);
+        }
+        return new Snapshot(values);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mValues.length(); ++i) {
+            mValues.set(i, 0);
+        }
+    }
+
+    /**
+     * 读取并清零,读取和清零之间的操作不会丢失
+     *
+     * @return
+     */
+    public Snapshot snapshotAndReset() {
+        long[] values = new long[mValues.length()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = mValues.getAndSet(i, 0);
+        }
+        return new Snapshot(values);
+    }
+
+    /**
+     * 读取并清零,导出到构造时指定的{@link Sink}
+     *
+     * @return 导出的统计
+     */
+    public Snapshot publish() {
+        Snapshot snapshot = snapshotAndReset();
+        if (mSink != null) {
+            mSink.onMetrics(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 进行中的一次操作,记下开始的时间和步数
+     */
+    static final class Sample {
+        private final TreeMetrics mMetrics;
+        private final long mStartTime;
+        private final long mStartWalkSteps;
+
+        private Sample(TreeMetrics metrics) {
+            mMetrics = metrics;
+            mStartWalkSteps = sWalkSteps.get()[0];
+            mStartTime = System.nanoTime();
+        }
+
+        /**
+         * 操作结束,先取结束时间再记录
+         *
+         * @param op    操作类型
+         * @param nodes 涉及的节点数
+         */
+        void end(int op, long nodes) {
+            long nanos = System.nanoTime() - mStartTime;
+            mMetrics.record(op, nodes, sWalkSteps.get()[0] - mStartWalkSteps, nanos);
+        }
+    }
+
+    /**
+     * 统计结果,按操作类型({@link #OP_ADD}等)读取
+     */
+    public static final class Snapshot {
+        private final long[] mValues;
+
+        private Snapshot(long[] values) {
+            mValues = values;
+        }
+
+        public static String getOperationName(int op) {
+            return OP_NAMES[op];
+        }
+
+        public long getCount(int op) {
+            return mValues[op * FIELDS + FIELD_COUNT];
+        }
+
+        public long getNodes(int op) {
+            return mValues[op * FIELDS + FIELD_NODES];
+        }
+
+        public long getWalkSteps(int op) {
+            return mValues[op * FIELDS + FIELD_WALK_STEPS];
+        }
+
+        public long getNanos(int op) {
+            return mValues[op * FIELDS + FIELD_NANOS];
+        }
+
+        public long getMaxNanos(int op) {
+            return mValues[op * FIELDS + FIELD_MAX_NANOS];
+        }
+
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int op = 0; op < OP_COUNT; ++op) {
+                if (getCount(op) == 0) {
+                    continue;
+                }
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(OP_NAMES[op])
+                        .append("{count=").append(getCount(op))
+                        .append(", nodes=").append(getNodes(op))
+                        .append(", walkSteps=").append(getWalkSteps(op))
+                        .append(", nanos=").append(getNanos(op))
+                        .append(", maxNanos=").append(getMaxNanos(op))
+                        .append('}');
+            }
+            return builder.toString();
+        }
+    }
+}
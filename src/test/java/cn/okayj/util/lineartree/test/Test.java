@@ -1,7 +1,32 @@
 package cn.okayj.util.lineartree.test;
 
+import cn.okayj.util.lineartree.ChunkedNodeStore;
 import cn.okayj.util.lineartree.DataNode;
+import cn.okayj.util.lineartree.FilteredFlatIndex;
+import cn.okayj.util.lineartree.FlatIndexView;
+import cn.okayj.util.lineartree.FrozenTree;
+import cn.okayj.util.lineartree.IndexChangeListener;
+import cn.okayj.util.lineartree.IndexSnapshot;
+import cn.okayj.util.lineartree.MappedTree;
+import cn.okayj.util.lineartree.NodeDiff;
+import cn.okayj.util.lineartree.NodeFilter;
 import cn.okayj.util.lineartree.NodeFlatIndex;
+import cn.okayj.util.lineartree.NodeSpliterator;
+import cn.okayj.util.lineartree.ParallelTreeBuilder;
+import cn.okayj.util.lineartree.PersistentNodeStore;
+import cn.okayj.util.lineartree.RowDescriptor;
+import cn.okayj.util.lineartree.SingleMoveListener;
+import cn.okayj.util.lineartree.TreeLock;
+import cn.okayj.util.lineartree.TreeMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by jack on 2016/12/20.
@@ -67,6 +92,883 @@ public class Test {
         outline();
     }
 
+    @org.junit.Test
+    public void implicitIndex(){
+        DataNode<Num> implicitRoot = TreeBuilder.build(number);
+        NodeFlatIndex implicitIndex = implicitRoot.getFlatIndex(NodeFlatIndex.INDEX_MODE_IMPLICIT);
+        NodeFlatIndex.VisibleFlatIndex implicitVisibleIndex = implicitIndex.getVisibleIndex();
+
+        implicitIndex.get(2).setIsFolded(true);
+        flatIndex.get(2).setIsFolded(true);
+
+        org.junit.Assert.assertEquals(flatIndex.size(), implicitIndex.size());
+        for (int i = 0; i < flatIndex.size(); ++i){
+            org.junit.Assert.assertEquals(flatIndex.get(i).getSource(), implicitIndex.get(i).getSource());
+            org.junit.Assert.assertEquals(i, implicitIndex.indexOf(implicitIndex.get(i)));
+        }
+
+        org.junit.Assert.assertEquals(visibleFlatIndex.size(), implicitVisibleIndex.size());
+        for (int i = 0; i < visibleFlatIndex.size(); ++i){
+            org.junit.Assert.assertEquals(visibleFlatIndex.get(i).getSource(), implicitVisibleIndex.get(i).getSource());
+            org.junit.Assert.assertEquals(i, implicitVisibleIndex.indexOf(implicitVisibleIndex.get(i)));
+        }
+    }
+
+    @org.junit.Test
+    public void chunkedStore(){
+        DataNode<Num> chunkedRoot = TreeBuilder.build(number);
+        NodeFlatIndex chunkedIndex = chunkedRoot.getFlatIndex(ChunkedNodeStore.FACTORY);
+        NodeFlatIndex.VisibleFlatIndex chunkedVisibleIndex = chunkedIndex.getVisibleIndex();
+
+        chunkedIndex.get(4).removeFromParent();
+        chunkedIndex.get(5).setIsFolded(true);
+
+        assertSameOrder("1 2 3 4 6 7 8 9", chunkedIndex);
+        assertSameOrder("1 2 3 4 6 7", chunkedVisibleIndex);
+    }
+
+    @org.junit.Test
+    public void chunkedStoreAcrossChunks(){
+        //节点数远多于一个块的容量,修改后与链表存储的索引比较
+        DataNode<Num> chunkedRoot = wideTree();
+        DataNode<Num> linkedRoot = wideTree();
+        NodeFlatIndex chunkedIndex = chunkedRoot.getFlatIndex(ChunkedNodeStore.FACTORY);
+        NodeFlatIndex linkedIndex = linkedRoot.getFlatIndex();
+        org.junit.Assert.assertEquals(409, chunkedIndex.size());
+
+        editWideTree(chunkedRoot);
+        editWideTree(linkedRoot);
+
+        assertSameOrder(orderOf(linkedIndex), chunkedIndex);
+        assertSameOrder(orderOf(linkedIndex.getVisibleIndex()), chunkedIndex.getVisibleIndex());
+        org.junit.Assert.assertEquals(linkedIndex.size(), chunkedIndex.size());
+    }
+
+    @org.junit.Test
+    public void batch(){
+        final DataNode<Num> batchRoot = TreeBuilder.build(number);
+        final NodeFlatIndex batchIndex = batchRoot.getFlatIndex();
+        NodeFlatIndex.VisibleFlatIndex batchVisibleIndex = batchIndex.getVisibleIndex();
+
+        final DataNode three = batchIndex.get(2);
+        final DataNode four = batchIndex.get(3);
+        final DataNode five = batchIndex.get(4);
+        batchRoot.mutate(new Runnable() {
+            public void run() {
+                five.removeFromParent();
+                three.setVisibility(false);
+                four.removeFromParent();
+                three.setVisibility(true);
+            }
+        });
+
+        assertSameOrder("1 2 3 6 7 8 9", batchIndex);
+        assertSameOrder("1 2 3 6 7 8 9", batchVisibleIndex);
+    }
+
+    @org.junit.Test
+    public void visibleIndexChanges(){
+        RecordingListener events = new RecordingListener();
+        visibleFlatIndex.addIndexChangeListener(events);
+
+        flatIndex.get(2).setIsFolded(true);
+        flatIndex.get(2).setIsFolded(false);
+        flatIndex.get(6).setVisibility(false);
+
+        org.junit.Assert.assertEquals("*2,1 -3,3 *2,1 +3,3 -6,3 ", events.toString());
+    }
+
+    @org.junit.Test
+    public void lazyLoad(){
+        DataNode<Num> lazyRoot = TreeBuilder.buildLazy(number);
+        NodeFlatIndex lazyIndex = lazyRoot.getFlatIndex();
+        NodeFlatIndex.VisibleFlatIndex lazyVisibleIndex = lazyIndex.getVisibleIndex();
+
+        org.junit.Assert.assertEquals(1, lazyIndex.size());
+        org.junit.Assert.assertEquals(3, lazyRoot.getDeclaredChildCount());
+        org.junit.Assert.assertFalse(lazyRoot.isChildrenLoaded());
+
+        lazyRoot.setIsFolded(false);
+        lazyIndex.get(2).setIsFolded(false);
+        lazyIndex.get(6).setIsFolded(false);
+
+        org.junit.Assert.assertTrue(lazyRoot.isChildrenLoaded());
+        assertSameOrder("1 2 3 4 5 6 7 8 9", lazyIndex);
+        assertSameOrder("1 2 3 4 5 6 7 8 9", lazyVisibleIndex);
+    }
+
+    @org.junit.Test
+    public void frozenTree(){
+        flatIndex.get(2).setIsFolded(true);
+        flatIndex.get(7).setVisibility(false);
+        FrozenTree<Num> frozenTree = root.freeze();
+
+        org.junit.Assert.assertEquals(9, frozenTree.size());
+        org.junit.Assert.assertEquals("5", frozenTree.getSource(frozenTree.get(4)).toString());
+        org.junit.Assert.assertEquals(5, frozenTree.visibleSize());
+        org.junit.Assert.assertEquals("7", frozenTree.getSource(frozenTree.getVisible(3)).toString());
+        org.junit.Assert.assertEquals(4, frozenTree.visibleIndexOf(8));
+        org.junit.Assert.assertEquals(-1, frozenTree.visibleIndexOf(4));
+        org.junit.Assert.assertEquals(-1, frozenTree.visibleIndexOf(7));
+
+        org.junit.Assert.assertEquals(6, frozenTree.getNextSiblingNode(2));
+        org.junit.Assert.assertEquals(-1, frozenTree.getNextSiblingNode(6));
+        org.junit.Assert.assertEquals(7, frozenTree.getFirstChildNode(6));
+    }
+
+    @org.junit.Test
+    public void snapshot(){
+        DataNode<Num> snapshotRoot = TreeBuilder.build(number);
+        NodeFlatIndex snapshotIndex = snapshotRoot.getFlatIndex(PersistentNodeStore.FACTORY);
+
+        IndexSnapshot before = snapshotIndex.publish();
+        snapshotIndex.get(4).removeFromParent();
+        snapshotIndex.get(2).setIsFolded(true);
+        IndexSnapshot after = snapshotIndex.snapshot();
+
+        org.junit.Assert.assertSame(before, snapshotIndex.getPublishedSnapshot());
+        org.junit.Assert.assertTrue(after.getVersion() > before.getVersion());
+        org.junit.Assert.assertEquals(9, before.size());
+        org.junit.Assert.assertEquals(9, before.visibleSize());
+        org.junit.Assert.assertEquals(8, after.size());
+        org.junit.Assert.assertEquals(6, after.visibleSize());
+        for (int i = 0; i < flatIndex.size(); ++i){
+            org.junit.Assert.assertEquals(flatIndex.get(i).getSource(), before.get(i).getSource());
+        }
+    }
+
+    @org.junit.Test
+    public void concurrentMode() throws InterruptedException {
+        final DataNode<Num> concurrentRoot = TreeBuilder.build(number);
+        concurrentRoot.enableConcurrentMode();
+        final NodeFlatIndex concurrentIndex = concurrentRoot.getFlatIndex(NodeFlatIndex.INDEX_MODE_IMPLICIT);
+        NodeFlatIndex.VisibleFlatIndex concurrentVisibleIndex = concurrentIndex.getVisibleIndex();
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                concurrentIndex.get(4).removeFromParent();
+                concurrentIndex.get(2).setVisibility(false);
+                concurrentIndex.get(3).removeFromParent();
+                concurrentIndex.get(2).setVisibility(true);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            int size = concurrentVisibleIndex.size();
+            for (int i = 0; i < size; ++i) {
+                try {
+                    concurrentVisibleIndex.indexOf(concurrentVisibleIndex.get(i));
+                } catch (IndexOutOfBoundsException e) {
+                    //读取之间被写者修改
+                }
+            }
+        }
+        writer.join();
+
+        assertSameOrder("1 2 3 6 7 8 9", concurrentIndex);
+        assertSameOrder("1 2 3 6 7 8 9", concurrentVisibleIndex);
+        org.junit.Assert.assertNotNull(concurrentRoot.getTreeLock());
+    }
+
+    @org.junit.Test
+    public void nestedConcurrentTree(){
+        root.enableConcurrentMode();
+        DataNode<Num> subtree = TreeBuilder.build(number);
+        subtree.enableConcurrentMode();
+        TreeLock subtreeLock = subtree.getTreeLock();
+        DataNode leaf = subtree.getFlatIndex().get(3);
+
+        //添加到另一棵并发树中时使用最上层的锁,删除后恢复
+        flatIndex.get(1).addChildNode(subtree);
+        org.junit.Assert.assertSame(root.getTreeLock(), leaf.getTreeLock());
+        subtree.removeFromParent();
+        org.junit.Assert.assertSame(subtreeLock, leaf.getTreeLock());
+
+        DataNode plain = newNode(10);
+        plain.addChildNode(newNode(11));
+        flatIndex.get(1).addChildNode(plain);
+        org.junit.Assert.assertSame(root.getTreeLock(), plain.getChildNode(0).getTreeLock());
+        plain.removeFromParent();
+        org.junit.Assert.assertNull(plain.getChildNode(0).getTreeLock());
+    }
+
+    @org.junit.Test
+    public void parallelBuild() throws InterruptedException {
+        ParallelTreeBuilder<Num> builder = new ParallelTreeBuilder<Num>(new ParallelTreeBuilder.ChildAccessor<Num>() {
+            public List<Num> getChildren(Num source) {
+                List<Num> children = new ArrayList<Num>();
+                for (int i = 0; i < source.getChildSize(); ++i){
+                    children.add(source.get(i));
+                }
+                return children;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DataNode[] roots = {builder.build(number), builder.build(number, executor), builder.build(number, executor, 2)};
+            for (DataNode builtRoot : roots){
+                NodeFlatIndex builtIndex = builtRoot.getFlatIndex();
+                org.junit.Assert.assertEquals(flatIndex.size(), builtIndex.size());
+                for (int i = 0; i < flatIndex.size(); ++i){
+                    org.junit.Assert.assertEquals(flatIndex.get(i).getSource(), builtIndex.get(i).getSource());
+                    org.junit.Assert.assertEquals(flatIndex.get(i).getFlatSize(), builtIndex.get(i).getFlatSize());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @org.junit.Test
+    public void iterate(){
+        flatIndex.get(2).setIsFolded(true);
+
+        int position = 0;
+        for (DataNode node : visibleFlatIndex){
+            org.junit.Assert.assertSame(visibleFlatIndex.get(position++), node);
+        }
+        org.junit.Assert.assertEquals(visibleFlatIndex.size(), position);
+
+        NodeSpliterator suffix = flatIndex.iterator();
+        NodeSpliterator prefix = suffix.trySplit();
+        org.junit.Assert.assertEquals(flatIndex.size(), prefix.getExactSize() + suffix.getExactSize());
+        position = 0;
+        while (prefix.hasNext()){
+            org.junit.Assert.assertSame(flatIndex.get(position++), prefix.next());
+        }
+        while (suffix.hasNext()){
+            org.junit.Assert.assertSame(flatIndex.get(position++), suffix.next());
+        }
+        org.junit.Assert.assertEquals(flatIndex.size(), position);
+    }
+
+    @org.junit.Test
+    public void range(){
+        flatIndex.get(2).setIsFolded(true);
+        flatIndex.get(5).setVisibility(false);
+
+        int size = visibleFlatIndex.size();
+        DataNode[] rows = new DataNode[3];
+        for (int from = 0; from + rows.length <= size; ++from){
+            visibleFlatIndex.getRange(from, rows.length, rows, 0);
+            for (int i = 0; i < rows.length; ++i){
+                org.junit.Assert.assertSame(visibleFlatIndex.get(from + i), rows[i]);
+            }
+        }
+        for (int from = size - rows.length; from >= 0; --from){
+            visibleFlatIndex.getRange(from, rows.length, rows, 0);
+            org.junit.Assert.assertSame(visibleFlatIndex.get(from), rows[0]);
+        }
+
+        DataNode[] all = flatIndex.getRange(0, flatIndex.size());
+        for (int i = 0; i < all.length; ++i){
+            org.junit.Assert.assertSame(flatIndex.get(i), all[i]);
+        }
+    }
+
+    @org.junit.Test
+    public void rowDescriptor(){
+        flatIndex.get(5).setVisibility(false);
+
+        RowDescriptor row = new RowDescriptor();
+        for (int i = 0; i < visibleFlatIndex.size(); ++i){
+            DataNode node = visibleFlatIndex.get(i);
+            visibleFlatIndex.getRowDescriptor(i, row);
+            org.junit.Assert.assertSame(node, row.getNode());
+
+            int depth = row.getDepth();
+            for (DataNode n = node; n != root; n = n.getParentNode()){
+                org.junit.Assert.assertEquals(hasNextVisibleSibling(n), row.hasNextSibling(depth--));
+            }
+            org.junit.Assert.assertEquals(0, depth);
+        }
+    }
+
+    private static boolean hasNextVisibleSibling(DataNode node){
+        DataNode parent = node.getParentNode();
+        boolean found = false;
+        for (int i = 0; i < parent.getChildNodeSize(); ++i){
+            DataNode sibling = parent.getChildNode(i);
+            if (found && sibling.isVisible()){
+                return true;
+            }
+            found |= sibling == node;
+        }
+        return false;
+    }
+
+    @org.junit.Test
+    public void foldRecursively(){
+        root.setFoldedRecursively(true, Integer.MAX_VALUE);
+        org.junit.Assert.assertEquals(1, visibleFlatIndex.size());
+
+        root.setFoldedRecursively(false, 0);
+        org.junit.Assert.assertEquals(1 + root.getChildNodeSize(), visibleFlatIndex.size());
+
+        root.setFoldedRecursively(false, Integer.MAX_VALUE);
+        org.junit.Assert.assertEquals(flatIndex.size(), visibleFlatIndex.size());
+
+        root.getChildNode(1).setVisibilityRecursively(false, Integer.MAX_VALUE);
+        org.junit.Assert.assertEquals(flatIndex.size() - root.getChildNode(1).getFlatSize(), visibleFlatIndex.size());
+        root.getChildNode(1).setVisibility(true);
+        org.junit.Assert.assertEquals(flatIndex.size() - root.getChildNode(1).getFlatSize() + 1, visibleFlatIndex.size());
+    }
+
+    @org.junit.Test
+    public void filter(){
+        FilteredFlatIndex filteredIndex = flatIndex.getFilteredIndex(new NumFilter(5, 5));
+        org.junit.Assert.assertEquals("[1, 3, 5]", sources(filteredIndex));
+
+        filteredIndex.setFilter(new NumFilter(5, 9), NodeFlatIndex.FILTER_WIDENED);
+        org.junit.Assert.assertEquals("[1, 3, 5, 6, 7, 8, 9]", sources(filteredIndex));
+
+        filteredIndex.setFilter(new NumFilter(8, 8), NodeFlatIndex.FILTER_NARROWED);
+        org.junit.Assert.assertEquals("[1, 7, 8]", sources(filteredIndex));
+
+        flatIndex.ignoreRoot(true);
+        root.getChildNode(2).removeChildNode(0);
+        org.junit.Assert.assertEquals("[]", sources(filteredIndex));
+        org.junit.Assert.assertEquals(-1, filteredIndex.indexOf(root));
+    }
+
+    private static String sources(FilteredFlatIndex filteredIndex){
+        List<Object> sources = new ArrayList<Object>();
+        for (int i = 0; i < filteredIndex.size(); ++i){
+            org.junit.Assert.assertEquals(i, filteredIndex.indexOf(filteredIndex.get(i)));
+            sources.add(filteredIndex.get(i).getSource());
+        }
+        return sources.toString();
+    }
+
+    private static class NumFilter implements NodeFilter {
+        private final int from;
+        private final int to;
+
+        NumFilter(int from, int to){
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean accept(DataNode node){
+            int n = Integer.parseInt(node.getSource().toString());
+            return n >= from && n <= to;
+        }
+    }
+
+    @org.junit.Test
+    public void sortedChildren(){
+        final int[] weights = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        Comparator<DataNode> byWeight = new Comparator<DataNode>() {
+            public int compare(DataNode o1, DataNode o2) {
+                return weights[Integer.parseInt(o1.getSource().toString())] - weights[Integer.parseInt(o2.getSource().toString())];
+            }
+        };
+
+        RecordingListener events = new RecordingListener();
+        flatIndex.addIndexChangeListener(events);
+
+        root.setChildComparator(byWeight);
+        org.junit.Assert.assertEquals("", events.toString());
+
+        DataNode two = root.getChildNode(0);
+        weights[2] = 10;
+        root.repositionChildNode(two);
+        org.junit.Assert.assertEquals(">1,8,1 ", events.toString());
+        org.junit.Assert.assertSame(two, flatIndex.get(8));
+
+        DataNode three = root.getChildNode(0);
+        weights[3] = 11;
+        root.repositionChildNode(three);
+        org.junit.Assert.assertEquals(">1,8,1 >1,5,4 ", events.toString());
+        org.junit.Assert.assertSame(three, flatIndex.get(5));
+    }
+
+    @org.junit.Test
+    public void moveTo(){
+        RecordingListener events = new RecordingListener();
+        flatIndex.addIndexChangeListener(events);
+
+        DataNode three = root.getChildNode(1);
+        DataNode seven = root.getChildNode(2);
+        seven.setIsFolded(true);
+        org.junit.Assert.assertEquals(7, flatIndex.getVisibleIndex().size());
+
+        events.clear();
+        three.moveTo(seven);
+        org.junit.Assert.assertEquals(">2,5,4 ", events.toString());
+        org.junit.Assert.assertSame(seven, three.getParentNode());
+        org.junit.Assert.assertSame(three, flatIndex.get(5));
+        org.junit.Assert.assertEquals(7, seven.getFlatSize());
+        org.junit.Assert.assertEquals(3, flatIndex.getVisibleIndex().size());
+
+        three.moveTo(root, DataNode.CHILD_POSITION_MIDDLE, 1);
+        org.junit.Assert.assertEquals(">2,5,4 >5,2,4 ", events.toString());
+        org.junit.Assert.assertSame(three, flatIndex.get(2));
+        org.junit.Assert.assertEquals(7, flatIndex.getVisibleIndex().size());
+
+        try {
+            root.moveTo(three);
+            org.junit.Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @org.junit.Test
+    public void singleMoves(){
+        //逐项应用拆分后的移动,结果与整体移动后的索引一致
+        final List<Object> sources = new ArrayList<Object>();
+        for (int i = 0; i < flatIndex.size(); ++i){
+            sources.add(flatIndex.get(i).getSource());
+        }
+        flatIndex.addIndexChangeListener(new SingleMoveListener(new IndexChangeListener() {
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+            }
+
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+            }
+
+            public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                org.junit.Assert.assertEquals(1, itemCount);
+                sources.add(toPosition, sources.remove(fromPosition));
+            }
+
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+            }
+        }));
+
+        DataNode three = root.getChildNode(1);
+        DataNode seven = root.getChildNode(2);
+        three.moveTo(seven);
+        assertSameOrder("1 2 7 8 9 3 4 5 6", flatIndex);
+        org.junit.Assert.assertEquals("[1, 2, 7, 8, 9, 3, 4, 5, 6]", sources.toString());
+        three.moveTo(root, DataNode.CHILD_POSITION_MIDDLE, 1);
+        org.junit.Assert.assertEquals("[1, 2, 3, 4, 5, 6, 7, 8, 9]", sources.toString());
+    }
+
+    @org.junit.Test
+    public void diff(){
+        NodeDiff.Sequence before = NodeDiff.Sequence.capture(flatIndex.getVisibleIndex());
+        root.getChildNode(2).moveTo(root, DataNode.CHILD_POSITION_MIDDLE, 1);
+        root.getChildNode(0).setSource(new Num(10));
+        NodeDiff.Sequence after = NodeDiff.Sequence.capture(flatIndex.getVisibleIndex());
+
+        RecordingListener events = new RecordingListener();
+        NodeDiff.calculate(before, after, NodeDiff.BY_NODE, true).dispatchTo(events);
+        org.junit.Assert.assertEquals("*1,1 >2,5,4 ", events.toString());
+
+        events.clear();
+        NodeDiff.calculate(before, after, NodeDiff.BY_NODE, false).dispatchTo(events);
+        org.junit.Assert.assertEquals("*1,1 -2,4 +5,4 ", events.toString());
+    }
+
+    @org.junit.Test
+    public void diffSameSubtrees(){
+        //大小相同但内部有改变的子树不能跳过
+        DataNode<Num> wideRoot = wideTree();
+        NodeFlatIndex.VisibleFlatIndex wideIndex = wideRoot.getFlatIndex().getVisibleIndex();
+        NodeDiff.Sequence before = NodeDiff.Sequence.capture(wideIndex);
+        wideRoot.getChildNode(0).getChildNode(49).setSource(new Num(9001));
+        wideRoot.getChildNode(2).getChildNode(0).setSource(new Num(9002));
+        NodeDiff.Sequence after = NodeDiff.Sequence.capture(wideIndex);
+
+        RecordingListener events = new RecordingListener();
+        NodeDiff.calculate(before, after, NodeDiff.BY_NODE, true).dispatchTo(events);
+        org.junit.Assert.assertEquals("*51,1 *104,1 ", events.toString());
+        org.junit.Assert.assertEquals(0, NodeDiff.calculate(after, after, NodeDiff.BY_NODE, true).getOperationCount());
+    }
+
+    @org.junit.Test
+    public void nestedIndex(){
+        DataNode three = flatIndex.get(2);
+        DataNode seven = flatIndex.get(6);
+        NodeFlatIndex threeIndex = three.getFlatIndex();
+
+        three.getChildNode(0).setVisibility(false);
+        org.junit.Assert.assertEquals(3, threeIndex.getVisibleIndex().size());
+        org.junit.Assert.assertEquals(8, visibleFlatIndex.size());
+
+        //移动后只通知新路径上的索引
+        seven.getChildNode(0).moveTo(three);
+        org.junit.Assert.assertEquals(5, threeIndex.size());
+        seven.getChildNode(0).moveTo(three);
+        org.junit.Assert.assertEquals(6, threeIndex.size());
+        org.junit.Assert.assertEquals(9, flatIndex.size());
+
+        three.removeFromParent();
+        seven.addChildNode(new DataNode());
+        org.junit.Assert.assertEquals(6, threeIndex.size());
+        org.junit.Assert.assertEquals(4, flatIndex.size());
+    }
+
+    @org.junit.Test
+    public void subtreeView(){
+        DataNode three = flatIndex.get(2);
+        FlatIndexView view = three.getFlatIndexView();
+        org.junit.Assert.assertSame(flatIndex, view.getFlatIndex());
+        org.junit.Assert.assertEquals(4, view.size());
+        org.junit.Assert.assertEquals("5", view.get(2).getSource().toString());
+
+        view.ignoreRoot(true);
+        three.getChildNode(1).setVisibility(false);
+        org.junit.Assert.assertEquals(2, view.getVisibleView().size());
+        org.junit.Assert.assertEquals("6", view.getVisibleView().get(1).getSource().toString());
+        org.junit.Assert.assertEquals(-1, view.indexOf(flatIndex.get(6)));
+
+        //跟随节点树改变,不需要维护
+        three.addChildNode(new DataNode());
+        org.junit.Assert.assertEquals(4, view.size());
+        three.setIsFolded(true);
+        org.junit.Assert.assertEquals(0, view.getVisibleView().size());
+    }
+
+    @org.junit.Test
+    public void mappedTree() throws IOException {
+        flatIndex.get(2).setIsFolded(true);
+        flatIndex.get(7).setVisibility(false);
+        MappedTree.SourceCodec<Num> codec = new MappedTree.SourceCodec<Num>() {
+            public long encode(Num source) {
+                return Integer.parseInt(source.toString());
+            }
+
+            public Num decode(long id) {
+                return new Num((int) id);
+            }
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MappedTree.write(root.freeze(), codec, out);
+        MappedTree<Num> mappedTree = MappedTree.load(ByteBuffer.wrap(out.toByteArray()), codec);
+
+        org.junit.Assert.assertEquals(9, mappedTree.size());
+        org.junit.Assert.assertEquals("5", mappedTree.getSource(4).toString());
+        org.junit.Assert.assertEquals(5, mappedTree.visibleSize());
+        org.junit.Assert.assertEquals(6, mappedTree.getNextSiblingNode(2));
+
+        //折叠的节点在展开时才创建子节点
+        DataNode<Num> node = mappedTree.toDataNode();
+        DataNode folded = node.getFlatIndex().get(2);
+        org.junit.Assert.assertFalse(folded.isChildrenLoaded());
+        org.junit.Assert.assertEquals(3, folded.getDeclaredChildCount());
+        folded.setIsFolded(false);
+        assertSameOrder("1 2 3 4 5 6 7 8 9", node.getFlatIndex());
+        assertSameOrder("1 2 3 4 5 6 7 9", node.getFlatIndex().getVisibleIndex());
+    }
+
+    @org.junit.Test
+    public void metrics(){
+        final List<TreeMetrics.Snapshot> published = new ArrayList<TreeMetrics.Snapshot>();
+        TreeMetrics metrics = new TreeMetrics(new TreeMetrics.Sink() {
+            public void onMetrics(TreeMetrics.Snapshot snapshot) {
+                published.add(snapshot);
+            }
+        });
+        DataNode three = flatIndex.get(2);
+
+        TreeMetrics.install(metrics);
+        try {
+            three.setIsFolded(true);
+            three.setIsFolded(false);
+            DataNode leaf = new DataNode();
+            three.addChildNode(leaf);
+            leaf.removeFromParent();
+            flatIndex.get(1);
+
+            TreeMetrics.Snapshot snapshot = metrics.publish();
+            org.junit.Assert.assertSame(snapshot, published.get(0));
+            org.junit.Assert.assertEquals(2, snapshot.getCount(TreeMetrics.OP_FOLD));
+            org.junit.Assert.assertEquals(6, snapshot.getNodes(TreeMetrics.OP_FOLD));
+            org.junit.Assert.assertEquals(1, snapshot.getCount(TreeMetrics.OP_ADD));
+            org.junit.Assert.assertTrue(snapshot.getWalkSteps(TreeMetrics.OP_ADD) > 0);
+            org.junit.Assert.assertEquals(1, snapshot.getCount(TreeMetrics.OP_REMOVE));
+            org.junit.Assert.assertEquals(1, snapshot.getCount(TreeMetrics.OP_READ));
+            org.junit.Assert.assertEquals(0, metrics.snapshot().getCount(TreeMetrics.OP_FOLD));
+        } finally {
+            TreeMetrics.install(null);
+        }
+
+        flatIndex.get(1);
+        org.junit.Assert.assertEquals(0, metrics.snapshot().getCount(TreeMetrics.OP_READ));
+    }
+
+    @org.junit.Test
+    public void hiddenAncestor(){
+        DataNode three = flatIndex.get(2);
+        DataNode seven = flatIndex.get(6);
+
+        //隐藏或折叠的先辈节点下增删,可见索引不变,显示或展开后才出现
+        three.setVisibility(false);
+        flatIndex.get(4).removeFromParent();
+        three.addChildNode(newNode(10));
+        assertSameOrder("1 2 7 8 9", visibleFlatIndex);
+        three.setVisibility(true);
+        assertSameOrder("1 2 3 4 6 10 7 8 9", visibleFlatIndex);
+
+        seven.setIsFolded(true);
+        seven.addChildNode(newNode(11));
+        assertSameOrder("1 2 3 4 6 10 7", visibleFlatIndex);
+        seven.setIsFolded(false);
+        assertSameOrder("1 2 3 4 6 10 7 8 9 11", visibleFlatIndex);
+        assertSameOrder("1 2 3 4 6 10 7 8 9 11", flatIndex);
+    }
+
+    @org.junit.Test
+    public void foldWithHiddenChild(){
+        DataNode seven = flatIndex.get(6);
+
+        //折叠时只删除可见的子孙节点
+        flatIndex.get(7).setVisibility(false);
+        seven.setIsFolded(true);
+        assertSameOrder("1 2 3 4 5 6 7", visibleFlatIndex);
+        seven.setIsFolded(false);
+        assertSameOrder("1 2 3 4 5 6 7 9", visibleFlatIndex);
+
+        flatIndex.get(2).setIsFolded(true);
+        assertSameOrder("1 2 3 7 9", visibleFlatIndex);
+    }
+
+    @org.junit.Test
+    public void removedSegment(){
+        RecordingNode parent = new RecordingNode(10);
+        root.addChildNode(parent);
+        DataNode header = newNode(11);
+        DataNode child = newNode(12);
+        DataNode footer = newNode(13);
+        parent.addHeaderNode(header);
+        parent.addChildNode(child);
+        parent.addFooterNode(footer);
+
+        footer.removeFromParent();
+        header.removeFromParent();
+        child.removeFromParent();
+        org.junit.Assert.assertEquals("13:3 11:1 12:2 ", parent.removed.toString());
+
+        parent.addHeaderNode(header);
+        parent.addFooterNode(footer);
+        parent.removeHeaderNode(0);
+        parent.removeFooterNode(footer);
+        org.junit.Assert.assertEquals("13:3 11:1 12:2 11:1 13:3 ", parent.removed.toString());
+        assertSameOrder("1 2 3 4 5 6 7 8 9 10", flatIndex);
+    }
+
+    @org.junit.Test
+    public void bulkAdd(){
+        RecordingNode single = new RecordingNode(10);
+        RecordingNode bulk = new RecordingNode(10);
+        NodeFlatIndex singleIndex = single.getFlatIndex();
+        NodeFlatIndex bulkIndex = bulk.getFlatIndex();
+        single.addChildNode(newNode(11));
+        single.addChildNode(newNode(12));
+        bulk.addChildNodes(nodes(11, 12));
+
+        //中部插入,包含隐藏节点
+        single.addChildNode(1, newNode(13));
+        DataNode hidden = newNode(14);
+        hidden.setVisibility(false);
+        single.addChildNode(2, hidden);
+        List<DataNode<Num>> middle = nodes(13, 14);
+        middle.get(1).setVisibility(false);
+        bulk.addChildNodes(1, middle);
+
+        //末尾追加
+        single.addChildNode(newNode(15));
+        bulk.addChildNodes(nodes(15));
+
+        single.addHeaderNode(newNode(16));
+        single.addHeaderNode(0, newNode(17));
+        bulk.addHeaderNodes(nodes(16));
+        bulk.addHeaderNodes(0, nodes(17));
+        single.addFooterNode(newNode(18));
+        single.addFooterNode(newNode(19));
+        bulk.addFooterNodes(nodes(18, 19));
+
+        assertSameOrder("10 17 16 11 13 14 12 15 18 19", singleIndex);
+        assertSameOrder("10 17 16 11 13 14 12 15 18 19", bulkIndex);
+        assertSameOrder("10 17 16 11 13 12 15 18 19", bulkIndex.getVisibleIndex());
+        for (int i = 0; i < bulkIndex.size(); ++i){
+            org.junit.Assert.assertEquals(i, bulkIndex.indexOf(bulkIndex.get(i)));
+        }
+        org.junit.Assert.assertEquals("11:2 12:2 13:2 14:2 15:2 16:1 17:1 18:3 19:3 ", single.added.toString());
+        org.junit.Assert.assertEquals(single.added.toString(), bulk.added.toString());
+    }
+
+    @org.junit.Test
+    public void siblingSlots(){
+        DataNode seven = flatIndex.get(6);
+        org.junit.Assert.assertEquals(6, flatIndex.indexOf(seven));
+
+        //前面的兄弟节点增删后,缓存的位置过期
+        root.addChildNode(0, newNode(10));
+        org.junit.Assert.assertEquals(7, flatIndex.indexOf(seven));
+        root.addHeaderNode(newNode(11));
+        org.junit.Assert.assertEquals(8, flatIndex.indexOf(seven));
+        flatIndex.get(3).removeFromParent();
+        flatIndex.get(3).removeFromParent();
+        org.junit.Assert.assertEquals(3, flatIndex.indexOf(seven));
+        org.junit.Assert.assertEquals(3, visibleFlatIndex.indexOf(seven));
+
+        //插入到隐藏的兄弟节点之后,位置在前一个可见的兄弟节点之后
+        seven.setVisibility(false);
+        DataNode twelve = newNode(12);
+        root.addChildNode(twelve);
+        org.junit.Assert.assertEquals(3, visibleFlatIndex.indexOf(twelve));
+        root.addChildNode(1, newNode(13));
+        assertSameOrder("1 11 10 13 12", visibleFlatIndex);
+        assertSameOrder("1 11 10 13 7 8 9 12", flatIndex);
+    }
+
+    @org.junit.Test
+    public void wideParent(){
+        DataNode<Num> parent = newNode(0);
+        NodeFlatIndex index = parent.getFlatIndex();
+        List<DataNode<Num>> children = nodes(new int[1000]);
+        parent.addChildNodes(children);
+        DataNode last = children.get(999);
+        org.junit.Assert.assertEquals(1000, index.indexOf(last));
+
+        //在不同的块中插入和删除,块拆分后位置仍然正确
+        for (int i = 0; i < 300; ++i){
+            parent.addChildNode(i * 3, newNode(1));
+        }
+        org.junit.Assert.assertEquals(1300, index.indexOf(last));
+        for (int i = 0; i < 500; ++i){
+            parent.removeChildNode(i);
+        }
+        org.junit.Assert.assertEquals(800, index.indexOf(last));
+        for (int i = 0; i < parent.getChildNodeSize(); i += 97){
+            org.junit.Assert.assertEquals(i + 1, index.indexOf(parent.getChildNode(i)));
+        }
+
+        children.get(998).setVisibility(false);
+        children.get(997).addChildNode(newNode(2));
+        org.junit.Assert.assertEquals(800, index.getVisibleIndex().indexOf(last));
+        org.junit.Assert.assertEquals(801, index.indexOf(last));
+    }
+
+    /**
+     * 依次比较索引中节点的数据
+     *
+     * @param expected 以空格分隔的数据,如"1 2 3"
+     * @param actual
+     */
+    public static void assertSameOrder(String expected, NodeFlatIndex actual){
+        org.junit.Assert.assertEquals(expected, orderOf(actual));
+    }
+
+    public static void assertSameOrder(String expected, NodeFlatIndex.VisibleFlatIndex actual){
+        org.junit.Assert.assertEquals(expected, orderOf(actual));
+    }
+
+    private static String orderOf(NodeFlatIndex index){
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < index.size(); ++i){
+            builder.append(i == 0 ? "" : " ").append(index.get(i).getSource());
+        }
+        return builder.toString();
+    }
+
+    private static String orderOf(NodeFlatIndex.VisibleFlatIndex index){
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < index.size(); ++i){
+            builder.append(i == 0 ? "" : " ").append(index.get(i).getSource());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 根节点下8组,每组50个子节点,共409个节点
+     */
+    private static DataNode<Num> wideTree(){
+        DataNode<Num> root = newNode(0);
+        for (int g = 1; g <= 8; ++g){
+            DataNode<Num> group = newNode(g * 1000);
+            for (int i = 1; i <= 50; ++i){
+                group.addChildNode(newNode(g * 1000 + i));
+            }
+            root.addChildNode(group);
+        }
+        return root;
+    }
+
+    private static void editWideTree(DataNode root){
+        //区间删除:整组删除,折叠
+        root.getChildNode(2).removeFromParent();
+        root.getChildNode(3).setIsFolded(true);
+        //在块中间插入
+        root.getChildNode(0).addChildNode(20, newNode(9001));
+        root.getChildNode(0).addChildNodes(30, nodes(9002, 9003, 9004));
+        //跨块移动整组和单个节点
+        root.getChildNode(5).moveTo(root, DataNode.CHILD_POSITION_MIDDLE, 0);
+        root.getChildNode(6).getChildNode(40).moveTo(root.getChildNode(1));
+        root.getChildNode(1).getChildNode(10).setVisibility(false);
+        root.getChildNode(4).moveTo(root.getChildNode(2), DataNode.CHILD_POSITION_MIDDLE, 25);
+    }
+
+    /**
+     * 把索引改变事件依次记录成字符串,如"+3,3 -6,3 >2,5,4 *2,1 "
+     */
+    private static class RecordingListener implements IndexChangeListener {
+        private final StringBuilder mEvents = new StringBuilder();
+
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            mEvents.append("+").append(positionStart).append(",").append(itemCount).append(" ");
+        }
+
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            mEvents.append("-").append(positionStart).append(",").append(itemCount).append(" ");
+        }
+
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            mEvents.append(">").append(fromPosition).append(",").append(toPosition).append(",").append(itemCount).append(" ");
+        }
+
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            mEvents.append("*").append(positionStart).append(",").append(itemCount).append(" ");
+        }
+
+        void clear(){
+            mEvents.setLength(0);
+        }
+
+        public String toString() {
+            return mEvents.toString();
+        }
+    }
+
+    private static DataNode<Num> newNode(int n){
+        DataNode<Num> node = new DataNode<Num>();
+        node.setSource(new Num(n));
+        return node;
+    }
+
+    private static List<DataNode<Num>> nodes(int... ns){
+        List<DataNode<Num>> nodes = new ArrayList<DataNode<Num>>();
+        for (int n : ns){
+            nodes.add(newNode(n));
+        }
+        return nodes;
+    }
+
+    /**
+     * 记录子节点增删时回调的节点和所在位置
+     */
+    private static class RecordingNode extends DataNode<Num> {
+        final StringBuilder added = new StringBuilder();
+        final StringBuilder removed = new StringBuilder();
+
+        RecordingNode(int n){
+            setSource(new Num(n));
+        }
+
+        protected void onChildNodeAdded(DataNode addedNode, int position) {
+            added.append(addedNode.getSource()).append(":").append(position).append(" ");
+        }
+
+        protected void onChildNodeRemoved(DataNode removedNode, int position) {
+            removed.append(removedNode.getSource()).append(":").append(position).append(" ");
+        }
+    }
+
     public static void print(String msg){
         System.out.println(msg);
     }
@@ -1,7 +1,11 @@
 package cn.okayj.util.lineartree.test;
 
+import cn.okayj.util.lineartree.ChildLoader;
 import cn.okayj.util.lineartree.DataNode;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by jack on 2016/12/20.
  */
@@ -14,4 +18,28 @@ public class TreeBuilder {
         }
         return node;
     }
+
+    /**
+     * 子节点在展开时才创建,非叶子节点初始为折叠状态
+     */
+    public static DataNode<Num> buildLazy(Num num){
+        DataNode node = new DataNode();
+        node.setSource(num);
+        if (num.getChildSize() > 0){
+            node.setIsFolded(true);
+            node.setChildLoader(LAZY_LOADER, num.getChildSize());
+        }
+        return node;
+    }
+
+    private static final ChildLoader LAZY_LOADER = new ChildLoader() {
+        public void loadChildren(DataNode node) {
+            Num num = (Num) node.getSource();
+            List<DataNode> children = new ArrayList<DataNode>();
+            for (int i = 0; i < num.getChildSize(); ++i){
+                children.add(buildLazy(num.get(i)));
+            }
+            node.addChildNodes(children);
+        }
+    };
 }